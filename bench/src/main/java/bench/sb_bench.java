@@ -0,0 +1,533 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import access_list.sb_interface;
+import access_list.sb_result_cache;
+import access_list.sb_snapshot;
+import access_list.url_canon;
+import access_list.url_forms;
+import access_list.url_hasher;
+
+import list_store.embedded_store;
+import list_store.sb_update;
+
+import update_list.diff_parser;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_bench.java - JMH micro-benchmarks over the stages of
+ * the lookup and update hot paths: canonicalization, form generation,
+ * hashing, end-to-end lookups, and diff parsing. Allocation per operation
+ * is reported by JMH's GC profiler ("-prof gc"); see bench/pom.xml.
+ *
+ * The legacy (string-rebuilding) canonicalization and form generation are
+ * benchmarked alongside their replacements, as a fixed baseline. End-to-end
+ * lookups run against synthetic lists, written as snapshot files (see
+ * [sb_snapshot]) and into an [embedded_store], in temporary directories,
+ * so no database is needed. Only the public API of those packages is used.
+ *
+ * The cached lookup draws URLs at random from the corpus, into a result
+ * cache sized to a share of it (see 'cache_share'), so it measures a
+ * realistic mix of hits and misses; the hit rate is printed at tear-down.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class sb_bench{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Default number of URLs in the synthetic corpus.
+	 */
+	private static final int DEFAULT_CORPUS = 20000;
+
+	/**
+	 * Number of random (non-corpus) hashes on each synthetic list.
+	 */
+	private static final int LIST_FILLER = 300000;
+
+	/**
+	 * Number of entries in the synthetic diff.
+	 */
+	private static final int DIFF_ENTRIES = 10000;
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	@Benchmark
+	public String canonicalize(data d, cursor c) throws Exception{
+		return(url_canon.get().canonicalize(d.urls[c.next_url(d)]));
+	}
+
+	@Benchmark
+	public String canonicalize_legacy(data d, cursor c) throws Exception{
+		return(sb_interface.legacy_canonical_url(d.urls[c.next_url(d)]));
+	}
+
+	@Benchmark
+	public int forms(data d, cursor c) throws Exception{
+		url_forms gen = url_forms.get();
+		int num_forms = gen.generate(d.urls[c.next_url(d)]), total = 0;
+		for(int f=0; f < num_forms; f++)
+			total += gen.form(f).length();
+		return(total);
+	} // Includes canonicalization, as does generate()
+
+	@Benchmark
+	public int forms_legacy(data d, cursor c) throws Exception{
+		String canon = sb_interface.legacy_canonical_url(d.urls[c.next_url(d)]);
+		if(canon == null)
+			return(0);
+		int total = 0;
+		for(String form : sb_interface.get_url_forms(canon))
+			total += form.length();
+		return(total);
+	} // Canonicalization included, to match forms()
+
+	@Benchmark
+	public long hash(data d, cursor c) throws Exception{
+		url_hasher hasher = url_hasher.get();
+		hasher.hash(d.forms[c.next_form(d)]);
+		return(hasher.hi() ^ hasher.lo());
+	} // One operation is one form (not one URL) hashed
+
+	@Benchmark
+	public EnumSet<LIST_TYPE> lookup_snapshot(lists l, cursor c)
+			throws Exception{
+		return(l.face.active_lists(l.urls[c.next_url(l)]));
+	}
+
+	@Benchmark
+	public EnumSet<LIST_TYPE> lookup_embedded(lists l, cursor c)
+			throws Exception{
+		return(l.store_face.active_lists(l.urls[c.next_url(l)]));
+	}
+
+	@Benchmark
+	public EnumSet<LIST_TYPE> lookup_cached(lists l, cursor c)
+			throws Exception{
+		return(l.cached_face.active_lists(l.urls[c.random_url(l)]));
+	} // Cache is smaller than the corpus; see 'cache_share'
+
+	@Benchmark
+	public long diff_parse(data d) throws Exception{
+		counting_listener counter = new counting_listener();
+		new diff_parser(counter).parse(new ByteArrayInputStream(d.diff));
+		return(counter.count);
+	} // One operation is one whole diff parsed
+
+
+	// **************************** PUBLIC CLASSES ***************************
+
+	/**
+	 * Inputs shared by all benchmarks: the URL corpus, its forms, and a diff.
+	 */
+	@State(Scope.Benchmark)
+	public static class data{
+
+		/**
+		 * Path to a file containing, one per line, the URLs to benchmark
+		 * over, or "-" for a synthetic corpus of realistic references and
+		 * long, heavily-escaped spam URLs.
+		 */
+		@Param("-")
+		public String corpus;
+
+		/**
+		 * Raw URLs of the corpus.
+		 */
+		String[] urls;
+
+		/**
+		 * All forms of all URLs of the corpus.
+		 */
+		String[] forms;
+
+		/**
+		 * UTF-8 encoded synthetic diff.
+		 */
+		byte[] diff;
+
+		@Setup
+		public void setup() throws Exception{
+			this.urls = (corpus.equals("-") ?
+					synthetic_corpus(DEFAULT_CORPUS, 1) : read_corpus(corpus));
+			this.forms = all_forms(urls);
+			this.diff = synthetic_diff(DIFF_ENTRIES, 2);
+		}
+	}
+
+	/**
+	 * The corpus, plus synthetic lists to look it up against.
+	 */
+	@State(Scope.Benchmark)
+	public static class lists extends data{
+
+		/**
+		 * Capacity of the result cache, as a share of the corpus size.
+		 * Below one, so cached lookups also miss and evict.
+		 */
+		@Param("0.25")
+		public double cache_share;
+
+		/**
+		 * Interfaces over the snapshot files, the same with a result cache,
+		 * and over the embedded store.
+		 */
+		sb_interface face, cached_face, store_face;
+
+		/**
+		 * Result cache of 'cached_face'.
+		 */
+		sb_result_cache cache;
+
+		/**
+		 * Temporary directories of the snapshot files, and of the store.
+		 */
+		File snap_dir, store_dir;
+
+		@Setup
+		public void setup_lists() throws Exception{
+			this.snap_dir = write_snapshots(forms, 3);
+			this.face = new sb_interface(EnumSet.allOf(LIST_TYPE.class),
+					snap_dir.getPath());
+			this.cached_face = new sb_interface(EnumSet.allOf(LIST_TYPE.class),
+					snap_dir.getPath());
+			this.cache = new sb_result_cache(Math.max(1,
+					(int)(urls.length * cache_share)));
+			cached_face.use_cache(cache);
+			this.store_dir = write_store(snap_dir);
+			this.store_face = new sb_interface(EnumSet.allOf(LIST_TYPE.class),
+					embedded_store.open(store_dir.getPath()));
+		}
+
+		@TearDown
+		public void teardown() throws Exception{
+			System.out.println(cache.report());
+			face.shutdown();
+			cached_face.shutdown();
+			store_face.shutdown();
+			for(File temp_dir : new File[]{snap_dir, store_dir}){
+				for(File file : temp_dir.listFiles())
+					file.delete();
+				temp_dir.delete();
+			} // Remove the synthetic lists
+		}
+	}
+
+	/**
+	 * Per-thread position in the corpus, so operations cycle through it.
+	 */
+	@State(Scope.Thread)
+	public static class cursor{
+
+		/**
+		 * Index of the next URL, and of the next form.
+		 */
+		int url, form;
+
+		/**
+		 * Generator of random corpus positions (for cached lookups).
+		 */
+		Random rand = new Random(4);
+
+		/**
+		 * @return Index of the next URL of the corpus, advancing
+		 */
+		int next_url(data d){
+			if(++url >= d.urls.length)
+				url = 0;
+			return(url);
+		}
+
+		/**
+		 * @return Index of the next form of the corpus, advancing
+		 */
+		int next_form(data d){
+			if(++form >= d.forms.length)
+				form = 0;
+			return(form);
+		}
+
+		/**
+		 * @return Index of a URL of the corpus, drawn at random. Unlike
+		 * cycling, which defeats a cache smaller than the corpus entirely,
+		 * this gives a hit rate near the cache's share of the corpus
+		 */
+		int random_url(data d){
+			return(rand.nextInt(d.urls.length));
+		}
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Read a corpus of URLs from a file.
+	 * @param path Path of a file containing URLs, one per line
+	 * @return All non-blank lines of 'path', trimmed
+	 */
+	private static String[] read_corpus(String path) throws Exception{
+		List<String> urls = new ArrayList<String>();
+		BufferedReader in = gen_utils.create_reader(path);
+		String line = in.readLine();
+		while(line != null){
+			line = line.trim();
+			if(!line.equals(""))
+				urls.add(line);
+			line = in.readLine();
+		} // Blank lines are skipped
+		in.close();
+		return(urls.toArray(new String[urls.size()]));
+	}
+
+	/**
+	 * Generate a corpus of URLs resembling the external links added to
+	 * Wikipedia. Most are references, many repeating (as popular sites
+	 * are cited over and over); some are long spam URLs, escaped (and
+	 * doubly escaped) to evade naive matching.
+	 * @param size Number of URLs to generate
+	 * @param seed Seed of the generator, so corpora are reproducible
+	 * @return Array of 'size' raw URLs
+	 */
+	private static String[] synthetic_corpus(int size, long seed){
+		Random rand = new Random(seed);
+		String[] urls = new String[size];
+		for(int i=0; i < size; i++){
+			int site = rand.nextInt(rand.nextInt(5000) + 1); // Skewed
+			int kind = rand.nextInt(10);
+			if(kind < 4){
+				urls[i] = "http://www.site" + site + ".org/wiki/Page_" +
+						rand.nextInt(1000);
+			} else if(kind < 6){
+				urls[i] = "https://news.site" + site + ".com/2010/0" +
+						(1 + rand.nextInt(9)) + "/article-" +
+						rand.nextInt(100000) + ".html?ref=rss&utm_source=feed";
+			} else if(kind == 6){
+				urls[i] = "http://10." + rand.nextInt(256) + "." +
+						rand.nextInt(256) + "." + rand.nextInt(256) + "/files/";
+			} else if(kind == 7){
+				urls[i] = "HTTP://A.b.C.d.e.F.Host" + site +
+						".co.uk/a/b/c/d/e/f/g.php";
+			} else urls[i] = spam_url(rand, site);
+		} // Mix of references, IP hosts, deep hosts, and spam
+		return(urls);
+	}
+
+	/**
+	 * Generate one long, heavily-escaped spam URL.
+	 * @param rand Random generator from which the URL is drawn
+	 * @param site Number distinguishing the spamming site
+	 * @return Spam URL of some hundreds to thousands of characters
+	 */
+	private static String spam_url(Random rand, int site){
+		StringBuilder url = new StringBuilder("http://%77ww.Cheap-Pills");
+		url.append(site).append(".info");
+		int num_segments = 5 + rand.nextInt(30);
+		for(int s=0; s < num_segments; s++){
+			switch(rand.nextInt(6)){
+				case 0: url.append("//"); break;
+				case 1: url.append("/./"); break;
+				case 2: url.append("/x/../"); break;
+				case 3: url.append("/%2570%2569%256C%256C%2573"); break;
+				case 4: url.append("/%C3%A9%E2%82%AC%20"); break;
+				default: url.append("/buy-now-").append(rand.nextInt(999));
+			} // Redundant slashes, dot-segments, double escapes, UTF-8
+		} // Path of many segments
+		url.append("/index.html?");
+		int num_params = 1 + rand.nextInt(15);
+		for(int p=0; p < num_params; p++){
+			url.append("p").append(p).append("=%25");
+			url.append(Integer.toHexString(0x20 + rand.nextInt(0x5f)));
+			url.append("%2526&");
+		} // Long, escaped query
+		return(url.toString());
+	}
+
+	/**
+	 * Compute every form of every URL in a corpus.
+	 * @param urls Corpus of raw URLs
+	 * @return All forms of all URLs, in corpus order
+	 */
+	private static String[] all_forms(String[] urls) throws Exception{
+		List<String> forms = new ArrayList<String>();
+		url_forms gen = url_forms.get();
+		for(String url : urls){
+			int num_forms = gen.generate(url);
+			for(int f=0; f < num_forms; f++)
+				forms.add(gen.form(f).toString());
+		} // Forms are copied out of the reused buffer
+		return(forms.toArray(new String[forms.size()]));
+	}
+
+	/**
+	 * Generate a diff, as served by the Safe Browsing API.
+	 * @param entries Number of add/remove lines in the diff
+	 * @param seed Seed of the generator, so diffs are reproducible
+	 * @return UTF-8 encoded diff
+	 */
+	private static byte[] synthetic_diff(int entries, long seed)
+			throws Exception{
+		Random rand = new Random(seed);
+		StringBuilder diff = new StringBuilder("[goog-malware-hash 1.4321 update]\n");
+		for(int i=0; i < entries; i++){
+			diff.append(rand.nextInt(5) == 0 ? '-' : '+');
+			diff.append(url_hasher.key_to_hex(rand.nextLong(),
+					rand.nextLong()).toLowerCase()).append("\t\n");
+		} // Mostly adds, with trailing whitespace as in real diffs
+		return(diff.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Write a synthetic snapshot file for every list into a new temporary
+	 * directory. Each list holds the hashes of some of the corpus forms (so
+	 * some lookups hit) plus many random hashes (so the files are list-size).
+	 * @param forms Forms of the corpus URLs
+	 * @param seed Seed of the generator, so lists are reproducible
+	 * @return Directory holding the snapshot files
+	 */
+	private static File write_snapshots(String[] forms, long seed)
+			throws Exception{
+		File dir = File.createTempFile("sb_bench", "");
+		dir.delete();
+		dir.mkdir();
+		Random rand = new Random(seed);
+		url_hasher hasher = url_hasher.get();
+		for(LIST_TYPE list_type : LIST_TYPE.values()){
+			List<long[]> keys = new ArrayList<long[]>();
+			for(int i=list_type.ordinal(); i < forms.length; i += 50){
+				hasher.hash(forms[i]);
+				keys.add(new long[]{hasher.hi(), hasher.lo()});
+			} // About one form in 50 is listed
+			for(int i=0; i < LIST_FILLER; i++)
+				keys.add(new long[]{rand.nextLong(), rand.nextLong()});
+			write_snapshot(new File(dir, list_type + ".snap"), keys);
+		} // Lists overlap the corpus differently
+		return(dir);
+	}
+
+	/**
+	 * Load the synthetic lists into an [embedded_store], in a new temporary
+	 * directory, by way of its update handlers.
+	 * @param snap_dir Directory holding the snapshot files of the lists
+	 * @return Directory holding the store
+	 */
+	private static File write_store(File snap_dir) throws Exception{
+		File dir = File.createTempFile("sb_bench", "");
+		dir.delete();
+		embedded_store store = embedded_store.open(dir.getPath());
+		for(LIST_TYPE list_type : LIST_TYPE.values()){
+			sb_snapshot snapshot = new sb_snapshot(snap_dir.getPath(), list_type);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(snap_dir, list_type + ".snap"))));
+			in.skipBytes(sb_snapshot.HEADER_SIZE);
+			sb_update updater = store.update(list_type);
+			updater.begin_batch(snapshot.size()); // One commit
+			for(int i=0; i < snapshot.size(); i++)
+				updater.new_active_entry(url_hasher.key_to_hex(in.readLong(),
+						in.readLong()), 0);
+			updater.end_batch();
+			updater.insert_log_entry(snapshot.version(), 0, snapshot.size(), 0);
+			updater.shutdown();
+			in.close();
+		} // Same keys as the snapshots
+		return(dir);
+	}
+
+	/**
+	 * Write a snapshot file, in the format read by [sb_snapshot].
+	 * @param file File to be written
+	 * @param keys Keys to be written, as {hi, lo} pairs (sorted herein)
+	 */
+	private static void write_snapshot(File file, List<long[]> keys)
+			throws Exception{
+		long[][] sorted = keys.toArray(new long[keys.size()][]);
+		Arrays.sort(sorted, new Comparator<long[]>(){
+			public int compare(long[] a, long[] b){
+				long a_hi = a[0] ^ Long.MIN_VALUE, b_hi = b[0] ^ Long.MIN_VALUE;
+				long a_lo = a[1] ^ Long.MIN_VALUE, b_lo = b[1] ^ Long.MIN_VALUE;
+				if(a_hi != b_hi)
+					return(a_hi < b_hi ? -1 : 1);
+				return(a_lo < b_lo ? -1 : (a_lo == b_lo ? 0 : 1));
+			} // Unsigned order, via sign-flipping
+		});
+		int count = 0;
+		ByteBuffer buf = ByteBuffer.allocate(sb_snapshot.HEADER_SIZE +
+				16 * sorted.length);
+		buf.position(sb_snapshot.HEADER_SIZE);
+		for(int i=0; i < sorted.length; i++){
+			if(i > 0 && sorted[i][0] == sorted[i-1][0] &&
+					sorted[i][1] == sorted[i-1][1])
+				continue; // Duplicates are written once
+			buf.putLong(sorted[i][0]).putLong(sorted[i][1]);
+			count++;
+		} // Keys follow the header
+		buf.putInt(0, sb_snapshot.MAGIC).putInt(4, 1).putLong(8, count);
+		buf.flip();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		while(buf.hasRemaining())
+			channel.write(buf);
+		raf.close();
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * Diff listener which only counts the entries handed to it.
+	 */
+	private static class counting_listener
+			implements diff_parser.diff_listener{
+
+		/**
+		 * Number of entries (adds and removes) seen.
+		 */
+		long count;
+
+		public void header(int version_id){}
+
+		public void add(String hash){
+			count++;
+		}
+
+		public void remove(String hash){
+			count++;
+		}
+	}
+
+}
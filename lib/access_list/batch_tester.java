@@ -1,10 +1,24 @@
 package access_list;
 
 import java.io.BufferedReader;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import common_utils.db_con;
 import common_utils.gen_utils;
+import common_utils.db_con.DBS;
 import common_utils.gen_utils.LIST_TYPE;
 
 /**
@@ -13,51 +27,287 @@ import common_utils.gen_utils.LIST_TYPE;
  */
 public class batch_tester{
 
-	// **************************** PUBLIC METHODS ***************************	
-	
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Number of lookups which may be in flight (or finished, but not yet
+	 * output) per worker. This bounds memory while keeping workers busy
+	 * when one slow lookup holds up in-order output.
+	 */
+	private static final int WINDOW_PER_WORKER = 64;
+
+	/**
+	 * Number of URLs output between checkpoint writes.
+	 */
+	private static final int CHECKPOINT_INTERVAL = 10000;
+
+
+	// **************************** PUBLIC METHODS ***************************
+
 	/**
 	 * Given a list of URLs, output a list of those that are active on at
-	 * least one of the Google Safe Browsing lists.
+	 * least one of the Google Safe Browsing lists. Output is always in the
+	 * order of the input, regardless of the number of workers. The input is
+	 * streamed (never held in memory whole), and output begins immediately.
 	 * @param args One argument is required: (1) The path to a file
-	 * containing, one per line, those URLs that should be examined
+	 * containing, one per line, those URLs that should be examined. Three
+	 * arguments are optional: (2) The number of worker threads, each with
+	 * its own [sb_interface] and pooled connection, to perform lookups
+	 * with (default: 1), 
+	 * (3) the path to a checkpoint file. If provided, the byte offset just
+	 * past the last line output is periodically saved there, and a run 
+	 * finding an existing checkpoint resumes from that offset ("-" for no 
+	 * checkpoint), and (4) the capacity of a result cache shared by all 
+	 * workers, so repeated URLs are looked up once (default: no cache).
 	 */
 	public static void main(String[] args) throws Exception{
 
-		sb_interface face_phishing = new sb_interface(LIST_TYPE.phishing);
-		sb_interface face_malware = new sb_interface(LIST_TYPE.malware);
-		
-		List<String> url_list = list_from_file(args[0]);
-		for(int i=0; i <  url_list.size(); i++){
-			if(face_phishing.url_is_active(url_list.get(i)))
-				System.out.println(url_list.get(i) + ",phishing");
-			if(face_malware.url_is_active(url_list.get(i)))
-				System.out.println(url_list.get(i) + ",malware");	
-		} // Just iterate over all URLs in file
-		
-		face_phishing.shutdown();
-		face_malware.shutdown();
+		int num_workers = (args.length > 1 ? Integer.parseInt(args[1]) : 1);
+		String checkpoint = (args.length > 2 && !args[2].equals("-") ? 
+				args[2] : null);
+		sb_result_cache cache = (args.length > 3 ? 
+				new sb_result_cache(Integer.parseInt(args[3])) : null);
+		db_con.configure_pool(DBS.safe_browsing, num_workers, num_workers,
+				db_con.POOL_MAX_IDLE_SECS);
+		BlockingQueue<sb_interface> faces =
+				new ArrayBlockingQueue<sb_interface>(num_workers);
+		for(int i=0; i < num_workers; i++){
+			sb_interface face = new sb_interface();
+			face.use_cache(cache);
+			faces.add(face);
+		} // Workers share any cache, but nothing else
+		// Platform threads: virtual threads need JDK 21, and the library
+		// targets Java 7 (see pom.xml)
+		ExecutorService workers = Executors.newFixedThreadPool(num_workers);
+
+		long start = System.currentTimeMillis();
+		long num_urls = 0;
+		line_reader in = new line_reader(args[0], read_checkpoint(checkpoint));
+		LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+		LinkedList<Long> pending_offsets = new LinkedList<Long>();
+		try{
+			String url = in.read_line();
+			while(url != null){
+				pending.add(workers.submit(new lookup_task(url, faces)));
+				pending_offsets.add(in.offset());
+				if(pending.size() >= num_workers * WINDOW_PER_WORKER)
+					output_next(pending, pending_offsets, checkpoint, ++num_urls);
+				url = in.read_line();
+			} // Stream all URLs in file, outputting in order
+			while(!pending.isEmpty())
+				output_next(pending, pending_offsets, checkpoint, ++num_urls);
+			if(checkpoint != null)
+				write_checkpoint(checkpoint, in.offset());
+		} finally{ // A failed lookup must not hang us
+			workers.shutdownNow();
+			in.close();
+		} 
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+		for(sb_interface face : faces)
+			face.shutdown();
+		System.err.println("Checked " + num_urls + " URLs in " +
+				(elapsed / 1000.0) + " secs. (" +
+				(num_urls * 1000L / elapsed) + " URLs/sec.) using " +
+				num_workers + " worker(s)");
+		System.err.println(db_con.pool_stats(DBS.safe_browsing));
+		if(cache != null)
+			System.err.println(cache.report());
+		System.err.println(sb_metrics.get().getReport());
 	}
 
-	
+
 	// *************************** PRIVATE METHODS ***************************
-	
+
 	/**
-	 * Given a text-file, read that into a local-array, line by line.
-	 * @param filepath Location of file to be read in.
-	 * @return The content of the file at 'filepath', converted to a String,
-	 * line-delimited, and returned in the format of a Java list.
+	 * Output the result of the oldest pending lookup, checkpointing if due.
+	 * @param pending Pending lookups, in input order
+	 * @param pending_offsets Input offsets just past each pending URL
+	 * @param checkpoint Path of checkpoint file, or NULL if not in use
+	 * @param num_output Number of URLs output, including this one
 	 */
-	private static List<String> list_from_file(String filepath) 
-			throws Exception{
-		BufferedReader in = gen_utils.create_reader(filepath);
-		List<String> local = new ArrayList<String>();
-		String cur_line = in.readLine();
-		while(cur_line != null){
-			local.add(cur_line);
-			cur_line = in.readLine();
-		} // Just iterate over file, adding lines to list
+	private static void output_next(LinkedList<Future<String>> pending,
+			LinkedList<Long> pending_offsets, String checkpoint, 
+			long num_output) throws Exception{
+		System.out.print(pending.removeFirst().get());
+		long offset = pending_offsets.removeFirst();
+		if(checkpoint != null && num_output % CHECKPOINT_INTERVAL == 0)
+			write_checkpoint(checkpoint, offset);
+	}
+
+	/**
+	 * Read the input offset saved in a checkpoint file.
+	 * @param checkpoint Path of checkpoint file, or NULL if not in use
+	 * @return Offset saved in 'checkpoint', or zero (0) if 'checkpoint' is
+	 * NULL or does not yet exist
+	 */
+	private static long read_checkpoint(String checkpoint) throws Exception{
+		if(checkpoint == null || !new File(checkpoint).exists())
+			return(0);
+		BufferedReader in = gen_utils.create_reader(checkpoint);
+		long offset = Long.parseLong(in.readLine().trim());
 		in.close();
-		return(local);
+		System.err.println("Resuming from byte offset " + offset);
+		return(offset);
+	}
+
+	/**
+	 * Save an input offset to a checkpoint file. Output is flushed first,
+	 * so that everything before the offset has really been written. The 
+	 * file is replaced via rename, so a kill mid-write leaves the old one.
+	 * @param checkpoint Path of checkpoint file
+	 * @param offset Byte offset just past the last URL output
+	 */
+	private static void write_checkpoint(String checkpoint, long offset)
+			throws Exception{
+		System.out.flush();
+		File tmp = new File(checkpoint + ".tmp");
+		BufferedWriter out = gen_utils.create_writer(tmp.getPath(), false);
+		out.write(offset + "\n");
+		out.close();
+		File target = new File(checkpoint);
+		if(!tmp.renameTo(target)){
+			target.delete();
+			tmp.renameTo(target);
+		} // Some platforms will not rename over an existing file
 	}
-	
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * A single URL lookup, performed by whichever worker is free, using
+	 * an [sb_interface] borrowed from a shared pool (interfaces are not
+	 * thread-safe, so each is used by one worker at a time).
+	 */
+	private static class lookup_task implements Callable<String>{
+
+		/**
+		 * URL to be checked.
+		 */
+		private final String url;
+
+		/**
+		 * Pool of interfaces, from which one is borrowed for the lookup.
+		 */
+		private final BlockingQueue<sb_interface> faces;
+
+		/**
+		 * Construct a [lookup_task] for some URL.
+		 * @param url URL to be checked
+		 * @param faces Pool of interfaces shared by all workers
+		 */
+		lookup_task(String url, BlockingQueue<sb_interface> faces){
+			this.url = url;
+			this.faces = faces;
+		}
+
+		/**
+		 * Perform the lookup.
+		 * @return Output lines for 'url', one "url,list" line per list on
+		 * which it is active (the empty string if it is on none)
+		 */
+		public String call() throws Exception{
+			sb_interface face = faces.take();
+			try{
+				EnumSet<LIST_TYPE> active = face.active_lists(url);
+				StringBuilder out = new StringBuilder();
+				for(LIST_TYPE list_type : active)
+					out.append(url + "," + list_type + "\n");
+				return(out.toString());
+			} finally{faces.put(face);}
+		}
+	}
+
+	/**
+	 * Line reader over a file channel, which tracks the byte offset of its
+	 * position (something a [BufferedReader] cannot do), so that a read can
+	 * be started from, and resumed at, an arbitrary line boundary. Only one
+	 * fixed-size buffer, plus the current line, is ever held in memory.
+	 */
+	private static class line_reader{
+
+		/**
+		 * Channel over the input file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * Buffer of bytes read from the channel, but not yet consumed.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Bytes of the line currently being assembled.
+		 */
+		private byte[] line;
+
+		/**
+		 * Byte offset (within the file) just past the last line returned.
+		 */
+		private long offset;
+
+		/**
+		 * Open a [line_reader] over a file.
+		 * @param filepath Location of file to be read
+		 * @param offset Byte offset at which reading should begin. This
+		 * should be the start of a line (e.g., a saved offset()).
+		 */
+		line_reader(String filepath, long offset) throws Exception{
+			this.channel = new FileInputStream(filepath).getChannel();
+			this.channel.position(offset);
+			this.buffer = ByteBuffer.allocateDirect(0x10000); // 64k buffer
+			this.buffer.flip(); // Start empty
+			this.line = new byte[256];
+			this.offset = offset;
+		}
+
+		/**
+		 * Read the next line of the file.
+		 * @return Next line of the file, sans terminator (a trailing '\r'
+		 * is also dropped), or NULL if the end of file has been reached
+		 */
+		String read_line() throws Exception{
+			int len = 0;
+			boolean any = false;
+			while(true){
+				if(!buffer.hasRemaining()){
+					buffer.clear();
+					int read = channel.read(buffer);
+					buffer.flip();
+					if(read < 0)
+						break;
+				} // Refill the buffer once it is exhausted
+				any = true;
+				byte b = buffer.get();
+				offset++;
+				if(b == '\n')
+					break;
+				if(len == line.length)
+					line = Arrays.copyOf(line, len * 2);
+				line[len++] = b;
+			} // Consume bytes up to a newline, or the end of the file
+			if(!any)
+				return(null);
+			if(len > 0 && line[len-1] == '\r')
+				len--;
+			return(new String(line, 0, len, "UTF-8"));
+		}
+
+		/**
+		 * Return the position of the reader.
+		 * @return Byte offset just past the last line returned
+		 */
+		long offset(){
+			return(offset);
+		}
+
+		/**
+		 * Close the underlying channel.
+		 */
+		void close() throws Exception{
+			channel.close();
+		}
+	}
+
 }
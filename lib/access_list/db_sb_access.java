@@ -3,6 +3,14 @@ package access_list;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import list_store.sb_access;
+import list_store.sb_tables;
 
 import common_utils.gen_utils.LIST_TYPE;
 
@@ -11,7 +19,7 @@ import common_utils.gen_utils.LIST_TYPE;
  * as it pertains to local retrieval of Google Safe Browsing data. Note
  * that general storage/insertion/update uses a different handler.
  */
-public class db_sb_access{
+public class db_sb_access implements sb_access{
 	
 	// **************************** PRIVATE FIELDS ***************************
 	
@@ -20,6 +28,18 @@ public class db_sb_access{
 	 */
 	private PreparedStatement pstmt_is_active;
 	
+	/**
+	 * SQL reading the most recent list version from the update log.
+	 */
+	private PreparedStatement pstmt_version;
+	
+	/**
+	 * SQL looking up many hashes at once, keyed by the number of hashes
+	 * (i.e., the number of placeholders in the IN-list). A URL generates
+	 * at most a few dozen forms, so the handful of arities are cached.
+	 */
+	private Map<Integer, PreparedStatement> pstmts_are_active;
+	
 	/**
 	 * "Base table" over which this instance should operate. Since the format
 	 * of different lists is basically identical, this variable allows this
@@ -27,6 +47,17 @@ public class db_sb_access{
 	 */
 	private final String BASE_TBL;
 	
+	/**
+	 * TRUE if the HASH column of [BASE_TBL] holds binary keys; FALSE if it
+	 * holds hex strings. Hashes are passed in and out as hex, regardless.
+	 * The layout may change under a running process (see 
+	 * [update_list.hash_migrate]). A hash bound in the wrong layout just
+	 * matches nothing, so every lookup compares this against the metadata
+	 * of its own (possibly empty) result, and a query failure re-detects
+	 * it outright; either way, the lookup is retried once.
+	 */
+	private boolean hash_binary;
+	
 	/**
 	 * Connection to the local [safe_browsing] database.
 	 */
@@ -44,9 +75,11 @@ public class db_sb_access{
 	public db_sb_access(Connection con, LIST_TYPE list_type) 
 			throws Exception{
 		this.con = con;
+		this.pstmts_are_active = new HashMap<Integer, PreparedStatement>();
 		if(list_type.equals(LIST_TYPE.phishing))
 			BASE_TBL = "phishing";
 		else BASE_TBL = "malware";
+		check_layout();
 		prep_statements();
 	}
 	
@@ -61,13 +94,79 @@ public class db_sb_access{
 	 */
 	public boolean hash_is_active(String hash) throws Exception{
 		
-		boolean is_active = false;
-		pstmt_is_active.setString(1, hash);
-		ResultSet rs = pstmt_is_active.executeQuery();
-		if(rs.next() && rs.getInt(1) > 0)
-			is_active = true;
+		long start = System.nanoTime();
+		try{
+			Boolean is_active;
+			try{is_active = query_is_active(hash);
+			} catch(Exception e){
+				if(!check_layout())
+					throw e;
+				is_active = null;
+			} // A failure may be a changed layout
+			if(is_active == null)
+				is_active = query_is_active(hash); // Retry, in the new layout
+			sb_metrics.get().record_db_query(start, false);
+			return(is_active != null && is_active);
+		} catch(Exception e){
+			sb_metrics.get().record_db_query(start, true);
+			throw e;
+		} // Each call is one round-trip
+	}
+	
+	/**
+	 * Determine which of several hashes are actively listed on a blacklist,
+	 * using a single DB round-trip (rather than one per hash).
+	 * @param hashes Hash-codes corresponding to potential blacklist items
+	 * @return Array parallel to 'hashes', where element 'i' is TRUE if 
+	 * hashes[i] is active on the Google list type provided at construction.
+	 */
+	public boolean[] hashes_are_active(List<String> hashes) throws Exception{
+		
+		boolean[] are_active = new boolean[hashes.size()];
+		if(hashes.isEmpty())
+			return(are_active);
+		
+		Set<String> matches;
+		long start = System.nanoTime();
+		try{
+			try{matches = query_are_active(hashes);
+			} catch(Exception e){
+				if(!check_layout())
+					throw e;
+				matches = null;
+			} // A failure may be a changed layout
+			if(matches == null)
+				matches = query_are_active(hashes); // Retry, in the new layout
+			if(matches == null)
+				matches = new HashSet<String>();
+		} catch(Exception e){
+			sb_metrics.get().record_db_query(start, true);
+			throw e;
+		} // One round-trip, however many hashes
+		sb_metrics.get().record_db_query(start, false);
+		
+		if(!matches.isEmpty()){
+			for(int i=0; i < hashes.size(); i++)
+				are_active[i] = matches.contains(hashes.get(i).toLowerCase());
+		} // The common case (no matches) needs no further work
+		return(are_active);
+	}
+	
+	/**
+	 * Return the blacklist version our local DB contains.
+	 * @return the blacklist version our local DB contains. Negative one
+	 * (-1) is returned if no log history exists.
+	 */
+	public int get_local_version_id() throws Exception{
+		int local_vid = -1;
+		ResultSet rs = pstmt_version.executeQuery();
+		if(rs.next()){
+			local_vid = rs.getInt(1);
+			if(rs.wasNull())
+				local_vid = -1;
+		} // Check ResultSet. Note that NULL will parse to int as "0"
 		rs.close();
-		return(is_active);
+		return(local_vid);
 	}
 	
 	/**
@@ -75,17 +174,107 @@ public class db_sb_access{
 	 */
 	public void shutdown() throws Exception{
 		pstmt_is_active.close();
+		pstmt_version.close();
+		for(PreparedStatement pstmt : pstmts_are_active.values())
+			pstmt.close();
+		pstmts_are_active.clear();
 	}
 	
 	
 	// *************************** PRIVATE METHODS ***************************
 	
+	/**
+	 * Re-detect the layout of the HASH column of [BASE_TBL]. A table 
+	 * converted while this process runs would otherwise be bound hex 
+	 * strings, which match no binary key: lookups would silently miss.
+	 * @return TRUE if the layout changed since last detected
+	 */
+	private boolean check_layout() throws Exception{
+		boolean was_binary = hash_binary;
+		hash_binary = sb_tables.hash_is_binary(con, BASE_TBL);
+		return(hash_binary != was_binary);
+	}
+	
+	/**
+	 * Compare the layout of the HASH column, per the metadata of a lookup
+	 * result, against the layout its hashes were bound in. Costs no
+	 * round-trip, as the metadata arrives with the result.
+	 * @param rs Result of a lookup, whose first column is HASH
+	 * @return TRUE if the layout changed (and 'hash_binary' was updated)
+	 */
+	private boolean layout_changed(ResultSet rs) throws Exception{
+		boolean binary = sb_tables.hash_is_binary(rs.getMetaData(), 1);
+		if(binary == hash_binary)
+			return(false);
+		hash_binary = binary;
+		return(true);
+	}
+	
+	/**
+	 * Query whether a single hash is active, under the current layout.
+	 * @param hash Hash-code corresponding to potential blacklist item
+	 * @return TRUE if 'hash' is active; FALSE, otherwise. NULL if the
+	 * layout had changed, so that the query should be retried.
+	 */
+	private Boolean query_is_active(String hash) throws Exception{
+		sb_tables.set_hash(pstmt_is_active, 1, hash, hash_binary);
+		ResultSet rs = pstmt_is_active.executeQuery();
+		boolean is_active = rs.next();
+		boolean changed = (!is_active && layout_changed(rs));
+		rs.close();
+		return(changed ? null : is_active);
+	} // A match implies a correct layout, so only misses are checked
+	
+	/**
+	 * Query which of several hashes are active, under the current layout.
+	 * @param hashes Hash-codes corresponding to potential blacklist items
+	 * @return Set of those 'hashes' which are active, as lower-case hex.
+	 * NULL if the layout had changed, so that the query should be retried.
+	 */
+	private Set<String> query_are_active(List<String> hashes) 
+			throws Exception{
+		PreparedStatement pstmt = pstmt_are_active(hashes.size());
+		for(int i=0; i < hashes.size(); i++)
+			sb_tables.set_hash(pstmt, i+1, hashes.get(i), hash_binary);
+		Set<String> matches = new HashSet<String>();
+		ResultSet rs = pstmt.executeQuery();
+		while(rs.next())
+			matches.add(sb_tables.get_hash(rs, 1, hash_binary));
+		boolean changed = (matches.isEmpty() && layout_changed(rs));
+		rs.close();
+		return(changed ? null : matches);
+	} // A match implies a correct layout, so only misses are checked
+	
 	/**
 	 * Prepare all SQL statements required by this class instance. 
 	 */
 	private void prep_statements() throws Exception{	
-		String is_active = "SELECT COUNT(*) FROM " + BASE_TBL + " WHERE HASH=?";
+		String is_active = "SELECT HASH FROM " + BASE_TBL + 
+				" WHERE HASH=? LIMIT 1"; // HASH, so the layout can be read
 		pstmt_is_active = con.prepareStatement(is_active);
+		String version = "SELECT MAX(VERSION_ID) FROM " + BASE_TBL + "_log";
+		pstmt_version = con.prepareStatement(version);
+	}
+	
+	/**
+	 * Return the (lazily prepared) multi-hash lookup for some IN-list size.
+	 * @param num_hashes Number of hashes to be looked up by the statement
+	 * @return Statement of the form "SELECT HASH ... WHERE HASH IN (?,..,?)"
+	 * taking exactly 'num_hashes' parameters
+	 */
+	private PreparedStatement pstmt_are_active(int num_hashes) 
+			throws Exception{
+		PreparedStatement pstmt = pstmts_are_active.get(num_hashes);
+		if(pstmt == null){
+			StringBuilder sql = new StringBuilder("SELECT DISTINCT HASH FROM " + 
+					BASE_TBL + " WHERE HASH IN (?");
+			for(int i=1; i < num_hashes; i++)
+				sql.append(",?");
+			sql.append(")");
+			pstmt = con.prepareStatement(sql.toString());
+			pstmts_are_active.put(num_hashes, pstmt);
+		} // Prepare each arity only once
+		return(pstmt);
 	}
 
 }
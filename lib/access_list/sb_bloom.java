@@ -0,0 +1,281 @@
+package access_list;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import list_store.sb_tables;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_bloom.java - A Bloom filter over the hashes on one
+ * active Safe Browsing blacklist, placed in front of the database as a
+ * negative prefilter. Nearly every URL looked up is clean; for those, the
+ * filter proves (with no false negatives) that no form is listed, and the
+ * DB is never queried. Only the few forms the filter admits go to MySQL.
+ *
+ * Keys are MD5 hashes, already uniform, so the k bit positions of a key are
+ * derived from its two halves by double hashing (hi + i*lo), with no further
+ * hashing. As with [sb_hash_index], the filter is tagged with the list
+ * version it was built at, and rebuilt (off to the side, then swapped in)
+ * when the DB moves to a newer version.
+ */
+public class sb_bloom{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Default target false-positive rate.
+	 */
+	public static final double DEFAULT_FP_RATE = 0.01;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Blacklist whose active hashes are summarized by this filter.
+	 */
+	private final LIST_TYPE list_type;
+
+	/**
+	 * Target false-positive rate, per which the filter is sized.
+	 */
+	private final double fp_rate;
+
+	/**
+	 * Connection to the local [safe_browsing] database.
+	 */
+	private Connection con;
+
+	/**
+	 * The current filter. Replaced wholesale on rebuild.
+	 */
+	private volatile bit_array filter;
+
+	/**
+	 * Statistics: lookups checked, lookups the filter rejected (so the DB
+	 * was skipped), lookups it passed to the DB, and of those passed, the
+	 * number the DB found not to be listed (false positives).
+	 */
+	private final AtomicLong num_checks, num_rejected, num_passed,
+			num_false_pos;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [sb_bloom], building it over all active hashes of a list.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param list_type Blacklist whose hashes should be summarized
+	 * @param fp_rate Target false-positive rate, in (0,1)
+	 */
+	public sb_bloom(Connection con, LIST_TYPE list_type, double fp_rate)
+			throws Exception{
+		this.con = con;
+		this.list_type = list_type;
+		this.fp_rate = fp_rate;
+		this.num_checks = new AtomicLong();
+		this.num_rejected = new AtomicLong();
+		this.num_passed = new AtomicLong();
+		this.num_false_pos = new AtomicLong();
+		this.filter = build_filter();
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Determine if some hash may be present on the list.
+	 * @param hi Most-significant 64 bits of the MD5 hash
+	 * @param lo Least-significant 64 bits of the MD5 hash
+	 * @return FALSE if the hash is certainly not on the list (as of the
+	 * version built at). TRUE if it may be, and the DB must be consulted.
+	 */
+	public boolean might_contain(long hi, long lo){
+		return(this.filter.might_contain(hi, lo));
+	}
+
+	/**
+	 * Record the outcome of consulting the filter for one lookup.
+	 * @param passed TRUE if any form passed the filter (so the DB was
+	 * queried). FALSE if the filter rejected every form.
+	 */
+	public void record_lookup(boolean passed){
+		num_checks.incrementAndGet();
+		if(passed)
+			num_passed.incrementAndGet();
+		else num_rejected.incrementAndGet();
+	}
+
+	/**
+	 * Record that a lookup passed by the filter was not, per the DB, listed.
+	 */
+	public void record_false_positive(){
+		num_false_pos.incrementAndGet();
+	}
+
+	/**
+	 * Rebuild the filter, but only if the DB holds a newer list version.
+	 * @return TRUE if a rebuild was performed. FALSE, otherwise.
+	 */
+	public boolean rebuild_if_stale() throws Exception{
+		if(sb_tables.version_id(con, list_type.toString()) == filter.version)
+			return(false);
+		this.filter = build_filter();
+		return(true);
+	}
+
+	/**
+	 * Return the list version the filter currently reflects.
+	 * @return Local list version from which the filter was built
+	 */
+	public int version(){
+		return(this.filter.version);
+	}
+
+	/**
+	 * Summarize the size and effectiveness of the filter.
+	 * @return Human-readable summary of filter size and hit/miss counters
+	 */
+	public String report(){
+		bit_array cur = this.filter;
+		long checks = num_checks.get(), rejected = num_rejected.get();
+		long passed = num_passed.get(), false_pos = num_false_pos.get();
+		return(list_type + " prefilter: " + cur.num_keys + " hashes in " +
+				cur.num_bits + " bits (" + (cur.bits.length * 8L) + " bytes, " +
+				cur.num_hashes + " probes, target FP " + fp_rate + "), " +
+				"version " + cur.version + "; " + checks + " lookups, " +
+				rejected + " rejected (" + percent(rejected, checks) + "), " +
+				passed + " to DB, " + false_pos + " false positives (" +
+				percent(false_pos, passed) + " of those to DB)");
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Build a filter over all hashes of the active list table, sized by
+	 * their count and the target false-positive rate. The version is read
+	 * first, so if an update lands mid-build, the filter is simply rebuilt.
+	 * @return Filter containing all hashes on the active list
+	 */
+	private bit_array build_filter() throws Exception{
+
+		int version = sb_tables.version_id(con, list_type.toString());
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + list_type);
+		int expected = (rs.next() ? rs.getInt(1) : 0);
+		rs.close();
+
+		bit_array built = new bit_array(expected, fp_rate, version);
+		boolean binary = sb_tables.hash_is_binary(con, list_type.toString());
+		rs = stmt.executeQuery("SELECT HASH FROM " + list_type);
+		while(rs.next()){
+			if(binary){
+				byte[] key = rs.getBytes(1);
+				built.add(url_hasher.bytes_to_long(key, 0),
+						url_hasher.bytes_to_long(key, 8));
+			} else{
+				String hash = rs.getString(1);
+				built.add(gen_utils.hex_to_long(hash, 0),
+						gen_utils.hex_to_long(hash, 16));
+			} // Keys are read per the storage layout of the table
+		} // Add every hash present on the active table
+		rs.close();
+		stmt.close();
+		return(built);
+	}
+
+	/**
+	 * Format a ratio as a percentage.
+	 * @param num Numerator
+	 * @param den Denominator
+	 * @return 'num'/'den' as a percentage string, e.g., "93.1%"
+	 */
+	private static String percent(long num, long den){
+		if(den == 0)
+			return("0.0%");
+		return((Math.round(1000.0 * num / den) / 10.0) + "%");
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * The bits of a Bloom filter, and the parameters it was built with.
+	 */
+	private static class bit_array{
+
+		/**
+		 * The filter bits, 64 per word.
+		 */
+		final long[] bits;
+
+		/**
+		 * Number of bits in the filter (a multiple of 64).
+		 */
+		final long num_bits;
+
+		/**
+		 * Number of bit positions set (and probed) per key.
+		 */
+		final int num_hashes;
+
+		/**
+		 * List version from which this filter was built.
+		 */
+		final int version;
+
+		/**
+		 * Number of keys added to the filter.
+		 */
+		int num_keys;
+
+		/**
+		 * Create an empty filter, sized for some number of keys.
+		 * @param expected Number of keys expected to be added
+		 * @param fp_rate Target false-positive rate at that many keys
+		 * @param version List version from which filter is built
+		 */
+		bit_array(int expected, double fp_rate, int version){
+			double n = Math.max(expected, 1);
+			double ln2 = Math.log(2);
+			long m = (long) Math.ceil(-n * Math.log(fp_rate) / (ln2 * ln2));
+			this.bits = new long[(int) Math.max((m + 63) / 64, 1)];
+			this.num_bits = 64L * bits.length;
+			this.num_hashes = (int) Math.max(Math.round(num_bits / n * ln2), 1);
+			this.version = version;
+		}
+
+		/**
+		 * Add a key to the filter. Only before it is visible to readers.
+		 */
+		void add(long key_hi, long key_lo){
+			long h = key_hi;
+			for(int i=0; i < num_hashes; i++){
+				long bit = (h & Long.MAX_VALUE) % num_bits;
+				bits[(int) (bit >>> 6)] |= (1L << bit);
+				h += key_lo;
+			} // Set each of the key's bit positions
+			num_keys++;
+		}
+
+		/**
+		 * Determine if a key may have been added to the filter.
+		 */
+		boolean might_contain(long key_hi, long key_lo){
+			long h = key_hi;
+			for(int i=0; i < num_hashes; i++){
+				long bit = (h & Long.MAX_VALUE) % num_bits;
+				if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+					return(false);
+				h += key_lo;
+			} // Any unset position proves absence
+			return(true);
+		}
+	}
+
+}
@@ -0,0 +1,410 @@
+package access_list;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import list_store.sb_tables;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_hash_index.java - An in-memory copy of the hashes
+ * on one active Safe Browsing blacklist. Each MD5 is stored as a pair of
+ * primitive longs in an open-addressed (linear probing) table, so that no
+ * per-hash objects exist, and a lookup is a handful of array probes.
+ *
+ * The index is tagged with the local list version it was loaded at (per
+ * [sb_tables.get_local_version_id]), and can be reloaded when the
+ * database moves to a newer version. Where the updater's change-feed
+ * ([list]_delta) covers every version since, only those changes are read
+ * and applied; otherwise the whole list is re-read. Either way, the new
+ * table is built off to the side (a copy, for deltas) and swapped in, so
+ * concurrent readers always see a whole table.
+ */
+public class sb_hash_index implements sb_key_set{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Maximum fraction of table slots that may be occupied. Linear probing
+	 * stays fast (few probes per lookup) while the table is half empty.
+	 */
+	private static final double MAX_LOAD = 0.5;
+
+	/**
+	 * Blacklist whose active hashes are held by this index.
+	 */
+	private final LIST_TYPE list_type;
+
+	/**
+	 * Connection to the local [safe_browsing] database.
+	 */
+	private Connection con;
+
+	/**
+	 * The currently loaded table of hashes. Replaced wholesale on reload.
+	 */
+	private volatile key_table table;
+
+	/**
+	 * Number of reloads performed by applying deltas, and by re-reading.
+	 */
+	private volatile long num_delta_reloads, num_full_reloads;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [sb_hash_index], loading all active hashes of a list.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param list_type Blacklist whose hashes should be indexed
+	 */
+	public sb_hash_index(Connection con, LIST_TYPE list_type)
+			throws Exception{
+		this.con = con;
+		this.list_type = list_type;
+		this.table = load_table();
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Determine if some hash is present in the index.
+	 * @param hash MD5 hash, as a string of 32 hex characters
+	 * @return TRUE if 'hash' was active on the list when last (re)loaded.
+	 * FALSE, otherwise.
+	 */
+	public boolean contains_hex(String hash){
+		return(this.table.contains(gen_utils.hex_to_long(hash, 0),
+				gen_utils.hex_to_long(hash, 16)));
+	}
+
+	/**
+	 * Determine if some hash is present in the index.
+	 * @param hi Most-significant 64 bits of the MD5 hash
+	 * @param lo Least-significant 64 bits of the MD5 hash
+	 * @return TRUE if the hash was active on the list when last (re)loaded.
+	 * FALSE, otherwise.
+	 */
+	public boolean contains(long hi, long lo){
+		return(this.table.contains(hi, lo));
+	}
+
+	/**
+	 * Reload the index, but only if the DB holds a newer list version.
+	 * The change-feed is used where possible, else the list is re-read.
+	 * @return TRUE if a reload was performed. FALSE, otherwise.
+	 */
+	public boolean reload_if_stale() throws Exception{
+		int db_version = sb_tables.version_id(con, list_type.toString());
+		key_table cur = this.table;
+		if(db_version == cur.version)
+			return(false);
+		key_table updated = apply_deltas(cur, db_version);
+		if(updated != null)
+			num_delta_reloads++;
+		else{
+			updated = load_table();
+			num_full_reloads++;
+		} // Fall back to a full reload if the feed is incomplete
+		this.table = updated;
+		return(true);
+	}
+
+	/**
+	 * Return the list version the index currently reflects.
+	 * @return Local list version at which the index was (re)loaded
+	 */
+	public int version(){
+		return(this.table.version);
+	}
+
+	/**
+	 * Return the number of hashes currently indexed.
+	 * @return Number of hashes currently indexed
+	 */
+	public int size(){
+		return(this.table.size);
+	}
+
+	/**
+	 * Return the approximate heap consumed by the index.
+	 * @return Bytes held by the key arrays of the index
+	 */
+	public long memory_bytes(){
+		return(16L * this.table.hi.length);
+	}
+
+	/**
+	 * Summarize the size of the index, for purposes of heap sizing.
+	 * @return Human-readable summary of index population and memory use
+	 */
+	public String memory_report(){
+		key_table cur = this.table;
+		long bytes = 16L * cur.hi.length;
+		return(list_type + " index: " + cur.size + " hashes in " +
+				cur.hi.length + " slots, " + bytes + " bytes (" +
+				(cur.size == 0 ? 0 : bytes / cur.size) + " bytes/hash), " +
+				"version " + cur.version + " (" + num_delta_reloads + 
+				" delta reloads, " + num_full_reloads + " full reloads)");
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Read all hashes of the active list table into a new key table. The
+	 * version is read first, so if an update lands mid-load the index is
+	 * tagged as older than its content, and simply reloads again later.
+	 * @return Table containing all hashes on the active list
+	 */
+	private key_table load_table() throws Exception{
+
+		int version = sb_tables.version_id(con, list_type.toString());
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + list_type);
+		int expected = (rs.next() ? rs.getInt(1) : 0);
+		rs.close();
+
+		key_table loaded = new key_table(expected, version);
+		boolean binary = sb_tables.hash_is_binary(con, list_type.toString());
+		rs = stmt.executeQuery("SELECT HASH FROM " + list_type);
+		while(rs.next()){
+			if(binary){
+				byte[] key = rs.getBytes(1);
+				loaded.add(url_hasher.bytes_to_long(key, 0), 
+						url_hasher.bytes_to_long(key, 8));
+			} else{
+				String hash = rs.getString(1);
+				loaded.add(gen_utils.hex_to_long(hash, 0), gen_utils.hex_to_long(hash, 16));
+			} // Keys are read per the storage layout of the table
+		} // Add every hash present on the active table
+		rs.close();
+		stmt.close();
+		return(loaded);
+	}
+
+
+	/**
+	 * Build a copy of a key table, brought up to date by applying the
+	 * change-feed of every version since the table's own.
+	 * @param cur Table to be brought up to date (it is not modified)
+	 * @param latest Most recent list version held in the DB
+	 * @return Up-to-date table, or NULL if the change-feed does not cover
+	 * every version in (cur.version, latest] -- the caller should then
+	 * re-read the whole list
+	 */
+	private key_table apply_deltas(key_table cur, int latest){
+		if(cur.version < 0)
+			return(null);
+		String delta_tbl = list_type + "_delta";
+		String range = " VERSION_ID>" + cur.version + " AND VERSION_ID<=" + 
+				latest;
+		try{Statement stmt = con.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT COUNT(DISTINCT " + 
+					"VERSION_ID) FROM " + list_type + "_log WHERE" + range);
+			int num_versions = (rs.next() ? rs.getInt(1) : -1);
+			rs.close();
+			rs = stmt.executeQuery("SELECT COUNT(DISTINCT VERSION_ID) FROM " +
+					delta_tbl + " WHERE OP=" + sb_tables.DELTA_DONE + 
+					" AND" + range);
+			int num_complete = (rs.next() ? rs.getInt(1) : -2);
+			rs.close();
+			if(num_versions != num_complete){
+				stmt.close();
+				return(null);
+			} // Some version's feed was never recorded (or was pruned)
+
+			key_table updated = new key_table(cur, latest);
+			boolean binary = sb_tables.hash_is_binary(con, delta_tbl);
+			rs = stmt.executeQuery("SELECT HASH,OP FROM " + delta_tbl + 
+					" WHERE OP!=" + sb_tables.DELTA_DONE + " AND" + range +
+					" ORDER BY VERSION_ID,SEQ");
+			while(rs.next()){
+				long hi, lo;
+				if(binary){
+					byte[] key = rs.getBytes(1);
+					hi = url_hasher.bytes_to_long(key, 0);
+					lo = url_hasher.bytes_to_long(key, 8);
+				} else{
+					String hash = rs.getString(1);
+					hi = gen_utils.hex_to_long(hash, 0);
+					lo = gen_utils.hex_to_long(hash, 16);
+				} // Keys are read per the storage layout of the table
+				if(rs.getInt(2) == sb_tables.DELTA_ADD)
+					updated.add(hi, lo);
+				else updated.remove(hi, lo);
+			} // Replay changes in the order they were applied
+			rs.close();
+			stmt.close();
+			return(updated);
+		} catch(Exception e){return(null);} // e.g., no feed table yet
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * Open-addressed set of 128-bit keys. Slot (0,0) marks
+	 * an empty slot, so the all-zero key is tracked with a separate flag.
+	 */
+	private static class key_table{
+
+		/**
+		 * Most-significant 64 bits of the key in each slot.
+		 */
+		long[] hi;
+
+		/**
+		 * Least-significant 64 bits of the key in each slot.
+		 */
+		long[] lo;
+
+		/**
+		 * List version from which this table was loaded.
+		 */
+		final int version;
+
+		/**
+		 * Number of distinct keys held in the table.
+		 */
+		int size;
+
+		/**
+		 * TRUE if the (0,0) key is a member of the set.
+		 */
+		boolean has_zero;
+
+		/**
+		 * Create a table capable of holding some number of keys.
+		 * @param expected Number of keys expected to be added
+		 * @param version List version from which table is loaded
+		 */
+		key_table(int expected, int version){
+			int capacity = 16;
+			while(capacity * MAX_LOAD < expected + 1)
+				capacity <<= 1;
+			this.hi = new long[capacity];
+			this.lo = new long[capacity];
+			this.version = version;
+		}
+
+		/**
+		 * Create a copy of a table, to be tagged with a new version.
+		 * @param src Table to be copied
+		 * @param version List version the copy will reflect
+		 */
+		key_table(key_table src, int version){
+			this.hi = src.hi.clone();
+			this.lo = src.lo.clone();
+			this.size = src.size;
+			this.has_zero = src.has_zero;
+			this.version = version;
+		}
+
+		/**
+		 * Add a key to the table (no-op if already present). Should more
+		 * keys arrive than expected, the table grows -- but only during
+		 * a load, before the table becomes visible to readers.
+		 */
+		void add(long key_hi, long key_lo){
+			if(key_hi == 0 && key_lo == 0){
+				if(!has_zero)
+					size++;
+				has_zero = true;
+				return;
+			} // The empty-slot key is special-cased
+			if(size + 1 > hi.length * MAX_LOAD)
+				grow();
+			int mask = hi.length - 1;
+			int slot = spread(key_hi, key_lo) & mask;
+			while(hi[slot] != 0 || lo[slot] != 0){
+				if(hi[slot] == key_hi && lo[slot] == key_lo)
+					return;
+				slot = (slot + 1) & mask;
+			} // Linear probe until an empty slot (or the key) is found
+			hi[slot] = key_hi;
+			lo[slot] = key_lo;
+			size++;
+		}
+
+		/**
+		 * Remove a key from the table (no-op if absent). Later members of
+		 * the key's probe run are shifted back into the gap, so that no
+		 * probe sequence is broken (and no tombstones are needed). As with
+		 * add(), only for tables not yet visible to readers.
+		 */
+		void remove(long key_hi, long key_lo){
+			if(key_hi == 0 && key_lo == 0){
+				if(has_zero)
+					size--;
+				has_zero = false;
+				return;
+			} // The empty-slot key is special-cased
+			int mask = hi.length - 1;
+			int gap = spread(key_hi, key_lo) & mask;
+			while(hi[gap] != key_hi || lo[gap] != key_lo){
+				if(hi[gap] == 0 && lo[gap] == 0)
+					return;
+				gap = (gap + 1) & mask;
+			} // Find the key, or an empty slot proving its absence
+
+			int next = (gap + 1) & mask;
+			while(hi[next] != 0 || lo[next] != 0){
+				int home = spread(hi[next], lo[next]) & mask;
+				if(((next - home) & mask) >= ((next - gap) & mask)){
+					hi[gap] = hi[next];
+					lo[gap] = lo[next];
+					gap = next;
+				} // Keys whose home precedes the gap may move into it
+				next = (next + 1) & mask;
+			} // Backward-shift the remainder of the probe run
+			hi[gap] = 0;
+			lo[gap] = 0;
+			size--;
+		}
+
+		/**
+		 * Determine if some key is a member of the table.
+		 */
+		boolean contains(long key_hi, long key_lo){
+			if(key_hi == 0 && key_lo == 0)
+				return(has_zero);
+			int mask = hi.length - 1;
+			int slot = spread(key_hi, key_lo) & mask;
+			while(hi[slot] != 0 || lo[slot] != 0){
+				if(hi[slot] == key_hi && lo[slot] == key_lo)
+					return(true);
+				slot = (slot + 1) & mask;
+			} // An empty slot ends the probe sequence
+			return(false);
+		}
+
+		/**
+		 * Double the capacity of the table, re-inserting all keys.
+		 */
+		void grow(){
+			long[] old_hi = hi, old_lo = lo;
+			hi = new long[old_hi.length * 2];
+			lo = new long[old_lo.length * 2];
+			size = (has_zero ? 1 : 0);
+			for(int i=0; i < old_hi.length; i++){
+				if(old_hi[i] != 0 || old_lo[i] != 0)
+					add(old_hi[i], old_lo[i]);
+			} // Re-probe every occupied slot into the larger arrays
+		}
+
+		/**
+		 * Derive a slot index from a key. MD5 output is already uniform,
+		 * so folding the two halves together is sufficient.
+		 */
+		static int spread(long key_hi, long key_lo){
+			long h = key_hi ^ key_lo;
+			return((int) (h ^ (h >>> 32)));
+		}
+	}
+
+}
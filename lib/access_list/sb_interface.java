@@ -3,12 +3,18 @@ package access_list;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.security.MessageDigest;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.StringTokenizer;
 
+import list_store.embedded_store;
+import list_store.sb_access;
+
+import access_list.sb_metrics.STAGE;
+
 import common_utils.db_con;
 import common_utils.db_con.DBS;
 import common_utils.gen_utils.LIST_TYPE;
@@ -19,32 +25,161 @@ import common_utils.gen_utils.LIST_TYPE;
  * MD5 hash of some URL (and its many reduced forms).
  * 
  * Note that this class is non-static so that consistent database connections
- * can be maintained, making batch processing far-far quicker.
+ * can be maintained, making batch processing far-far quicker. Connections
+ * are borrowed from (and returned to) the [db_con] connection pool.
+ *
+ * Lookups may instead be answered from local copies of the lists: either
+ * in-memory indexes (loaded from the DB), or memory-mapped snapshot files
+ * (written by the updater), the latter requiring no DB connection at all.
+ * Or, the lists may be stored in-process altogether (see 
+ * [list_store.sb_access]).
  */
 public class sb_interface{
 	
 	// **************************** PRIVATE FIELDS ***************************
 
 	/**
-	 * DB-handler providing access to Google Safe-Browsing data.
+	 * Milliseconds between reads of the DB list versions, which tag the
+	 * results placed in (and validate those taken from) a result cache.
+	 */
+	private static final long VERSION_CHECK_MS = 1000;
+
+	/**
+	 * Blacklists handled by this interface.
+	 */
+	private final EnumSet<LIST_TYPE> lists;
+	
+	/**
+	 * DB-handlers providing access to Google Safe-Browsing data, one per 
+	 * list. All MySQL handlers share a single DB connection.
+	 */
+	private EnumMap<LIST_TYPE, sb_access> db_handlers; 
+	
+	/**
+	 * Optional local copies of the active lists (in-memory indexes or
+	 * snapshots). When present, lookups are answered from them rather than
+	 * from the database.
+	 */
+	private EnumMap<LIST_TYPE, sb_key_set> indexes;
+	
+	/**
+	 * Optional Bloom filters over the active DB lists (see [sb_bloom]). When
+	 * present, forms the filter rejects are never sent to the database.
 	 */
-	private db_sb_access db_handler; 
+	private EnumMap<LIST_TYPE, sb_bloom> prefilters;
 	
 	/**
-	 * Connection to the local [safe_browsing ] database.
+	 * Connection to the local [safe_browsing ] database (NULL if lookups
+	 * are answered entirely from snapshot files).
 	 */
 	private Connection con;
 	
+	/**
+	 * Reusable buffers holding the 128-bit keys (the MD5 hashes) of the
+	 * forms of the URL being looked up. Grown as needed.
+	 */
+	private long[] form_hi = new long[32], form_lo = new long[32];
+	
+	/**
+	 * Optional cache of lookup results (possibly shared with other
+	 * interfaces). NULL if every lookup should be computed.
+	 */
+	private sb_result_cache cache;
+	
+	/**
+	 * Version of each list (by ordinal) that lookups are answered against,
+	 * as last read for purposes of the result cache.
+	 */
+	private int[] versions = new int[LIST_TYPE.values().length];
+	
+	/**
+	 * Time (in ms.) at which the DB list versions were last read.
+	 */
+	private long versions_read_ms = Long.MIN_VALUE;
+	
 	
 	// ***************************** CONSTRUCTORS ****************************
 	
+	/**
+	 * Construct an [sb_interface] over all lists, intializing database 
+	 * structs. A single lookup will then check every list at once.
+	 */
+	public sb_interface() throws Exception{
+		this(EnumSet.allOf(LIST_TYPE.class), false);
+	}
+	
 	/**
 	 * Construct an [sb_interface], intializing database structs.
 	 * @param list_type Blacklist which an interface is being provided to
 	 */
 	public sb_interface(LIST_TYPE list_type) throws Exception{
-		this.con = db_con.get_con(DBS.safe_browsing);
-		this.db_handler = new db_sb_access(con, list_type); 
+		this(EnumSet.of(list_type), false);
+	}
+	
+	/**
+	 * Construct an [sb_interface], intializing database structs.
+	 * @param list_type Blacklist which an interface is being provided to
+	 * @param in_memory TRUE if the active list should be loaded into an
+	 * in-memory index, so lookups require no DB round-trips. FALSE if every
+	 * lookup should query the database.
+	 */
+	public sb_interface(LIST_TYPE list_type, boolean in_memory) 
+			throws Exception{
+		this(EnumSet.of(list_type), in_memory);
+	}
+	
+	/**
+	 * Construct an [sb_interface], intializing database structs.
+	 * @param lists Blacklists which an interface is being provided to
+	 * @param in_memory TRUE if the active lists should be loaded into 
+	 * in-memory indexes, so lookups require no DB round-trips. FALSE if 
+	 * every lookup should query the database.
+	 */
+	public sb_interface(EnumSet<LIST_TYPE> lists, boolean in_memory) 
+			throws Exception{
+		this.lists = EnumSet.copyOf(lists);
+		this.con = db_con.borrow_con(DBS.safe_browsing);
+		this.db_handlers = new EnumMap<LIST_TYPE, sb_access>(LIST_TYPE.class);
+		this.indexes = new EnumMap<LIST_TYPE, sb_key_set>(LIST_TYPE.class);
+		this.prefilters = new EnumMap<LIST_TYPE, sb_bloom>(LIST_TYPE.class);
+		for(LIST_TYPE list_type : this.lists){
+			this.db_handlers.put(list_type, new db_sb_access(con, list_type));
+			if(in_memory)
+				this.indexes.put(list_type, new sb_hash_index(con, list_type));
+		} // Initialize structs for each of the lists being handled
+	}
+	
+	/**
+	 * Construct an [sb_interface] answering lookups from memory-mapped
+	 * snapshot files (see [sb_snapshot]), with no database connection.
+	 * @param lists Blacklists which an interface is being provided to
+	 * @param snapshot_dir Directory holding the snapshot files of 'lists'
+	 */
+	public sb_interface(EnumSet<LIST_TYPE> lists, String snapshot_dir) 
+			throws Exception{
+		this.lists = EnumSet.copyOf(lists);
+		this.con = null;
+		this.db_handlers = new EnumMap<LIST_TYPE, sb_access>(LIST_TYPE.class);
+		this.indexes = new EnumMap<LIST_TYPE, sb_key_set>(LIST_TYPE.class);
+		this.prefilters = new EnumMap<LIST_TYPE, sb_bloom>(LIST_TYPE.class);
+		for(LIST_TYPE list_type : this.lists)
+			this.indexes.put(list_type, new sb_snapshot(snapshot_dir, list_type));
+	}
+	
+	/**
+	 * Construct an [sb_interface] answering lookups from an in-process 
+	 * store (see [list_store.embedded_store]), with no database connection.
+	 * @param lists Blacklists which an interface is being provided to
+	 * @param store Store holding (at least) 'lists'
+	 */
+	public sb_interface(EnumSet<LIST_TYPE> lists, embedded_store store){
+		this.lists = EnumSet.copyOf(lists);
+		this.con = null;
+		this.db_handlers = new EnumMap<LIST_TYPE, sb_access>(LIST_TYPE.class);
+		this.indexes = new EnumMap<LIST_TYPE, sb_key_set>(LIST_TYPE.class);
+		this.prefilters = new EnumMap<LIST_TYPE, sb_bloom>(LIST_TYPE.class);
+		for(LIST_TYPE list_type : this.lists)
+			this.db_handlers.put(list_type, store.access(list_type));
 	}
 	
 	
@@ -56,16 +191,15 @@ public class sb_interface{
 	 */
 	public static void main(String[] args) throws Exception{
 		
-		sb_interface face_phishing = new sb_interface(LIST_TYPE.phishing);
-		sb_interface face_malware = new sb_interface(LIST_TYPE.malware);
+		sb_interface face = new sb_interface();
 		
 		String url = "http://malware.testing.google.test/testing/malware/";
+		EnumSet<LIST_TYPE> active = face.active_lists(url);
 		System.out.println("URL: " + url);
-		System.out.println("Phishing: " + face_phishing.url_is_active(url));
-		System.out.println("Malware: " + face_malware.url_is_active(url));
+		System.out.println("Phishing: " + active.contains(LIST_TYPE.phishing));
+		System.out.println("Malware: " + active.contains(LIST_TYPE.malware));
 		
-		face_phishing.shutdown();
-		face_malware.shutdown();
+		face.shutdown();
 	}
 	
 	
@@ -77,55 +211,281 @@ public class sb_interface{
 	 * format possible. This method will perform all canonicalization and
 	 * perform all attempts for any reduced forms.
 	 * @return TRUE if 'url' or one of its acceptable sub-forms is actively
-	 * listed. Otherwise, FALSE will be returned.
+	 * listed on any list handled by this interface. Otherwise, FALSE.
 	 */
 	public boolean url_is_active(String url) throws Exception{
+		return(!active_lists(url).isEmpty());
+	}
+	
+	/**
+	 * Determine the Google blacklists on which some URL is actively listed.
+	 * The URL is canonicalized, reduced, and hashed just once, no matter
+	 * how many lists are handled by this interface.
+	 * @param url URL to check. It should be passed in the most complete 
+	 * format possible. This method will perform all canonicalization and
+	 * perform all attempts for any reduced forms.
+	 * @return Set of lists (among those handled by this interface) on which
+	 * 'url' or one of its acceptable sub-forms is actively listed. 
+	 */
+	public EnumSet<LIST_TYPE> active_lists(String url) throws Exception{
 		
-		List<String> url_forms = get_url_forms(canonical_url(url));
-		for(int i=0; i < url_forms.size(); i++){
-			if(this.db_handler.hash_is_active(hash_from_url(url_forms.get(i))))
-				return(true);
-		} // Iterate over legal sub-formats of original url
-		return(false);
+		sb_metrics metrics = sb_metrics.get();
+		long start = System.nanoTime();
+		try{
+			EnumSet<LIST_TYPE> active = lookup(url, metrics);
+			metrics.record(STAGE.lookup, start);
+			for(LIST_TYPE list_type : active)
+				metrics.record_hit(list_type);
+			return(active);
+		} catch(Exception e){
+			metrics.record_error();
+			throw e;
+		} // Time (and count the outcome of) every lookup, cached or not
+	}
+	
+	/**
+	 * Answer repeat lookups from a cache of results, keyed by canonical URL.
+	 * Cached results are discarded once any list they cover is at a newer
+	 * version: for in-memory indexes, snapshots, and prefiltered lists, as
+	 * soon as the newer version is loaded; for plain DB lookups, within 
+	 * VERSION_CHECK_MS of the update being logged.
+	 * @param cache Result cache to use, which may be shared with other
+	 * interfaces (over the same lists), or NULL to stop caching
+	 */
+	public void use_cache(sb_result_cache cache){
+		this.cache = cache;
 	}
 	
 	/**
-	 * Shutdown all database objects created by this handler.
+	 * Place a Bloom filter (see [sb_bloom]) in front of every list that is
+	 * looked up in the database, so that URLs whose forms are certainly not
+	 * listed require no DB round-trip. Lists answered from an in-memory
+	 * index or snapshot are unaffected. Filters are rebuilt by reload_index()
+	 * when the list version changes; between rebuilds, hashes newly added to
+	 * a list may go unseen, just as with the in-memory indexes.
+	 * @param fp_rate Target false-positive rate of the filters, in (0,1)
+	 */
+	public void use_prefilter(double fp_rate) throws Exception{
+		if(fp_rate <= 0.0 || fp_rate >= 1.0)
+			throw new IllegalArgumentException("Bad FP rate: " + fp_rate);
+		if(this.con == null)
+			throw new Exception("Prefilters are built from the MySQL database");
+		for(LIST_TYPE list_type : this.lists){
+			if(!this.indexes.containsKey(list_type))
+				this.prefilters.put(list_type, 
+						new sb_bloom(this.con, list_type, fp_rate));
+		} // Only DB-backed lists benefit from a prefilter
+	}
+	
+	/**
+	 * If in-memory indexes (or snapshots) or prefilters are in use, reload 
+	 * those for which a newer version of the list exists. This is a no-op 
+	 * for plain DB lookups.
+	 * @return TRUE if any index or filter was reloaded. FALSE, otherwise.
+	 */
+	public boolean reload_index() throws Exception{
+		boolean reloaded = false;
+		for(sb_key_set index : this.indexes.values())
+			reloaded |= index.reload_if_stale();
+		for(sb_bloom prefilter : this.prefilters.values())
+			reloaded |= prefilter.rebuild_if_stale();
+		return(reloaded);
+	}
+	
+	/**
+	 * Summarize the memory used by the in-memory indexes and prefilters, 
+	 * if any, along with the hit/miss counts of the prefilters.
+	 * @return Human-readable summary of index memory use (one line per 
+	 * list), or NULL if lookups are being answered from the database
+	 */
+	public String index_memory_report(){
+		if(this.indexes.isEmpty() && this.prefilters.isEmpty())
+			return(null);
+		StringBuilder report = new StringBuilder();
+		for(sb_key_set index : this.indexes.values()){
+			if(report.length() > 0)
+				report.append("\n");
+			report.append(index.memory_report());
+		} // One line per list being indexed
+		for(sb_bloom prefilter : this.prefilters.values()){
+			if(report.length() > 0)
+				report.append("\n");
+			report.append(prefilter.report());
+		} // One line per list being prefiltered
+		return(report.toString());
+	}
+	
+	/**
+	 * Shutdown all database objects created by this handler, returning
+	 * its connection to the pool.
 	 */
 	public void shutdown() throws Exception{
-		this.db_handler.shutdown();
-		this.con.close();
+		for(sb_access db_handler : this.db_handlers.values())
+			db_handler.shutdown();
+		if(this.con != null)
+			db_con.return_con(DBS.safe_browsing, this.con);
 	}
 	
 	
 	// *************************** PRIVATE METHODS ***************************
 	
 	/**
-	 * Hash a provided String (URL) using the MD5 algorithm.
-	 * @param url URL to be hashed, per Google specification
-	 * @return MD5 hash (a string of hex) of 'url'
+	 * Answer a lookup. See active_lists().
+	 * @param url URL to check
+	 * @param metrics Metrics to which the stages of the lookup are recorded
+	 * @return Set of lists on which 'url' is actively listed
 	 */
-	private static String hash_from_url(String url) throws Exception{
-		MessageDigest hasher = MessageDigest.getInstance("MD5");
-		byte[] raw_hash = hasher.digest(url.getBytes());
-		String str_hash = byte_array_to_hex_str(raw_hash);
-		return(str_hash);
+	private EnumSet<LIST_TYPE> lookup(String url, sb_metrics metrics) 
+			throws Exception{
+		
+		url_forms forms = url_forms.get();
+		String canon_url = null;
+		if(forms.canonicalize(url) && this.cache != null){
+			canon_url = forms.canonical_url();
+			read_versions();
+			EnumSet<LIST_TYPE> cached = cache.get(canon_url, lists, versions);
+			if(cached != null)
+				return(cached);
+		} // Consult the cache (keyed by canonical URL) before forms are made
+		
+		int num_forms = forms.generate_canonical();
+		if(form_hi.length < num_forms){
+			form_hi = new long[num_forms];
+			form_lo = new long[num_forms];
+		} // Key buffers are reused across lookups
+		metrics.record_forms(num_forms);
+		long start = System.nanoTime();
+		url_hasher hasher = url_hasher.get();
+		for(int i=0; i < num_forms; i++){
+			hasher.hash(forms.form(i));
+			form_hi[i] = hasher.hi();
+			form_lo[i] = hasher.lo();
+		} // Hash each form once, keeping only the raw 128-bit key
+		metrics.record(STAGE.hash, start);
+		
+		List<String> hex_hashes = null;
+		EnumSet<LIST_TYPE> active = EnumSet.noneOf(LIST_TYPE.class);
+		for(LIST_TYPE list_type : this.lists){
+			sb_key_set index = this.indexes.get(list_type);
+			if(index != null){
+				start = System.nanoTime();
+				if(index_is_active(index, num_forms))
+					active.add(list_type);
+				metrics.record(STAGE.probe, start);
+				continue;
+			} // In-memory lists need no hex at all
+			sb_bloom prefilter = this.prefilters.get(list_type);
+			if(prefilter != null){
+				List<String> candidates = prefiltered_hashes(prefilter, num_forms);
+				prefilter.record_lookup(candidates != null);
+				if(candidates == null)
+					continue; // No form can be listed; skip the DB entirely
+				if(db_is_active(list_type, candidates))
+					active.add(list_type);
+				else prefilter.record_false_positive();
+				continue;
+			} // Only forms passing the filter need go to the DB
+			if(hex_hashes == null)
+				hex_hashes = hex_hashes(num_forms);
+			if(db_is_active(list_type, hex_hashes))
+				active.add(list_type);
+		} // Check the (shared) hashes against each list
+		if(canon_url != null)
+			cache.put(canon_url, lists, active, versions);
+		return(active);
 	}
 	
 	/**
-	 * Convert a byte array to a hexadecimal String.
-	 * @param b Array of bytes to be converted to hex.
-	 * @return String in lower-case hexadecimal; the conversion of 'b'
+	 * Read the version of each list lookups are answered against. Local
+	 * copies and prefilters know their version; for DB lookups it is read
+	 * from the update log, but at most once per VERSION_CHECK_MS.
 	 */
-	private static String byte_array_to_hex_str(byte[] b){
-	    StringBuffer sb = new StringBuffer(b.length * 2);
-	    for(int i = 0; i < b.length; i++){
-	      int v = b[i] & 0xff;
-	      if(v < 16)
-	    	  sb.append('0');
-	      sb.append(Integer.toHexString(v));
-	    } // Iterate over byte aray
-	    return sb.toString().toLowerCase(); // How Google represents
+	private void read_versions() throws Exception{
+		boolean db_due = false;
+		for(LIST_TYPE list_type : this.lists){
+			sb_key_set index = this.indexes.get(list_type);
+			sb_bloom prefilter = this.prefilters.get(list_type);
+			if(index != null)
+				versions[list_type.ordinal()] = index.version();
+			else if(prefilter != null)
+				versions[list_type.ordinal()] = prefilter.version();
+			else db_due = true;
+		} // A prefilter's version governs its negatives, so it is the tag
+		
+		long now = System.currentTimeMillis();
+		if(!db_due || now - versions_read_ms < VERSION_CHECK_MS)
+			return;
+		versions_read_ms = now;
+		for(LIST_TYPE list_type : this.lists){
+			if(this.indexes.containsKey(list_type) || 
+					this.prefilters.containsKey(list_type))
+				continue;
+			versions[list_type.ordinal()] = 
+					db_handlers.get(list_type).get_local_version_id();
+		} // One cheap log query per DB list
+	}
+	
+	/**
+	 * Determine if any of the current form-keys are in an in-memory index.
+	 * @param index In-memory index against which keys should be checked
+	 * @param num_forms Number of form-keys currently in the key buffers
+	 * @return TRUE if any of the form-keys is present in 'index'
+	 */
+	private boolean index_is_active(sb_key_set index, int num_forms){
+		for(int i=0; i < num_forms; i++){
+			if(index.contains(form_hi[i], form_lo[i]))
+				return(true);
+		} // In-memory probes are cheap, so stop at the first hit
+		return(false);
+	}
+	
+	/**
+	 * Convert the current form-keys into hex, as the DB stores them.
+	 * @param num_forms Number of form-keys currently in the key buffers
+	 * @return List of hex strings, parallel to the form-keys
+	 */
+	private List<String> hex_hashes(int num_forms){
+		List<String> hashes = new ArrayList<String>(num_forms);
+		for(int i=0; i < num_forms; i++)
+			hashes.add(url_hasher.key_to_hex(form_hi[i], form_lo[i]));
+		return(hashes);
+	}
+	
+	/**
+	 * Convert into hex those current form-keys which pass a prefilter.
+	 * @param prefilter Bloom filter over the list being checked
+	 * @param num_forms Number of form-keys currently in the key buffers
+	 * @return List of hex strings of the form-keys passing 'prefilter', or
+	 * NULL if the filter rejected every one of them
+	 */
+	private List<String> prefiltered_hashes(sb_bloom prefilter, int num_forms){
+		List<String> hashes = null;
+		for(int i=0; i < num_forms; i++){
+			if(!prefilter.might_contain(form_hi[i], form_lo[i]))
+				continue;
+			if(hashes == null)
+				hashes = new ArrayList<String>(num_forms);
+			hashes.add(url_hasher.key_to_hex(form_hi[i], form_lo[i]));
+		} // Most lookups are clean, and allocate nothing here
+		return(hashes);
+	}
+	
+	/**
+	 * Determine if any of a URL's form-hashes are active on some list,
+	 * per the database.
+	 * @param list_type List against which the hashes should be checked
+	 * @param hashes MD5 hashes (in hex) of all sub-forms of some URL
+	 * @return TRUE if any of 'hashes' is active on 'list_type'
+	 */
+	private boolean db_is_active(LIST_TYPE list_type, List<String> hashes) 
+			throws Exception{
+		boolean[] are_active = 
+				this.db_handlers.get(list_type).hashes_are_active(hashes);
+		for(int i=0; i < are_active.length; i++){
+			if(are_active[i])
+				return(true);
+		} // Check all sub-formats in a single DB round-trip
+		return(false);
 	}
 	
 	
@@ -137,7 +497,7 @@ public class sb_interface{
 	 * @return Version of URL with all hex characters unescaped (into UTF-8).
 	 * If any part of the process fails, NULL will be returned
 	 */
-	private String unescape(String url) throws Exception{
+	private static String unescape(String url) throws Exception{
 		if(url == null)
 			return(null);
 		
@@ -170,7 +530,7 @@ public class sb_interface{
 	 * @return Copy of URL, with all characters having ASCII <=32, >=127, or % 
 	 * replaced with their UTF-8-escaped codes 
 	 */
-	private String escape(String url) throws Exception{
+	private static String escape(String url) throws Exception{
 		if(url == null)
 			return(null);
 		
@@ -193,6 +553,19 @@ public class sb_interface{
 	 * http://code.google.com/apis/safebrowsing/developers_guide.html
 	 */
 	public String canonical_url(String str_url) throws Exception{
+		return(url_canon.get().canonicalize(str_url));
+	}
+	
+	/**
+	 * Given a URL, make that URL canonical per Google specification. This is
+	 * the original (string-rebuilding) implementation; [url_canon] produces
+	 * identical output in a single pass, and defers to this method for any
+	 * URL shape it does not handle itself.
+	 * @param url URL to be processed
+	 * @return Canonical version of the URL passed in, per the spec. at
+	 * http://code.google.com/apis/safebrowsing/developers_guide.html
+	 */
+	public static String legacy_canonical_url(String str_url){
 		
 		if(str_url == null)
 			return(null);
@@ -283,7 +656,8 @@ public class sb_interface{
 	 * @return List of all "sub-forms" of the URL which also be
 	 * queryed as part of a Safe Browsing lookup.
 	 */
-	public ArrayList<String> get_url_forms(String raw_url) throws Exception{
+	public static ArrayList<String> get_url_forms(String raw_url)
+			throws Exception{
 		
 		ArrayList<String> urls = new ArrayList<String>();
 		if(raw_url != null){
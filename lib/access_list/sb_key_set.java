@@ -0,0 +1,45 @@
+package access_list;
+
+/**
+ * Andrew G. West - sb_key_set.java - A local (non-DB) copy of the hashes
+ * on one active Safe Browsing blacklist, against which [sb_interface] may
+ * answer lookups. Implementations differ in where the keys are held (e.g.,
+ * on the heap, or in a memory-mapped file), but all are safe for use by
+ * concurrent readers, and all are tagged with the list version they hold.
+ */
+public interface sb_key_set{
+
+	/**
+	 * Determine if some hash is present in the set.
+	 * @param hi Most-significant 64 bits of the MD5 hash
+	 * @param lo Least-significant 64 bits of the MD5 hash
+	 * @return TRUE if the hash was active on the list at version(). FALSE,
+	 * otherwise.
+	 */
+	boolean contains(long hi, long lo);
+
+	/**
+	 * Bring the set up to date, but only if a newer list version exists.
+	 * @return TRUE if the set was reloaded. FALSE, otherwise.
+	 */
+	boolean reload_if_stale() throws Exception;
+
+	/**
+	 * Return the list version the set currently reflects.
+	 * @return Local list version of the keys held
+	 */
+	int version();
+
+	/**
+	 * Return the number of hashes in the set.
+	 * @return Number of hashes in the set
+	 */
+	int size();
+
+	/**
+	 * Summarize the size of the set, for purposes of memory sizing.
+	 * @return Human-readable summary of set population and memory use
+	 */
+	String memory_report();
+
+}
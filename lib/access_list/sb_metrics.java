@@ -0,0 +1,568 @@
+package access_list;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_metrics.java - Process-wide metrics of the lookup
+ * path: a latency histogram per stage (canonicalization, form generation,
+ * hashing, local probes, DB queries, and whole lookups), plus counters of
+ * lookups, forms per URL, DB queries, per-list hits, and errors.
+ *
+ * Recording is lock-free -- a handful of atomic increments -- so that
+ * concurrent lookup threads never wait on one another here. Histograms are
+ * log-linear (eight buckets per power of two, so percentiles are within
+ * 12.5% of exact), in fixed arrays, allocating nothing once constructed.
+ * Metrics are exposed over JMX (see register_mbean()) and as a text dump,
+ * written periodically (see start_dump()) covering the interval since the
+ * last dump.
+ */
+public class sb_metrics implements sb_metricsMBean{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Stages of a lookup whose latency is recorded: canonicalization,
+	 * form generation (reduction), hashing of the forms, probes of local
+	 * copies (indexes, snapshots), DB queries, and the whole lookup.
+	 */
+	public enum STAGE{canonicalize, forms, hash, probe, db_query, lookup};
+
+	/**
+	 * Name under which the metrics are registered with JMX.
+	 */
+	public static final String MBEAN_NAME = "access_list:type=sb_metrics";
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * The process-wide metrics.
+	 */
+	private static final sb_metrics metrics = new sb_metrics();
+
+	/**
+	 * Latency histogram of each stage, by STAGE ordinal.
+	 */
+	private final histogram[] stages;
+
+	/**
+	 * Histogram of the number of forms generated per URL.
+	 */
+	private final histogram forms_per_url;
+
+	/**
+	 * Counters: lookups which failed, DB queries issued, and DB queries
+	 * which failed. (Lookups are counted by the STAGE.lookup histogram.)
+	 */
+	private final AtomicLong errors, db_queries, db_errors;
+
+	/**
+	 * Lookups found active, by LIST_TYPE ordinal.
+	 */
+	private final AtomicLongArray list_hits;
+
+	/**
+	 * Timer writing the periodic dump (NULL if not dumping).
+	 */
+	private Timer dump_timer;
+
+	/**
+	 * Copy of the metrics from which the next dump is computed: taken at
+	 * the previous dump, or at the last reset(), whichever is later.
+	 */
+	private snapshot dump_base;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [sb_metrics], with every counter at zero.
+	 */
+	private sb_metrics(){
+		this.stages = new histogram[STAGE.values().length];
+		for(int i=0; i < stages.length; i++)
+			stages[i] = new histogram();
+		this.forms_per_url = new histogram();
+		this.errors = new AtomicLong();
+		this.db_queries = new AtomicLong();
+		this.db_errors = new AtomicLong();
+		this.list_hits = new AtomicLongArray(LIST_TYPE.values().length);
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Return the process-wide metrics.
+	 * @return The single [sb_metrics] to which all lookups record
+	 */
+	public static sb_metrics get(){
+		return(metrics);
+	}
+
+	/**
+	 * Record the latency of one occurrence of a stage.
+	 * @param stage Stage which occurred
+	 * @param start_nanos System.nanoTime() at which the stage began
+	 * @return System.nanoTime() at which the stage was recorded, so that
+	 * consecutive stages may be timed with one clock read apiece
+	 */
+	public long record(STAGE stage, long start_nanos){
+		long now = System.nanoTime();
+		stages[stage.ordinal()].record(now - start_nanos);
+		return(now);
+	}
+
+	/**
+	 * Record the number of forms generated for a URL.
+	 * @param num_forms Number of forms of the URL
+	 */
+	public void record_forms(int num_forms){
+		forms_per_url.record(num_forms);
+	}
+
+	/**
+	 * Record that a URL was found active on a list.
+	 * @param list_type List on which the URL was active
+	 */
+	public void record_hit(LIST_TYPE list_type){
+		list_hits.incrementAndGet(list_type.ordinal());
+	}
+
+	/**
+	 * Record a DB query (round-trip), and its latency.
+	 * @param start_nanos System.nanoTime() at which the query was issued
+	 * @param failed TRUE if the query failed with an exception
+	 */
+	public void record_db_query(long start_nanos, boolean failed){
+		db_queries.incrementAndGet();
+		if(failed)
+			db_errors.incrementAndGet();
+		record(STAGE.db_query, start_nanos);
+	}
+
+	/**
+	 * Record a lookup which failed with an exception.
+	 */
+	public void record_error(){
+		errors.incrementAndGet();
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server, so they may
+	 * be read over JMX (e.g., by 'jconsole'), under MBEAN_NAME. Repeated
+	 * calls are harmless.
+	 */
+	public static void register_mbean() throws Exception{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		synchronized(metrics){
+			if(!server.isRegistered(name))
+				server.registerMBean(metrics, name);
+		}
+	}
+
+	/**
+	 * Begin writing a dump of the metrics periodically, each dump covering
+	 * the interval since the previous one. Any earlier dump is stopped.
+	 * @param period_secs Seconds between dumps
+	 * @param out Stream to which dumps are written
+	 */
+	public synchronized void start_dump(long period_secs, final PrintStream out){
+		if(dump_timer != null)
+			dump_timer.cancel();
+		dump_timer = new Timer("sb_metrics dump", true); // Daemon thread
+		dump_base = new snapshot(this);
+		dump_timer.schedule(new TimerTask(){
+			public void run(){
+				String report;
+				synchronized(sb_metrics.this){
+					snapshot cur = new snapshot(sb_metrics.this);
+					report = cur.report(dump_base);
+					dump_base = cur;
+				} // Baseline is shared with reset()
+				out.println(report);
+				out.flush();
+			}
+		}, period_secs * 1000, period_secs * 1000);
+	}
+
+	/**
+	 * Stop any periodic dump.
+	 */
+	public synchronized void stop_dump(){
+		if(dump_timer != null)
+			dump_timer.cancel();
+		dump_timer = null;
+	}
+
+
+	// ************************** MBEAN ATTRIBUTES ***************************
+
+	public long getLookups(){
+		return(stages[STAGE.lookup.ordinal()].count());
+	}
+
+	public long getErrors(){
+		return(errors.get());
+	}
+
+	public long getDbQueries(){
+		return(db_queries.get());
+	}
+
+	public long getDbErrors(){
+		return(db_errors.get());
+	}
+
+	public double getMeanFormsPerUrl(){
+		return(forms_per_url.mean());
+	}
+
+	public String[] getListNames(){
+		String[] names = new String[LIST_TYPE.values().length];
+		for(LIST_TYPE list_type : LIST_TYPE.values())
+			names[list_type.ordinal()] = list_type.toString();
+		return(names);
+	}
+
+	public long[] getListHits(){
+		long[] hits = new long[list_hits.length()];
+		for(int i=0; i < hits.length; i++)
+			hits[i] = list_hits.get(i);
+		return(hits);
+	}
+
+	public String[] getStageNames(){
+		String[] names = new String[stages.length];
+		for(STAGE stage : STAGE.values())
+			names[stage.ordinal()] = stage.toString();
+		return(names);
+	}
+
+	public long[] getStageP50Nanos(){
+		return(stage_percentiles(0.50));
+	}
+
+	public long[] getStageP99Nanos(){
+		return(stage_percentiles(0.99));
+	}
+
+	public long[] getStageMaxNanos(){
+		long[] max = new long[stages.length];
+		for(int i=0; i < max.length; i++)
+			max[i] = stages[i].max.get();
+		return(max);
+	}
+
+	public String getReport(){
+		return(new snapshot(this).report(null));
+	}
+
+	public synchronized void reset(){
+		for(histogram stage : stages)
+			stage.reset();
+		forms_per_url.reset();
+		errors.set(0);
+		db_queries.set(0);
+		db_errors.set(0);
+		for(int i=0; i < list_hits.length(); i++)
+			list_hits.set(i, 0);
+		if(dump_timer != null){
+			dump_base = new snapshot(this);
+		} // The next dump covers only the interval since the reset
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Compute a (cumulative) latency percentile of every stage.
+	 * @param p Percentile, as a fraction in (0,1]
+	 * @return Array of latencies (ns.), by STAGE ordinal
+	 */
+	private long[] stage_percentiles(double p){
+		long[] latencies = new long[stages.length];
+		for(int i=0; i < latencies.length; i++)
+			latencies[i] = Math.min(stages[i].max.get(),
+					histogram.percentile(stages[i].counts(), p));
+		return(latencies);
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * A lock-free, log-linear histogram of non-negative values.
+	 */
+	private static class histogram{
+
+		/**
+		 * Bits of sub-bucket resolution per power of two (8 sub-buckets).
+		 */
+		static final int SUB_BITS = 3;
+
+		/**
+		 * Number of buckets needed to span all non-negative longs.
+		 */
+		static final int NUM_BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+		/**
+		 * Number of values recorded in each bucket.
+		 */
+		final AtomicLongArray buckets;
+
+		/**
+		 * Number of, sum of, and maximum of, values recorded.
+		 */
+		final AtomicLong count, sum, max;
+
+		/**
+		 * Construct an empty [histogram].
+		 */
+		histogram(){
+			this.buckets = new AtomicLongArray(NUM_BUCKETS);
+			this.count = new AtomicLong();
+			this.sum = new AtomicLong();
+			this.max = new AtomicLong();
+		}
+
+		/**
+		 * Record one value.
+		 * @param value Value to be recorded (negatives count as zero)
+		 */
+		void record(long value){
+			if(value < 0)
+				value = 0;
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long cur = max.get();
+			while(value > cur && !max.compareAndSet(cur, value))
+				cur = max.get();
+		}
+
+		/**
+		 * @return Number of values recorded
+		 */
+		long count(){
+			return(count.get());
+		}
+
+		/**
+		 * @return Mean of the values recorded (zero if none)
+		 */
+		double mean(){
+			long n = count.get();
+			return(n == 0 ? 0.0 : (double) sum.get() / n);
+		}
+
+		/**
+		 * @return Copy of the bucket counts (not atomic as a whole, but
+		 * every count is one that was, at some instant, current)
+		 */
+		long[] counts(){
+			long[] counts = new long[NUM_BUCKETS];
+			for(int i=0; i < counts.length; i++)
+				counts[i] = buckets.get(i);
+			return(counts);
+		}
+
+		/**
+		 * Zero the histogram.
+		 */
+		void reset(){
+			for(int i=0; i < NUM_BUCKETS; i++)
+				buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		/**
+		 * Return the bucket of some value.
+		 * @param value Non-negative value
+		 * @return Index of the bucket holding 'value'
+		 */
+		static int bucket(long value){
+			if(value < (1 << SUB_BITS))
+				return((int) value); // Small values are exact
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+			return(((exp - SUB_BITS + 1) << SUB_BITS) + sub);
+		}
+
+		/**
+		 * Return a representative (middle) value of some bucket.
+		 * @param bucket Index of a bucket
+		 * @return Middle of the range of values held by 'bucket'
+		 */
+		static long midpoint(int bucket){
+			if(bucket < (1 << SUB_BITS))
+				return(bucket);
+			int exp = (bucket >> SUB_BITS) + SUB_BITS - 1;
+			long sub = bucket & ((1 << SUB_BITS) - 1);
+			long width = 1L << (exp - SUB_BITS);
+			return(((1L << SUB_BITS) + sub) * width + (width - 1) / 2);
+		}
+
+		/**
+		 * Compute a percentile from bucket counts.
+		 * @param counts Bucket counts (e.g., from counts(), or a difference
+		 * of two such arrays)
+		 * @param p Percentile, as a fraction in (0,1]
+		 * @return Value at percentile 'p' (zero if no values were counted)
+		 */
+		static long percentile(long[] counts, double p){
+			long total = 0;
+			for(int i=0; i < counts.length; i++)
+				total += counts[i];
+			if(total == 0)
+				return(0);
+			long rank = Math.max(1, (long) Math.ceil(p * total));
+			long seen = 0;
+			for(int i=0; i < counts.length; i++){
+				seen += counts[i];
+				if(seen >= rank)
+					return(midpoint(i));
+			} // Find the bucket holding the rank-th value
+			return(midpoint(counts.length - 1));
+		}
+	}
+
+	/**
+	 * A copy of all metrics at some instant, from which the metrics of an
+	 * interval are computed as the difference of two copies.
+	 */
+	private static class snapshot{
+
+		/**
+		 * Time (in ms.) at which the copy was taken.
+		 */
+		final long time_ms;
+
+		/**
+		 * Bucket counts, sums, and maxima, of each stage histogram.
+		 */
+		final long[][] stage_counts;
+		final long[] stage_sums, stage_max;
+
+		/**
+		 * Count, and sum, of the forms-per-URL histogram.
+		 */
+		final long num_urls, num_forms;
+
+		/**
+		 * Counters, as in [sb_metrics].
+		 */
+		final long errors, db_queries, db_errors;
+		final long[] list_hits;
+
+		/**
+		 * Copy the current metrics.
+		 * @param metrics Metrics to be copied
+		 */
+		snapshot(sb_metrics metrics){
+			this.time_ms = System.currentTimeMillis();
+			int num_stages = metrics.stages.length;
+			this.stage_counts = new long[num_stages][];
+			this.stage_sums = new long[num_stages];
+			this.stage_max = new long[num_stages];
+			for(int i=0; i < num_stages; i++){
+				stage_counts[i] = metrics.stages[i].counts();
+				stage_sums[i] = metrics.stages[i].sum.get();
+				stage_max[i] = metrics.stages[i].max.get();
+			} // Maxima are cumulative; they cannot be differenced
+			this.num_urls = metrics.forms_per_url.count();
+			this.num_forms = metrics.forms_per_url.sum.get();
+			this.errors = metrics.errors.get();
+			this.db_queries = metrics.db_queries.get();
+			this.db_errors = metrics.db_errors.get();
+			this.list_hits = metrics.getListHits();
+		}
+
+		/**
+		 * Format the metrics since an earlier copy.
+		 * @param since Earlier copy, or NULL for all metrics since start
+		 * @return Human-readable summary: a line of counters, then one line
+		 * per stage (count, mean, p50, p90, p99, and max, in microseconds)
+		 */
+		String report(snapshot since){
+			StringBuilder report = new StringBuilder();
+			long lookups = total(stage_counts[STAGE.lookup.ordinal()]) -
+					(since == null ? 0 : total(since.stage_counts[
+					STAGE.lookup.ordinal()]));
+			report.append("[" + new Date(time_ms) + "] ");
+			if(since != null){
+				double secs = Math.max(time_ms - since.time_ms, 1) / 1000.0;
+				report.append("last " + secs + "s: " +
+						Math.round(lookups / secs) + " lookups/s; ");
+			} // An interval report also gives rates
+			long urls = num_urls - (since == null ? 0 : since.num_urls);
+			long forms = num_forms - (since == null ? 0 : since.num_forms);
+			report.append(lookups + " lookups, " + (errors -
+					(since == null ? 0 : since.errors)) + " errors, " +
+					(urls == 0 ? 0.0 : Math.round(10.0 * forms / urls) / 10.0) +
+					" forms/URL, " + (db_queries - (since == null ? 0 :
+					since.db_queries)) + " DB queries (" + (db_errors -
+					(since == null ? 0 : since.db_errors)) + " failed)");
+			for(LIST_TYPE list_type : LIST_TYPE.values()){
+				int i = list_type.ordinal();
+				report.append(", " + (list_hits[i] - (since == null ? 0 :
+						since.list_hits[i])) + " " + list_type + " hits");
+			} // Hits per list
+
+			report.append("\n  stage\tcount\tmean\tp50\tp90\tp99\tmax(all) [us]");
+			for(STAGE stage : STAGE.values()){
+				int i = stage.ordinal();
+				long[] counts = stage_counts[i].clone();
+				long sum = stage_sums[i];
+				if(since != null){
+					for(int b=0; b < counts.length; b++)
+						counts[b] -= since.stage_counts[i][b];
+					sum -= since.stage_sums[i];
+				} // The interval's histogram is a difference of copies
+				long n = total(counts);
+				report.append("\n  " + stage + "\t" + n + "\t" +
+						micros(n == 0 ? 0 : sum / n) + "\t" +
+						micros(Math.min(stage_max[i],
+								histogram.percentile(counts, 0.50))) + "\t" +
+						micros(Math.min(stage_max[i],
+								histogram.percentile(counts, 0.90))) + "\t" +
+						micros(Math.min(stage_max[i],
+								histogram.percentile(counts, 0.99))) + "\t" +
+						micros(stage_max[i]));
+			} // One line per stage
+			return(report.toString());
+		}
+
+		/**
+		 * @return Sum of an array of counts
+		 */
+		private static long total(long[] counts){
+			long total = 0;
+			for(int i=0; i < counts.length; i++)
+				total += counts[i];
+			return(total);
+		}
+
+		/**
+		 * @return Nanoseconds, formatted as microseconds to one decimal
+		 */
+		private static String micros(long nanos){
+			return(Double.toString(Math.round(nanos / 100.0) / 10.0));
+		}
+	}
+
+}
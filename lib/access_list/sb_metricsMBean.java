@@ -0,0 +1,76 @@
+package access_list;
+
+/**
+ * Andrew G. West - sb_metricsMBean.java - Management interface (JMX) of
+ * [sb_metrics]. All values are cumulative, since process start (or the
+ * last reset()); latencies are in nanoseconds.
+ */
+public interface sb_metricsMBean{
+
+	/**
+	 * @return Number of lookups (URLs checked) performed
+	 */
+	long getLookups();
+
+	/**
+	 * @return Number of lookups which failed with an exception
+	 */
+	long getErrors();
+
+	/**
+	 * @return Number of DB queries (round-trips) issued
+	 */
+	long getDbQueries();
+
+	/**
+	 * @return Number of DB queries which failed with an exception
+	 */
+	long getDbErrors();
+
+	/**
+	 * @return Mean number of forms generated per URL looked up
+	 */
+	double getMeanFormsPerUrl();
+
+	/**
+	 * @return Names of the blacklists, parallel to getListHits()
+	 */
+	String[] getListNames();
+
+	/**
+	 * @return Number of lookups found active, per blacklist
+	 */
+	long[] getListHits();
+
+	/**
+	 * @return Names of the lookup stages, parallel to the latency arrays
+	 */
+	String[] getStageNames();
+
+	/**
+	 * @return Median latency of each stage, in nanoseconds
+	 */
+	long[] getStageP50Nanos();
+
+	/**
+	 * @return 99th-percentile latency of each stage, in nanoseconds
+	 */
+	long[] getStageP99Nanos();
+
+	/**
+	 * @return Maximum latency of each stage, in nanoseconds
+	 */
+	long[] getStageMaxNanos();
+
+	/**
+	 * @return Human-readable summary of all metrics
+	 */
+	String getReport();
+
+	/**
+	 * Zero all counters and histograms. Any periodic dump then covers the
+	 * interval since the reset.
+	 */
+	void reset();
+
+}
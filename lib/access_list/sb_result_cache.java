@@ -0,0 +1,189 @@
+package access_list;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_result_cache.java - A bounded, least-recently-used
+ * cache of lookup results, keyed by canonical URL. The same URLs (spam
+ * campaigns, popular references) are looked up over and over; a hit skips
+ * form generation, hashing, and all index/DB probes.
+ *
+ * Each entry records, per list, the list version its answer was computed
+ * against. An entry is only served while every list asked about is still
+ * at that version, so results become invalid as soon as a newer version of
+ * a list is in use. A cache is safe for concurrent callers, and so may be
+ * shared by many [sb_interface] objects (e.g., the workers of a batch).
+ */
+public class sb_result_cache{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Default maximum number of URLs held.
+	 */
+	public static final int DEFAULT_CAPACITY = 100000;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Version recorded for lists an entry has no answer for.
+	 */
+	private static final int UNCHECKED = Integer.MIN_VALUE;
+
+	/**
+	 * Maximum number of URLs held.
+	 */
+	private final int capacity;
+
+	/**
+	 * Cached results, in access order (eldest is least recently used).
+	 * All access is synchronized on the map itself.
+	 */
+	private final LinkedHashMap<String, result> results;
+
+	/**
+	 * Statistics: lookups answered from cache, lookups not (including
+	 * those whose entry was stale), stale entries dropped, and entries
+	 * evicted to honor capacity. Guarded by the lock on 'results'.
+	 */
+	private long num_hits, num_misses, num_stale, num_evicted;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an empty [sb_result_cache].
+	 * @param capacity Maximum number of URLs to hold (at least one)
+	 */
+	public sb_result_cache(int capacity){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Bad capacity: " + capacity);
+		this.capacity = capacity;
+		this.results = new LinkedHashMap<String, result>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, result> e){
+				if(size() <= sb_result_cache.this.capacity)
+					return(false);
+				num_evicted++;
+				return(true);
+			} // Drop the least-recently used URL once over capacity
+		};
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Look up the cached result of some URL.
+	 * @param canon_url Canonical form of the URL
+	 * @param lists Lists the caller wants an answer for
+	 * @param versions Versions those lists are currently at, indexed by
+	 * LIST_TYPE ordinal
+	 * @return Set of lists (among 'lists') on which the URL is active, or
+	 * NULL if there is no entry with a current answer for every one of
+	 * 'lists'. The set returned is the caller's own to modify.
+	 */
+	public EnumSet<LIST_TYPE> get(String canon_url, EnumSet<LIST_TYPE> lists,
+			int[] versions){
+		synchronized(results){
+			result cached = results.get(canon_url);
+			if(cached == null){
+				num_misses++;
+				return(null);
+			} // Never seen (or since evicted)
+			for(LIST_TYPE list_type : lists){
+				if(cached.versions[list_type.ordinal()] !=
+						versions[list_type.ordinal()]){
+					results.remove(canon_url);
+					num_stale++;
+					num_misses++;
+					return(null);
+				} // List updated (or never checked) since caching
+			} // Every list asked about must be current
+			num_hits++;
+			EnumSet<LIST_TYPE> active = EnumSet.copyOf(cached.active);
+			active.retainAll(lists);
+			return(active);
+		}
+	}
+
+	/**
+	 * Cache the result of some URL, replacing any earlier entry.
+	 * @param canon_url Canonical form of the URL
+	 * @param lists Lists the URL was checked against
+	 * @param active Lists (among 'lists') on which the URL is active
+	 * @param versions Versions the lists were at when checked, indexed by
+	 * LIST_TYPE ordinal
+	 */
+	public void put(String canon_url, EnumSet<LIST_TYPE> lists,
+			EnumSet<LIST_TYPE> active, int[] versions){
+		int[] checked = new int[versions.length];
+		for(int i=0; i < checked.length; i++)
+			checked[i] = UNCHECKED;
+		for(LIST_TYPE list_type : lists)
+			checked[list_type.ordinal()] = versions[list_type.ordinal()];
+		result entry = new result(EnumSet.copyOf(active), checked);
+		synchronized(results){
+			results.put(canon_url, entry);
+		}
+	}
+
+	/**
+	 * Return the fraction of lookups answered from the cache.
+	 * @return Hits divided by lookups, or zero if there were no lookups
+	 */
+	public double hit_rate(){
+		synchronized(results){
+			long lookups = num_hits + num_misses;
+			return(lookups == 0 ? 0.0 : (double) num_hits / lookups);
+		}
+	}
+
+	/**
+	 * Summarize the population and effectiveness of the cache.
+	 * @return Human-readable summary of cache size and hit/miss counters
+	 */
+	public String report(){
+		synchronized(results){
+			return("Result cache: " + results.size() + " of " + capacity +
+					" URLs; " + num_hits + " hits, " + num_misses +
+					" misses (" + (Math.round(1000.0 * hit_rate()) / 10.0) +
+					"% hit rate), " + num_stale + " stale, " + num_evicted +
+					" evicted");
+		}
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * The cached result of one URL, and the list versions it reflects.
+	 */
+	private static class result{
+
+		/**
+		 * Lists on which the URL was active.
+		 */
+		final EnumSet<LIST_TYPE> active;
+
+		/**
+		 * Version of each list (by ordinal) the answer was computed against,
+		 * or UNCHECKED if the URL was not checked against that list.
+		 */
+		final int[] versions;
+
+		/**
+		 * Construct a [result].
+		 */
+		result(EnumSet<LIST_TYPE> active, int[] versions){
+			this.active = active;
+			this.versions = versions;
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package access_list;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.EnumSet;
+
+import list_store.embedded_store;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_server.java - A long-running lookup service over the
+ * Safe Browsing lists. Rather than paying JVM start-up and DB connection
+ * costs for every URL (as [test.java] does), a single process is kept
+ * resident, with its [sb_interface] (and its prepared statements) held
+ * open between lookups.
+ *
+ * The protocol is line-based: one URL is written per line, and the reply is
+ * a single line of the form "phishing,malware" -- exactly what is printed
+ * by [test.java] (e.g., "false,true"). Lookups which fail produce the
+ * reply "error,error". The protocol is spoken either over stdin/stdout
+ * or, if a port is provided, over a socket bound to the loopback address.
+ *
+ * With the "-mem" flag, the lists are held in in-memory indexes which are
+ * re-checked against the DB list version every RELOAD_INTERVAL seconds.
+ * With the "-snap=[dir]" flag, the lists are instead memory-mapped from
+ * the updater's snapshot files in [dir], and no DB connection is made;
+ * the files are re-checked for replacement on the same interval.
+ * With the "-bloom" (or "-bloom=[rate]") flag, lookups still go to the DB,
+ * but only for URLs which pass a Bloom-filter prefilter of each list, built
+ * at the given false-positive rate and rebuilt on the same interval.
+ * With the "-embed=[dir]" flag, lookups are answered from the in-process
+ * store in [dir] (see [list_store.embedded_store]), rather than from MySQL.
+ */
+public class sb_server{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Seconds between checks for a newer list version (in-memory mode).
+	 * Updates normally arrive via the change-feed, so checks are cheap.
+	 */
+	private static final long RELOAD_INTERVAL = 5;
+
+	/**
+	 * Reply to a blank (or whitespace-only) request line: no URL is on
+	 * either list, as the original one-shot tool answered.
+	 */
+	private static final String BLANK_REPLY = "false,false";
+
+	/**
+	 * Default seconds between dumps of lookup metrics ("-stats" flag).
+	 */
+	private static final long STATS_INTERVAL = 60;
+
+	/**
+	 * UNIX time at which in-memory indexes were last checked for staleness.
+	 */
+	private long last_reload_check;
+
+	/**
+	 * Interface into all blacklists.
+	 */
+	private sb_interface face;
+
+	/**
+	 * Cache of lookup results, or NULL if results are not cached.
+	 */
+	private sb_result_cache cache;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [sb_server], opening interfaces into all lists.
+	 * @param in_memory TRUE if lists should be loaded into in-memory 
+	 * indexes; FALSE if every lookup should query the database.
+	 */
+	public sb_server(boolean in_memory) throws Exception{
+		this.face = new sb_interface(EnumSet.allOf(LIST_TYPE.class), in_memory);
+		this.last_reload_check = gen_utils.cur_unix_time();
+		if(in_memory) // Report index sizes, to aid in heap sizing
+			System.err.println(face.index_memory_report());
+	}
+
+	/**
+	 * Construct an [sb_server], querying the DB only for URLs which pass a
+	 * Bloom-filter prefilter (see [sb_bloom]) of each list.
+	 * @param fp_rate Target false-positive rate of the prefilters
+	 */
+	public sb_server(double fp_rate) throws Exception{
+		this.face = new sb_interface(EnumSet.allOf(LIST_TYPE.class), false);
+		this.face.use_prefilter(fp_rate);
+		this.last_reload_check = gen_utils.cur_unix_time();
+		System.err.println(face.index_memory_report());
+	}
+
+	/**
+	 * Construct an [sb_server], answering lookups from an in-process store.
+	 * @param store Store holding all lists
+	 */
+	public sb_server(embedded_store store) throws Exception{
+		this.face = new sb_interface(EnumSet.allOf(LIST_TYPE.class), store);
+		this.last_reload_check = gen_utils.cur_unix_time();
+		System.err.println(store.report());
+	}
+
+	/**
+	 * Construct an [sb_server], answering lookups from snapshot files.
+	 * @param snapshot_dir Directory holding the snapshot files of all lists
+	 */
+	public sb_server(String snapshot_dir) throws Exception{
+		this.face = new sb_interface(EnumSet.allOf(LIST_TYPE.class), 
+				snapshot_dir);
+		this.last_reload_check = gen_utils.cur_unix_time();
+		System.err.println(face.index_memory_report());
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Start a lookup server.
+	 * @param args Four optional arguments are permitted: (1) The flag 
+	 * "-mem", to answer lookups from in-memory indexes, "-snap=[dir]", to 
+	 * answer them from the snapshot files in [dir], "-embed=[dir]", to answer
+	 * them from the in-process store in [dir], or "-bloom[=rate]", to 
+	 * prefilter DB lookups (default rate: sb_bloom.DEFAULT_FP_RATE), (2) the
+	 * flag "-cache[=size]", to cache lookup results by canonical URL (default
+	 * size: sb_result_cache.DEFAULT_CAPACITY), (3) the flag "-stats[=secs]",
+	 * to expose lookup metrics (see [sb_metrics]) over JMX and dump them to 
+	 * stderr every [secs] seconds (default: STATS_INTERVAL), and (4) the 
+	 * loopback port on which to listen. If no port is given, the server 
+	 * reads URLs from stdin and writes responses to stdout until stdin is 
+	 * closed.
+	 */
+	public static void main(String[] args) throws Exception{
+		int arg = 0;
+		sb_server server;
+		if(args.length > 0 && args[0].startsWith("-snap=")){
+			server = new sb_server(args[arg++].substring("-snap=".length()));
+		} else if(args.length > 0 && args[0].startsWith("-embed=")){
+			server = new sb_server(embedded_store.open(
+					args[arg++].substring("-embed=".length())));
+		} else if(args.length > 0 && args[0].startsWith("-bloom")){
+			String rate = args[arg++].substring("-bloom".length());
+			server = new sb_server(rate.startsWith("=") ? 
+					Double.parseDouble(rate.substring(1)) : 
+					sb_bloom.DEFAULT_FP_RATE);
+		} else{
+			boolean in_memory = (args.length > 0 && args[0].equals("-mem"));
+			if(in_memory)
+				arg++;
+			server = new sb_server(in_memory);
+		} // Choose where lookups are answered from
+		if(args.length > arg && args[arg].startsWith("-cache")){
+			String size = args[arg++].substring("-cache".length());
+			server.use_cache(size.startsWith("=") ? 
+					Integer.parseInt(size.substring(1)) : 
+					sb_result_cache.DEFAULT_CAPACITY);
+		} // Optionally, answer repeat URLs from cache
+		if(args.length > arg && args[arg].startsWith("-stats")){
+			String secs = args[arg++].substring("-stats".length());
+			sb_metrics.register_mbean();
+			sb_metrics.get().start_dump(secs.startsWith("=") ? 
+					Long.parseLong(secs.substring(1)) : STATS_INTERVAL, 
+					System.err);
+		} // Optionally, publish (and periodically dump) lookup metrics
+		if(args.length > arg)
+			server.serve_socket(Integer.parseInt(args[arg]));
+		else server.serve_stream(new BufferedReader(new InputStreamReader(
+				System.in, "UTF-8")), new BufferedWriter(
+				new OutputStreamWriter(System.out, "UTF-8")));
+		server.shutdown();
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Answer a single lookup, in the format of the line protocol.
+	 * @param url URL to be checked against all lists
+	 * @return String of the form "phishing,malware", where each field is
+	 * "true" or "false". If the lookup failed, "error,error" is returned.
+	 */
+	public String lookup(String url){
+		try{reload_if_due();
+			EnumSet<LIST_TYPE> active = face.active_lists(url);
+			return(active.contains(LIST_TYPE.phishing) + "," +
+				active.contains(LIST_TYPE.malware));
+		} catch(Exception e){
+			System.err.println("Error looking up URL: " + url);
+			e.printStackTrace();
+			return("error,error");
+		} // Never let one bad URL take down the server
+	}
+
+	/**
+	 * Answer repeat lookups from a cache of results (see [sb_result_cache]).
+	 * @param capacity Maximum number of URLs whose results are cached
+	 */
+	public void use_cache(int capacity){
+		this.cache = new sb_result_cache(capacity);
+		this.face.use_cache(this.cache);
+	}
+
+	/**
+	 * Serve lookups over a pair of streams, until input is exhausted.
+	 * @param in Reader from which URLs are read, one per line
+	 * @param out Writer to which responses are written, one per line. It
+	 * is flushed after every response, so clients may block on replies.
+	 */
+	public void serve_stream(BufferedReader in, BufferedWriter out)
+			throws Exception{
+		String url = in.readLine();
+		while(url != null){
+			url = url.trim();
+			if(url.equals(""))
+				out.write(BLANK_REPLY);
+			else out.write(lookup(url));
+			out.newLine();
+			out.flush();
+			url = in.readLine();
+		} // Exactly one reply per line, or clients block waiting on it
+	}
+
+	/**
+	 * Serve lookups over a loopback socket. Clients are handled one at a
+	 * time (lookups are serialized through the shared DB objects anyway),
+	 * with each client free to issue many lookups over its connection.
+	 * @param port Port on the loopback interface to listen on
+	 */
+	public void serve_socket(int port) throws Exception{
+		ServerSocket listener = new ServerSocket(port, 50,
+				InetAddress.getByName("127.0.0.1"));
+		while(true){
+			Socket client = listener.accept();
+			try{serve_stream(new BufferedReader(new InputStreamReader(
+						client.getInputStream(), "UTF-8")),
+						new BufferedWriter(new OutputStreamWriter(
+						client.getOutputStream(), "UTF-8")));
+			} catch(Exception e){
+				System.err.println("Error serving lookup client");
+				e.printStackTrace();
+			} finally{client.close();}
+		} // Server runs until the process is killed
+	}
+
+	/**
+	 * Shutdown all database objects created by this server, reporting the
+	 * final state of any indexes or prefilters (e.g., filter hit rates).
+	 */
+	public void shutdown() throws Exception{
+		String report = face.index_memory_report();
+		if(report != null)
+			System.err.println(report);
+		if(cache != null)
+			System.err.println(cache.report());
+		System.err.println(sb_metrics.get().getReport());
+		face.shutdown();
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * If in-memory indexes (or snapshots, or prefilters) are in use, and 
+	 * RELOAD_INTERVAL has elapsed since the last check, reload any whose 
+	 * list was updated.
+	 */
+	private void reload_if_due() throws Exception{
+		long now = gen_utils.cur_unix_time();
+		if(now - last_reload_check < RELOAD_INTERVAL)
+			return;
+		last_reload_check = now;
+		if(face.reload_index())
+			System.err.println(face.index_memory_report());
+	}
+
+}
@@ -0,0 +1,353 @@
+package access_list;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import list_store.sb_tables;
+
+import common_utils.db_con;
+import common_utils.db_con.DBS;
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - sb_snapshot.java - A snapshot of one active Safe
+ * Browsing blacklist, as a file of sorted 16-byte hashes, which lookups
+ * may memory-map and binary-search rather than query the database. The
+ * keys live off-heap, in the page cache, shared by every process on the
+ * host that maps the file; startup is a single map; and lookups continue
+ * to work while the DB is unreachable.
+ *
+ * File format (all big-endian): a 16-byte header of [MAGIC (int), list
+ * version (int), number of hashes (long)], followed by that many 16-byte
+ * MD5 hashes in ascending (unsigned) order. Snapshots are written by the
+ * updater via export(), to a temporary file renamed over the old one, so
+ * processes which still map a previous snapshot are unaffected.
+ */
+public class sb_snapshot implements sb_key_set{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Magic number opening every snapshot file ("SBS1").
+	 */
+	public static final int MAGIC = 0x53425331;
+
+	/**
+	 * Size, in bytes, of the snapshot header.
+	 */
+	public static final int HEADER_SIZE = 16;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Size, in bytes, of each hash in the snapshot.
+	 */
+	private static final int KEY_SIZE = 16;
+
+	/**
+	 * Size, in bytes, of the buffer through which snapshots are written.
+	 */
+	private static final int WRITE_BUFFER = 0x10000; // 64k buffer
+
+	/**
+	 * Blacklist whose active hashes are held by this snapshot.
+	 */
+	private final LIST_TYPE list_type;
+
+	/**
+	 * Snapshot file being mapped.
+	 */
+	private final File file;
+
+	/**
+	 * The currently mapped snapshot. Replaced wholesale on reload.
+	 */
+	private volatile mapping cur;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [sb_snapshot], mapping the snapshot file of a list.
+	 * @param dir Directory in which snapshot files are kept
+	 * @param list_type Blacklist whose snapshot should be mapped
+	 */
+	public sb_snapshot(String dir, LIST_TYPE list_type) throws Exception{
+		this.list_type = list_type;
+		this.file = snapshot_file(dir, list_type);
+		this.cur = map_file(this.file);
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Export the snapshot of every list from the DB.
+	 * @param args One argument is required: (1) The directory into which
+	 * snapshot files should be written.
+	 */
+	public static void main(String[] args) throws Exception{
+		Connection con = db_con.get_con(DBS.safe_browsing);
+		for(LIST_TYPE list_type : LIST_TYPE.values()){
+			export(con, list_type, args[0]);
+			System.out.println(new sb_snapshot(args[0], list_type).
+					memory_report());
+		} // Write, then map, each list in turn
+		con.close();
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Determine if some hash is present in the snapshot.
+	 * @param hi Most-significant 64 bits of the MD5 hash
+	 * @param lo Least-significant 64 bits of the MD5 hash
+	 * @return TRUE if the hash was active on the list when the snapshot
+	 * was taken. FALSE, otherwise.
+	 */
+	public boolean contains(long hi, long lo){
+		mapping m = this.cur;
+		long key_hi = hi ^ Long.MIN_VALUE, key_lo = lo ^ Long.MIN_VALUE;
+		int low = 0, high = m.count - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int offset = HEADER_SIZE + mid * KEY_SIZE;
+			long mid_hi = m.buf.getLong(offset) ^ Long.MIN_VALUE;
+			long mid_lo = m.buf.getLong(offset + 8) ^ Long.MIN_VALUE;
+			if(mid_hi < key_hi || (mid_hi == key_hi && mid_lo < key_lo))
+				low = mid + 1;
+			else if(mid_hi == key_hi && mid_lo == key_lo)
+				return(true);
+			else high = mid - 1;
+		} // Binary search; sign-flipping makes signed compares unsigned
+		return(false);
+	}
+
+	/**
+	 * Re-map the snapshot, but only if its file has been replaced.
+	 * @return TRUE if a newer snapshot was mapped. FALSE, otherwise.
+	 */
+	public boolean reload_if_stale() throws Exception{
+		mapping m = this.cur;
+		if(file.lastModified() == m.modified && file.length() == m.length)
+			return(false);
+		mapping remapped = map_file(file);
+		this.cur = remapped;
+		return(remapped.version != m.version);
+	}
+
+	/**
+	 * Return the list version the snapshot reflects.
+	 * @return Local list version at which the snapshot was exported
+	 */
+	public int version(){
+		return(this.cur.version);
+	}
+
+	/**
+	 * Return the number of hashes in the snapshot.
+	 * @return Number of hashes in the snapshot
+	 */
+	public int size(){
+		return(this.cur.count);
+	}
+
+	/**
+	 * Summarize the size of the snapshot.
+	 * @return Human-readable summary of snapshot population and mapping
+	 */
+	public String memory_report(){
+		mapping m = this.cur;
+		return(list_type + " snapshot: " + m.count + " hashes, " + m.length +
+				" bytes mapped off-heap from " + file + ", version " +
+				m.version);
+	}
+
+	/**
+	 * Write the snapshot file of a list, per the active table in the DB.
+	 * The version is read first, so if an update lands mid-export the
+	 * snapshot is tagged as older than its content, and simply re-exported.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param list_type Blacklist whose snapshot should be written
+	 * @param dir Directory in which snapshot files are kept
+	 * @return Number of hashes written to the snapshot
+	 */
+	public static int export(Connection con, LIST_TYPE list_type, String dir)
+			throws Exception{
+
+		int version = sb_tables.version_id(con, list_type.toString());
+		boolean binary = sb_tables.hash_is_binary(con, list_type.toString());
+
+		File target = snapshot_file(dir, list_type);
+		File tmp = new File(target.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		raf.setLength(0);
+		FileChannel channel = raf.getChannel();
+		ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER);
+		channel.position(HEADER_SIZE); // Header is written last
+
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT HASH FROM " + list_type +
+				" ORDER BY HASH");
+		int count = 0;
+		long prev_hi = 0, prev_lo = 0;
+		while(rs.next()){
+			long hi, lo;
+			if(binary){
+				byte[] key = rs.getBytes(1);
+				hi = url_hasher.bytes_to_long(key, 0);
+				lo = url_hasher.bytes_to_long(key, 8);
+			} else{
+				String hash = rs.getString(1);
+				hi = gen_utils.hex_to_long(hash, 0);
+				lo = gen_utils.hex_to_long(hash, 16);
+			} // Keys are read per the storage layout of the table
+
+			if(count > 0){
+				long cmp_hi = (prev_hi ^ Long.MIN_VALUE);
+				long key_hi = (hi ^ Long.MIN_VALUE);
+				if(cmp_hi == key_hi && prev_lo == lo)
+					continue; // Duplicates are written once
+				if(cmp_hi > key_hi || (cmp_hi == key_hi &&
+						(prev_lo ^ Long.MIN_VALUE) > (lo ^ Long.MIN_VALUE))){
+					rs.close();
+					stmt.close();
+					raf.close();
+					tmp.delete();
+					throw new Exception("Hashes of " + list_type +
+							" are not in ascending order");
+				} // Binary search requires a strictly sorted file
+			} // e.g., mixed-case hex under a binary collation
+
+			if(buf.remaining() < KEY_SIZE){
+				buf.flip();
+				while(buf.hasRemaining())
+					channel.write(buf);
+				buf.clear();
+			} // Flush the write buffer when full
+			buf.putLong(hi).putLong(lo);
+			prev_hi = hi;
+			prev_lo = lo;
+			count++;
+		} // Append each hash, in order
+		rs.close();
+		stmt.close();
+
+		buf.flip();
+		while(buf.hasRemaining())
+			channel.write(buf);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(version).putLong(count);
+		header.flip();
+		channel.write(header, 0);
+		channel.force(true);
+		raf.close();
+
+		if(!tmp.renameTo(target))
+			throw new Exception("Could not replace snapshot " + target);
+		return(count);
+	}
+
+	/**
+	 * Return the version of the snapshot file of a list, without mapping it.
+	 * @param dir Directory in which snapshot files are kept
+	 * @param list_type Blacklist whose snapshot is of interest
+	 * @return Version of the list snapshot, or -1 if there is no (valid)
+	 * snapshot file
+	 */
+	public static int file_version(String dir, LIST_TYPE list_type){
+		try{RandomAccessFile raf = new RandomAccessFile(
+					snapshot_file(dir, list_type), "r");
+			int magic = raf.readInt();
+			int version = raf.readInt();
+			raf.close();
+			return(magic == MAGIC ? version : -1);
+		} catch(Exception e){return(-1);} // Missing or truncated
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Return the snapshot file of a list.
+	 * @param dir Directory in which snapshot files are kept
+	 * @param list_type Blacklist whose snapshot file is desired
+	 * @return Snapshot file of 'list_type' ([dir]/[list_type].snap)
+	 */
+	private static File snapshot_file(String dir, LIST_TYPE list_type){
+		return(new File(dir, list_type + ".snap"));
+	}
+
+	/**
+	 * Map a snapshot file into memory, validating its header.
+	 * @param file Snapshot file to be mapped
+	 * @return Mapping of the whole file
+	 */
+	private static mapping map_file(File file) throws Exception{
+		long modified = file.lastModified();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{long length = raf.length();
+			if(length < HEADER_SIZE || length > Integer.MAX_VALUE)
+				throw new Exception("Invalid snapshot size: " + file);
+			MappedByteBuffer buf = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, length);
+			long count = buf.getLong(8);
+			if(buf.getInt(0) != MAGIC ||
+					length != HEADER_SIZE + count * KEY_SIZE)
+				throw new Exception("Corrupt snapshot: " + file);
+			return(new mapping(buf, buf.getInt(4), (int) count, length,
+					modified));
+		} finally{raf.close();} // Mapping remains valid once closed
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * A mapped snapshot file, and the metadata read from it.
+	 */
+	private static class mapping{
+
+		/**
+		 * Read-only mapping of the whole file.
+		 */
+		final MappedByteBuffer buf;
+
+		/**
+		 * List version the snapshot reflects.
+		 */
+		final int version;
+
+		/**
+		 * Number of hashes in the snapshot.
+		 */
+		final int count;
+
+		/**
+		 * Length of, and last modification time of, the file mapped.
+		 */
+		final long length, modified;
+
+		/**
+		 * Construct a [mapping].
+		 */
+		mapping(MappedByteBuffer buf, int version, int count, long length,
+				long modified){
+			this.buf = buf;
+			this.version = version;
+			this.count = count;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+
+}
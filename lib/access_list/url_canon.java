@@ -0,0 +1,572 @@
+package access_list;
+
+import java.io.BufferedReader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import common_utils.gen_utils;
+
+/**
+ * Andrew G. West - url_canon.java - Single-pass URL canonicalizer. This
+ * produces exactly the output of [sb_interface.legacy_canonical_url], but
+ * rather than re-parsing via [java.net.URL] and repeatedly rebuilding
+ * strings with indexOf()/substring() loops (quadratic on adversarial input,
+ * e.g., long runs of "//" or "/./"), it walks each URL component once over
+ * reusable char buffers, writing straight into a reusable output buffer.
+ *
+ * The common shape of URL -- "http(s)://host/path?query#ref", with no user
+ * info, port, or IPv6 literal -- takes the fast path. Anything else (rare
+ * in practice) is handed to the legacy method, so that output is identical
+ * by construction. Hex-unescaping follows [URLDecoder] to the letter,
+ * including its repeat-until-no-'%' loop; each further level of escaping
+ * costs one further linear pass over that component.
+ *
+ * Each thread owns one instance (see get()), as the buffers are reused.
+ */
+public class url_canon{
+
+	// **************************** PACKAGE FIELDS ***************************
+
+	/**
+	 * Outcomes of canonicalize_in_place().
+	 */
+	static final int IN_BUFFER = 0, FAILED = 1, DEFERRED = 2;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Upper-case hex digits, as [URLEncoder] emits them.
+	 */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Charset in which %-escaped byte sequences are decoded.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One canonicalizer per thread, since buffers are reused.
+	 */
+	private static final ThreadLocal<url_canon> per_thread =
+		new ThreadLocal<url_canon>(){
+			protected url_canon initialValue(){
+				return(new url_canon());
+			}
+		};
+
+	/**
+	 * Buffer into which the canonical URL is written.
+	 */
+	private final StringBuilder out;
+
+	/**
+	 * Ping-pong buffers for unescaping a component; after unescape(), the
+	 * result is in 'dec' (of length 'dec_len').
+	 */
+	private char[] dec, tmp;
+
+	/**
+	 * Length of the unescaped component held in 'dec'.
+	 */
+	private int dec_len;
+
+	/**
+	 * TRUE if the output of the last unescape round contained a '%'.
+	 */
+	private boolean round_has_pct;
+
+	/**
+	 * Bytes of a run of %-escapes, being gathered for UTF-8 decoding.
+	 */
+	private byte[] group;
+
+	/**
+	 * Output positions of the path segments currently retained, so that
+	 * a "/../" can drop its preceding segment in constant time.
+	 */
+	private int[] segments;
+
+	/**
+	 * Positions, within 'out', of the start and end of the host, and the
+	 * end of the path, of the last URL canonicalized in place.
+	 */
+	private int out_host_start, out_host_end, out_path_end;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [url_canon]. Use get() rather than constructing directly.
+	 */
+	private url_canon(){
+		this.out = new StringBuilder(256);
+		this.dec = new char[256];
+		this.tmp = new char[256];
+		this.group = new byte[86];
+		this.segments = new int[32];
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Differential test of this canonicalizer against the
+	 * legacy one, over a corpus of URLs.
+	 * @param args One argument is required: (1) The path to a file
+	 * containing, one per line, URLs to be canonicalized both ways (the
+	 * Maven build runs this over 'access_list/url_corpus.txt'). Every URL
+	 * whose outputs differ is printed, followed by a summary.
+	 * @throws Exception If any URL canonicalized differently
+	 */
+	public static void main(String[] args) throws Exception{
+		url_canon canon = url_canon.get();
+		BufferedReader in = gen_utils.create_reader(args[0]);
+		long num_urls = 0, num_diffs = 0, num_null = 0;
+		String url = in.readLine();
+		while(url != null){
+			num_urls++;
+			String fast = canon.canonicalize(url);
+			String legacy = sb_interface.legacy_canonical_url(url);
+			if(legacy == null)
+				num_null++;
+			if(fast == null ? legacy != null : !fast.equals(legacy)){
+				num_diffs++;
+				System.out.println("DIFF: " + url + "\n  fast:   " + fast +
+						"\n  legacy: " + legacy);
+			} // Outputs must be identical, NULLs included
+			url = in.readLine();
+		} // Compare outputs for every URL in the corpus
+		in.close();
+		System.out.println(num_urls + " URLs, " + num_diffs + " differences, " +
+				num_null + " not canonicalizable");
+		if(num_diffs > 0)
+			throw new Exception(num_diffs + " URL(s) canonicalized differently");
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Return the canonicalizer belonging to the calling thread.
+	 * @return A [url_canon] which only the calling thread will be handed
+	 */
+	public static url_canon get(){
+		return(per_thread.get());
+	}
+
+	/**
+	 * Given a URL, make that URL canonical per Google specification.
+	 * @param url URL to be processed
+	 * @return Canonical version of the URL passed in, per the spec. at
+	 * http://code.google.com/apis/safebrowsing/developers_guide.html, and
+	 * identical to [sb_interface.legacy_canonical_url]. NULL is returned
+	 * wherever the legacy method would return NULL.
+	 */
+	public String canonicalize(String url){
+		int status = canonicalize_in_place(url);
+		if(status == IN_BUFFER)
+			return(out.toString());
+		if(status == DEFERRED)
+			return(sb_interface.legacy_canonical_url(url));
+		return(null);
+	}
+
+
+	// ************************** PACKAGE METHODS ****************************
+
+	/**
+	 * Canonicalize a URL into the reusable output buffer, recording where
+	 * its components lie, so callers (i.e., [url_forms]) may work from the
+	 * buffer without materializing or re-parsing the canonical URL.
+	 * @param url URL to be processed
+	 * @return IN_BUFFER if the canonical URL is now in buffer(), with its
+	 * components at host_start(), host_end(), and path_end(). FAILED if the
+	 * URL cannot be canonicalized. DEFERRED if the URL is of a shape left
+	 * to [sb_interface.legacy_canonical_url] (the buffer is then invalid).
+	 */
+	int canonicalize_in_place(String url){
+
+		if(url == null)
+			return(FAILED);
+		int len = url.length();
+		int scheme_end = scheme_end(url);
+		if(scheme_end < 0 || url.charAt(0) <= ' ' || url.charAt(len-1) <= ' ')
+			return(DEFERRED);
+
+			// Split into components, as [java.net.URL] would
+		int auth_start = scheme_end + 3, auth_end = auth_start;
+		char c;
+		while(auth_end < len && (c = url.charAt(auth_end)) != '/' &&
+				c != '?' && c != '#'){
+			if(c == '@' || c == ':' || c < 0x20 || c >= 0x7f)
+				return(DEFERRED);
+			auth_end++;
+		} // User-info, ports, and hosts [java.net.URL] may reject are left
+		  // to the legacy method (which host chars it rejects varies by JRE)
+		if(auth_end == auth_start || url.charAt(auth_start) == '[')
+			return(DEFERRED);
+		int path_end = auth_end;
+		while(path_end < len && (c = url.charAt(path_end)) != '?' && c != '#')
+			path_end++;
+		int query_end = -1;
+		if(path_end < len && url.charAt(path_end) == '?'){
+			query_end = path_end + 1;
+			while(query_end < len && url.charAt(query_end) != '#')
+				query_end++;
+		} // Query runs from the '?' to any '#' (the ref is discarded)
+
+		out.setLength(0);
+		out.append(url, 0, scheme_end).append("://");
+		for(int i=0; i < scheme_end; i++)
+			out.setCharAt(i, (char) (out.charAt(i) | 0x20));
+
+			// ***** HOST PROCESSING
+		if(!unescape(url, auth_start, auth_end))
+			return(FAILED);
+		out_host_start = out.length();
+		append_host();
+		out_host_end = out.length();
+		if(path_end == auth_end)
+			out.append('/'); // Add trailing slash if path is empty
+
+			// ***** PATH PROCESSING
+		if(!unescape(url, auth_end, path_end))
+			return(FAILED);
+		if(!append_path())
+			return(FAILED);
+		out_path_end = out.length();
+
+			// ***** QUERY PROCESSING
+		if(query_end >= 0 && unescape(url, path_end + 1, query_end)){
+			out.append('?');
+			for(int i=0; i < dec_len; i++)
+				append_escaped(dec[i]);
+		} // An un-decodable query is dropped, rather than failing the URL
+		return(IN_BUFFER);
+	}
+
+	/**
+	 * Return the buffer holding the last URL canonicalized in place.
+	 * @return Output buffer, valid until the next canonicalization
+	 */
+	CharSequence buffer(){
+		return(out);
+	}
+
+	/**
+	 * Return where the host of the last in-place canonicalization begins.
+	 * @return Index of the first host character in buffer()
+	 */
+	int host_start(){
+		return(out_host_start);
+	}
+
+	/**
+	 * Return where the host of the last in-place canonicalization ends.
+	 * @return Index just past the host in buffer(); the path begins here
+	 */
+	int host_end(){
+		return(out_host_end);
+	}
+
+	/**
+	 * Return where the path of the last in-place canonicalization ends.
+	 * @return Index just past the path in buffer(). If this is not the
+	 * buffer's length, then a '?' and the query follow.
+	 */
+	int path_end(){
+		return(out_path_end);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Determine if a URL begins with an "http://" or "https://" scheme (in
+	 * any case), which are the only ones handled by the fast path.
+	 * @param url URL to be examined
+	 * @return Length of the scheme name (4 or 5), or -1 if neither matches
+	 */
+	private static int scheme_end(String url){
+		if(url.length() < 8 || (url.charAt(0) | 0x20) != 'h' ||
+				(url.charAt(1) | 0x20) != 't' ||
+				(url.charAt(2) | 0x20) != 't' ||
+				(url.charAt(3) | 0x20) != 'p')
+			return(-1);
+		int end = 4;
+		if((url.charAt(end) | 0x20) == 's')
+			end++;
+		if(url.length() < end + 3 || url.charAt(end) != ':' ||
+				url.charAt(end+1) != '/' || url.charAt(end+2) != '/')
+			return(-1);
+		return(end);
+	}
+
+	/**
+	 * Unescape a URL component into 'dec', repeating until no '%' remains,
+	 * exactly as the legacy unescape() does via [URLDecoder].
+	 * @param url URL containing the component
+	 * @param from Start index of the component within 'url'
+	 * @param to End index (exclusive) of the component within 'url'
+	 * @return TRUE if unescaping succeeded. FALSE if it failed, wherein the
+	 * legacy method would have produced NULL.
+	 */
+	private boolean unescape(String url, int from, int to){
+
+		int len = to - from;
+		if(dec.length < len){
+			dec = new char[len];
+			tmp = new char[len];
+		} // Unescaping never lengthens a string
+		boolean has_pct = false;
+		for(int i=from; i < to; i++){
+			char c = url.charAt(i);
+			if(c == '%'){
+				if(i + 2 >= to || !is_ascii_hex(url.charAt(i+1)) ||
+						!is_ascii_hex(url.charAt(i+2)))
+					return(false);
+				has_pct = true;
+			} // Percent must initially be followed by two-digit hex
+			dec[i - from] = c;
+		} // Validate while copying the component in
+		dec_len = len;
+
+		while(has_pct){
+			dec_len = decode_round(dec, dec_len, tmp);
+			if(dec_len < 0)
+				return(false);
+			char[] swap = dec;
+			dec = tmp;
+			tmp = swap;
+			has_pct = round_has_pct;
+		} // Repeatedly unescape, as the legacy method does
+		return(true);
+	}
+
+	/**
+	 * A single round of unescaping, identical to URLDecoder.decode(s,
+	 * "UTF-8"), including its quirks: '+' becomes a space, a run of escapes
+	 * is decoded together as UTF-8 (malformed input is replaced), and the
+	 * hex is parsed by Integer.parseInt() (so a sign is tolerated).
+	 * @param src Buffer holding the string to be decoded
+	 * @param len Length of the string in 'src'
+	 * @param dst Buffer into which the decoded string is written
+	 * @return Length of the decoded string, or -1 where [URLDecoder] would
+	 * throw an exception
+	 */
+	private int decode_round(char[] src, int len, char[] dst){
+		int n = 0, i = 0;
+		round_has_pct = false;
+		while(i < len){
+			char c = src[i];
+			if(c == '+'){
+				dst[n++] = ' ';
+				i++;
+			} else if(c == '%'){
+				if(group.length < len / 3)
+					group = new byte[len / 3];
+				int pos = 0;
+				boolean ascii = true;
+				while(i + 2 < len && c == '%'){
+					int v = parse_hex_pair(src[i+1], src[i+2]);
+					if(v < 0)
+						return(-1);
+					group[pos++] = (byte) v;
+					ascii &= (v < 0x80);
+					i += 3;
+					if(i < len)
+						c = src[i];
+				} // Gather a run of consecutive escapes
+				if(i < len && c == '%')
+					return(-1); // Incomplete trailing escape
+				if(ascii){
+					for(int j=0; j < pos; j++){
+						dst[n] = (char) group[j];
+						round_has_pct |= (dst[n++] == '%');
+					} // ASCII needs no decoder
+				} else{
+					String decoded = new String(group, 0, pos, UTF8);
+					for(int j=0; j < decoded.length(); j++){
+						dst[n] = decoded.charAt(j);
+						round_has_pct |= (dst[n++] == '%');
+					} // Multi-byte (or malformed) runs use a real decoder
+				} // Write out the decoded run
+			} else{
+				dst[n++] = c;
+				i++;
+			} // Every other character is copied as-is
+		} // Single left-to-right pass
+		return(n);
+	}
+
+	/**
+	 * Parse two characters as hex, as Integer.parseInt(s, 16) would.
+	 * @param c1 First character
+	 * @param c2 Second character
+	 * @return Value of "c1c2" as a hex integer, or -1 where [URLDecoder]
+	 * would reject it (not a number, or a negative number)
+	 */
+	private static int parse_hex_pair(char c1, char c2){
+		int d2 = Character.digit(c2, 16);
+		if(d2 < 0)
+			return(-1);
+		if(c1 == '+')
+			return(d2);
+		if(c1 == '-')
+			return(d2 == 0 ? 0 : -1);
+		int d1 = Character.digit(c1, 16);
+		if(d1 < 0)
+			return(-1);
+		return(d1 * 16 + d2);
+	}
+
+	/**
+	 * Append the unescaped host (in 'dec') to the output: lower-cased, with
+	 * non-standard characters escaped once, leading and trailing dots
+	 * removed, and runs of dots collapsed to one.
+	 */
+	private void append_host(){
+
+		char[] host = dec;
+		int len = dec_len;
+		boolean ascii = !lower_is_locale_sensitive();
+		for(int i=0; i < len && ascii; i++)
+			ascii = (host[i] < 0x80);
+		if(!ascii){
+			String lower = new String(host, 0, len).toLowerCase();
+			host = lower.toCharArray();
+			len = host.length;
+		} // Rare non-ASCII hosts use the full (locale) lower-casing
+
+		boolean emitted = false, pending_dot = false;
+		for(int i=0; i < len; i++){
+			char c = host[i];
+			if(c == '.'){
+				pending_dot = emitted;
+				continue;
+			} // Dots are deferred, so leading/trailing/runs vanish
+			if(c >= 'A' && c <= 'Z' && ascii)
+				c = (char) (c | 0x20);
+			if(pending_dot){
+				out.append('.');
+				pending_dot = false;
+			}
+			if((c>='0' && c<='9') || (c>='a' && c<='z') || c=='-' ||
+					(c>='A' && c<='Z') || c=='_' || c=='*')
+				out.append(c);
+			else if(c == ' ')
+				out.append('+');
+			else append_utf8_escape(c);
+			emitted = true;
+		} // Escape as URLEncoder.encode() does, one char at a time
+	}
+
+	/**
+	 * Append the unescaped path (in 'dec') to the output: with runs of "/"
+	 * collapsed, "/./" removed, "/../" resolved, and all non-standard
+	 * characters escaped once.
+	 * @return TRUE if successful. FALSE if a "/../" would climb above the
+	 * root, wherein the legacy method fails (and returns NULL).
+	 */
+	private boolean append_path(){
+
+		int num_segments = 0;
+		int i = 0;
+		while(i < dec_len){
+			while(i < dec_len && dec[i] == '/')
+				i++; // Collapse runs of slashes
+			int seg_start = i;
+			while(i < dec_len && dec[i] != '/')
+				i++;
+			int seg_len = i - seg_start;
+			boolean has_slash = (i < dec_len);
+
+			if(has_slash && seg_len == 1 && dec[seg_start] == '.')
+				continue; // Remove "/./"
+			if(has_slash && seg_len == 2 && dec[seg_start] == '.' &&
+					dec[seg_start+1] == '.'){
+				if(num_segments == 0)
+					return(false);
+				out.setLength(segments[--num_segments]);
+				continue;
+			} // Resolve "/../" against the previous segment
+
+			if(has_slash){
+				if(num_segments == segments.length){
+					int[] grown = new int[segments.length * 2];
+					System.arraycopy(segments, 0, grown, 0, num_segments);
+					segments = grown;
+				}
+				segments[num_segments++] = out.length();
+			} // Only segments followed by a slash may be popped
+			out.append('/');
+			for(int j=seg_start; j < i; j++)
+				append_escaped(dec[j]);
+		} // Walk segment by segment
+		return(true);
+	}
+
+	/**
+	 * Append a path or query character, escaped per the legacy escape():
+	 * characters with ASCII <=32, >=127, or '%' are escaped.
+	 * @param c Character to be appended
+	 */
+	private void append_escaped(char c){
+		if(c == ' ')
+			out.append("%20");
+		else if(c <= 32 || c >= 127 || c == '%')
+			append_utf8_escape(c);
+		else out.append(c);
+	}
+
+	/**
+	 * Append the %-escaped UTF-8 encoding of a single character, as does
+	 * URLEncoder.encode() on a one-character string (so a surrogate, lacking
+	 * its pair, encodes as a '?').
+	 * @param c Character to be appended
+	 */
+	private void append_utf8_escape(char c){
+		if(c < 0x80)
+			append_byte_escape(c);
+		else if(c < 0x800){
+			append_byte_escape(0xc0 | (c >> 6));
+			append_byte_escape(0x80 | (c & 0x3f));
+		} else if(c >= 0xd800 && c <= 0xdfff)
+			append_byte_escape('?');
+		else{
+			append_byte_escape(0xe0 | (c >> 12));
+			append_byte_escape(0x80 | ((c >> 6) & 0x3f));
+			append_byte_escape(0x80 | (c & 0x3f));
+		} // Encode per the width of the UTF-8 sequence
+	}
+
+	/**
+	 * Append a byte as a "%XX" escape, in upper-case hex.
+	 * @param b Byte to be appended
+	 */
+	private void append_byte_escape(int b){
+		out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+	}
+
+	/**
+	 * Determine if a character is an ASCII hex digit.
+	 * @param c Character to be examined
+	 * @return TRUE if 'c' is in [0-9a-fA-F]. FALSE, otherwise.
+	 */
+	private static boolean is_ascii_hex(char c){
+		return((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') ||
+				(c >= 'A' && c <= 'F'));
+	}
+
+	/**
+	 * Determine if String.toLowerCase() would treat ASCII specially under
+	 * the default locale (e.g., the dotless 'i' of Turkish).
+	 * @return TRUE if ASCII lower-casing may not be applied directly
+	 */
+	private static boolean lower_is_locale_sensitive(){
+		String lang = Locale.getDefault().getLanguage();
+		return(lang.equals("tr") || lang.equals("az") || lang.equals("lt"));
+	}
+
+}
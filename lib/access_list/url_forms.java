@@ -0,0 +1,380 @@
+package access_list;
+
+import java.io.BufferedReader;
+import java.util.List;
+
+import access_list.sb_metrics.STAGE;
+
+import common_utils.gen_utils;
+
+/**
+ * Andrew G. West - url_forms.java - Generation of the forms (host/path
+ * reductions) of a URL which a Safe Browsing lookup must check, identical
+ * to [sb_interface.get_url_forms]. Rather than re-parsing the canonical URL
+ * and building a string for every host-by-path pairing, this works from
+ * the offsets [url_canon] records: each host suffix is a start offset into
+ * the canonical URL, each path prefix an end offset into a shared buffer,
+ * and a form is only assembled (into one reusable buffer) as it is read.
+ *
+ * Where re-parsing the canonical URL would not simply recover its pieces
+ * (e.g., an unescaped '?' or '#' in the path), or the URL took the legacy
+ * canonicalization path, the legacy generator is used instead.
+ *
+ * Each thread owns one instance (see get()), as the buffers are reused.
+ */
+public class url_forms{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Maximum number of host suffixes, and of paths, per the specification.
+	 */
+	private static final int MAX_HOSTS = 5, MAX_PATHS = 6;
+
+	/**
+	 * Sources of a path: a range of the canonical URL, a prefix of the path
+	 * element buffer, or the root path "/".
+	 */
+	private static final int SRC_CANON = 0, SRC_ELEMENT = 1, SRC_ROOT = 2;
+
+	/**
+	 * One generator per thread, since buffers are reused.
+	 */
+	private static final ThreadLocal<url_forms> per_thread =
+		new ThreadLocal<url_forms>(){
+			protected url_forms initialValue(){
+				return(new url_forms());
+			}
+		};
+
+	/**
+	 * Canonicalizer (of this same thread) holding the current URL.
+	 */
+	private final url_canon canon;
+
+	/**
+	 * Start offsets (into the canonical URL) of each host suffix. All host
+	 * suffixes end where the canonical host does.
+	 */
+	private final int[] host_starts;
+
+	/**
+	 * Positions of the right-most dots of the host, right-to-left.
+	 */
+	private final int[] dots;
+
+	/**
+	 * Source, start, and end of each path (see SRC_* constants).
+	 */
+	private final int[] path_src, path_from, path_to;
+
+	/**
+	 * Buffer of path elements; each element-path is a prefix of it.
+	 */
+	private final StringBuilder elements;
+
+	/**
+	 * Buffer into which the form being read is assembled.
+	 */
+	private final StringBuilder form;
+
+	/**
+	 * Number of hosts and paths in the current cross-product.
+	 */
+	private int num_hosts, num_paths;
+
+	/**
+	 * Forms of the current URL, if the legacy generator was used (else NULL).
+	 */
+	private List<String> legacy_forms;
+
+	/**
+	 * Status (see [url_canon.canonicalize_in_place]) of the current URL.
+	 */
+	private int status = url_canon.FAILED;
+
+	/**
+	 * Canonical form of the current URL, if it was left to the legacy
+	 * canonicalizer (else NULL).
+	 */
+	private String legacy_canon;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [url_forms]. Use get() rather than constructing directly.
+	 */
+	private url_forms(){
+		this.canon = url_canon.get();
+		this.host_starts = new int[MAX_HOSTS];
+		this.dots = new int[MAX_HOSTS];
+		this.path_src = new int[MAX_PATHS];
+		this.path_from = new int[MAX_PATHS];
+		this.path_to = new int[MAX_PATHS];
+		this.elements = new StringBuilder(256);
+		this.form = new StringBuilder(256);
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Differential test of this generator against the legacy
+	 * one, over a corpus of (raw) URLs.
+	 * @param args One argument is required: (1) The path to a file
+	 * containing, one per line, URLs whose forms should be generated both
+	 * ways (the Maven build runs this over 'access_list/url_corpus.txt').
+	 * Every URL whose forms differ is printed, followed by a summary.
+	 * @throws Exception If the forms of any URL differed
+	 */
+	public static void main(String[] args) throws Exception{
+		url_forms forms = url_forms.get();
+		BufferedReader in = gen_utils.create_reader(args[0]);
+		long num_urls = 0, num_diffs = 0;
+		String url = in.readLine();
+		while(url != null){
+			num_urls++;
+			List<String> legacy = sb_interface.get_url_forms(
+					sb_interface.legacy_canonical_url(url));
+			int num_forms = forms.generate(url);
+			boolean same = (num_forms == legacy.size());
+			for(int i=0; same && i < num_forms; i++)
+				same = forms.form(i).toString().equals(legacy.get(i));
+			if(!same){
+				num_diffs++;
+				System.out.println("DIFF: " + url);
+			} // Forms must be identical, and in the same order
+			url = in.readLine();
+		} // Compare forms for every URL in the corpus
+		in.close();
+		System.out.println(num_urls + " URLs, " + num_diffs + " differences");
+		if(num_diffs > 0)
+			throw new Exception(num_diffs + " URL(s) generated different forms");
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Return the form generator belonging to the calling thread.
+	 * @return A [url_forms] which only the calling thread will be handed
+	 */
+	public static url_forms get(){
+		return(per_thread.get());
+	}
+
+	/**
+	 * Canonicalize a URL and compute all forms (reductions) of it which
+	 * should be checked per Google Safe Browsing specifications. The forms
+	 * may then be read via form(), until the next call to this method.
+	 * @param url URL to be processed (raw, not canonical)
+	 * @return Number of forms generated (zero if 'url' cannot be made
+	 * canonical), in the order [sb_interface.get_url_forms] lists them
+	 */
+	public int generate(String url) throws Exception{
+		canonicalize(url);
+		return(generate_canonical());
+	}
+
+	/**
+	 * Canonicalize a URL, making it the current URL, without yet computing
+	 * its forms. Its canonical form may then be read via canonical_url(),
+	 * and its forms computed via generate_canonical(), at no further cost
+	 * of canonicalization.
+	 * @param url URL to be processed (raw, not canonical)
+	 * @return TRUE if 'url' could be made canonical. FALSE, otherwise.
+	 */
+	public boolean canonicalize(String url){
+		legacy_forms = null;
+		long start = System.nanoTime();
+		status = canon.canonicalize_in_place(url);
+		legacy_canon = null;
+		if(status == url_canon.DEFERRED)
+			legacy_canon = sb_interface.legacy_canonical_url(url);
+		sb_metrics.get().record(STAGE.canonicalize, start);
+		return(status == url_canon.IN_BUFFER || legacy_canon != null);
+	}
+
+	/**
+	 * Return the canonical form of the current URL (see canonicalize()).
+	 * @return Canonical URL, identical to [url_canon.canonicalize], or
+	 * NULL if the current URL cannot be made canonical
+	 */
+	public String canonical_url(){
+		if(status == url_canon.IN_BUFFER)
+			return(canon.buffer().toString());
+		return(legacy_canon);
+	}
+
+	/**
+	 * Compute the forms of the current URL (see canonicalize()). The
+	 * canonicalizer of this thread must not have been used in between.
+	 * @return Number of forms generated (zero if the current URL cannot be
+	 * made canonical), in the order [sb_interface.get_url_forms] lists them
+	 */
+	public int generate_canonical() throws Exception{
+
+		sb_metrics metrics = sb_metrics.get();
+		long start = System.nanoTime();
+		if(status == url_canon.FAILED)
+			return(0);
+		if(status == url_canon.DEFERRED){
+			legacy_forms = sb_interface.get_url_forms(legacy_canon);
+			metrics.record(STAGE.forms, start);
+			return(legacy_forms.size());
+		} // Legacy canonicalization implies legacy forms
+
+		CharSequence buf = canon.buffer();
+		int host_start = canon.host_start();
+		int host_end = canon.host_end();
+		int path_end = canon.path_end();
+		if(host_start == host_end ||
+				contains(buf, host_end, path_end, '?') ||
+				contains(buf, host_end, buf.length(), '#')){
+			legacy_forms = sb_interface.get_url_forms(buf.toString());
+			metrics.record(STAGE.forms, start);
+			return(legacy_forms.size());
+		} // Re-parsing would re-split this URL; let the legacy method do it
+
+		find_hosts(buf, host_start, host_end);
+		find_paths(buf, host_end, path_end, buf.length());
+		metrics.record(STAGE.forms, start);
+		return(num_hosts * num_paths);
+	}
+
+	/**
+	 * Return one of the forms of the last URL processed by generate().
+	 * @param i Index of the form, in [0, number of forms)
+	 * @return Form number 'i'. This is a reused buffer, valid only until
+	 * the next call to this method (or to generate()).
+	 */
+	public CharSequence form(int i){
+		if(legacy_forms != null)
+			return(legacy_forms.get(i));
+
+		int host = i / num_paths, path = i % num_paths;
+		CharSequence buf = canon.buffer();
+		form.setLength(0);
+		form.append(buf, host_starts[host], canon.host_end());
+		if(path_src[path] == SRC_CANON)
+			form.append(buf, path_from[path], path_to[path]);
+		else if(path_src[path] == SRC_ELEMENT)
+			form.append(elements, 0, path_to[path]);
+		else form.append('/');
+		return(form);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Determine the host suffixes to be checked: the exact host, plus the
+	 * last k components of the host for k = min(components-1, 5) down to 2.
+	 * @param buf Buffer containing the canonical URL
+	 * @param start Index at which the host begins in 'buf'
+	 * @param end Index just past the host in 'buf'
+	 */
+	private void find_hosts(CharSequence buf, int start, int end){
+		host_starts[0] = start;
+		num_hosts = 1;
+		int num_dots = 0;
+		for(int i=end-1; i > start && num_dots < MAX_HOSTS; i--){
+			if(buf.charAt(i) == '.')
+				dots[num_dots++] = i;
+		} // Find (up to five of) the right-most dots
+		for(int k=num_dots; k >= 2; k--)
+			host_starts[num_hosts++] = dots[k-1] + 1;
+	}
+
+	/**
+	 * Determine the paths to be checked: the path plus query, the exact
+	 * path, the root path, and successively longer element-paths.
+	 * @param buf Buffer containing the canonical URL
+	 * @param start Index at which the path begins in 'buf'
+	 * @param end Index just past the path in 'buf'
+	 * @param query_end Index just past the query in 'buf' (equal to 'end'
+	 * if there is no query)
+	 */
+	private void find_paths(CharSequence buf, int start, int end,
+			int query_end){
+		num_paths = 0;
+		boolean has_query = (query_end > end);
+		if(has_query)
+			add_path(SRC_CANON, start, query_end);
+		add_path(SRC_CANON, start, end);
+		boolean path_is_root = (end - start == 1);
+		if(!path_is_root)
+			add_path(SRC_ROOT, 0, 1);
+
+		int max_count = (has_query ? MAX_PATHS : MAX_PATHS - 1);
+		elements.setLength(0);
+		elements.append('/');
+		int i = start;
+		while(num_paths < max_count){
+			while(i < end && buf.charAt(i) == '/')
+				i++;
+			if(i == end)
+				break;
+			boolean has_dot = false;
+			while(i < end && buf.charAt(i) != '/'){
+				has_dot |= (buf.charAt(i) == '.');
+				elements.append(buf.charAt(i++));
+			} // Append the next (non-empty) element of the path
+			if(!has_dot)
+				elements.append('/');
+			if(!equals(elements, buf, start, end))
+				add_path(SRC_ELEMENT, 0, elements.length());
+		} // Make variable length paths, splitting on "/"
+	}
+
+	/**
+	 * Add a path to the current set of paths.
+	 * @param src Source of the path (see SRC_* constants)
+	 * @param from Start index of the path within its source
+	 * @param to End index of the path within its source
+	 */
+	private void add_path(int src, int from, int to){
+		path_src[num_paths] = src;
+		path_from[num_paths] = from;
+		path_to[num_paths] = to;
+		num_paths++;
+	}
+
+	/**
+	 * Determine if a character occurs within a range of a buffer.
+	 * @param buf Buffer to be searched
+	 * @param from Start index of the range
+	 * @param to End index (exclusive) of the range
+	 * @param c Character being sought
+	 * @return TRUE if 'c' occurs in buf[from, to). FALSE, otherwise.
+	 */
+	private static boolean contains(CharSequence buf, int from, int to,
+			char c){
+		for(int i=from; i < to; i++){
+			if(buf.charAt(i) == c)
+				return(true);
+		} // Simple linear scan
+		return(false);
+	}
+
+	/**
+	 * Determine if a buffer equals a range of another buffer.
+	 * @param a First buffer, compared in its entirety
+	 * @param b Second buffer
+	 * @param from Start index of the range of 'b'
+	 * @param to End index (exclusive) of the range of 'b'
+	 * @return TRUE if 'a' equals b[from, to). FALSE, otherwise.
+	 */
+	private static boolean equals(CharSequence a, CharSequence b, int from,
+			int to){
+		if(a.length() != to - from)
+			return(false);
+		for(int i=0; i < a.length(); i++){
+			if(a.charAt(i) != b.charAt(from + i))
+				return(false);
+		} // Character-by-character comparison
+		return(true);
+	}
+
+}
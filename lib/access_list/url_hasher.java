@@ -0,0 +1,192 @@
+package access_list;
+
+import java.security.MessageDigest;
+
+/**
+ * Andrew G. West - url_hasher.java - MD5 hashing of URL forms, without the
+ * per-hash garbage of the naive approach. Each thread owns one instance
+ * (see get()), holding a reusable digest, input buffer, and output buffer.
+ * The result of the last hash is available as raw bytes, as two longs (the
+ * keys of the in-memory indexes), or -- only if asked -- as a hex string.
+ */
+public class url_hasher{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Lower-case hex digits, as Google represents hashes.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * One hasher per thread, since [MessageDigest] is not thread-safe.
+	 */
+	private static final ThreadLocal<url_hasher> per_thread =
+		new ThreadLocal<url_hasher>(){
+			protected url_hasher initialValue(){
+				return(new url_hasher());
+			}
+		};
+
+	/**
+	 * MD5 digest, reset and reused for every hash.
+	 */
+	private final MessageDigest md5;
+
+	/**
+	 * Buffer into which URL characters are encoded before hashing.
+	 */
+	private byte[] in;
+
+	/**
+	 * Output of the last hash computed.
+	 */
+	private final byte[] out;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [url_hasher]. Use get() rather than constructing directly.
+	 */
+	private url_hasher(){
+		try{this.md5 = MessageDigest.getInstance("MD5");
+		} catch(Exception e){ // Every JRE must provide MD5
+			throw new IllegalStateException("MD5 is unavailable", e);
+		}
+		this.in = new byte[256];
+		this.out = new byte[16];
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Return the hasher belonging to the calling thread.
+	 * @return A [url_hasher] which only the calling thread will be handed
+	 */
+	public static url_hasher get(){
+		return(per_thread.get());
+	}
+
+	/**
+	 * Hash a URL using the MD5 algorithm, per Google specification. The
+	 * result may be read via hi(), lo(), key(), or hex(), until the next
+	 * call to this method. Canonical URLs are ASCII, and are encoded into
+	 * a reusable buffer; anything else is encoded as UTF-8.
+	 * @param url URL to be hashed
+	 */
+	public void hash(CharSequence url){
+		int len = url.length();
+		if(in.length < len)
+			in = new byte[Math.max(len, in.length * 2)];
+		for(int i=0; i < len; i++){
+			char c = url.charAt(i);
+			if(c >= 0x80){
+				hash_bytes(utf8(url));
+				return;
+			} // Rare non-ASCII input takes the slow path
+			in[i] = (byte) c;
+		} // Encode ASCII straight into the input buffer
+		md5.update(in, 0, len);
+		finish();
+	}
+
+	/**
+	 * Return the most-significant 64 bits of the last hash computed.
+	 * @return First 8 bytes of the last digest, as a (big-endian) long
+	 */
+	public long hi(){
+		return(bytes_to_long(out, 0));
+	}
+
+	/**
+	 * Return the least-significant 64 bits of the last hash computed.
+	 * @return Last 8 bytes of the last digest, as a (big-endian) long
+	 */
+	public long lo(){
+		return(bytes_to_long(out, 8));
+	}
+
+	/**
+	 * Copy the last hash computed into a caller-provided buffer.
+	 * @param dest Buffer into which the 16-byte digest is copied
+	 * @param offset Position in 'dest' at which copying should begin
+	 */
+	public void key(byte[] dest, int offset){
+		System.arraycopy(out, 0, dest, offset, 16);
+	}
+
+	/**
+	 * Return the last hash computed as a hex string.
+	 * @return MD5 hash (a string of lower-case hex) of the last URL hashed
+	 */
+	public String hex(){
+		return(key_to_hex(hi(), lo()));
+	}
+
+	/**
+	 * Convert a 128-bit key to a hex string.
+	 * @param hi Most-significant 64 bits of the key
+	 * @param lo Least-significant 64 bits of the key
+	 * @return String of 32 lower-case hex characters representing the key
+	 */
+	public static String key_to_hex(long hi, long lo){
+		char[] hex = new char[32];
+		for(int i=15; i >= 0; i--){
+			hex[i] = HEX[(int) (hi & 0xf)];
+			hex[i+16] = HEX[(int) (lo & 0xf)];
+			hi >>>= 4;
+			lo >>>= 4;
+		} // Fill from least-significant nibble, right-to-left
+		return(new String(hex));
+	}
+
+	/**
+	 * Parse eight bytes into a long.
+	 * @param b Array containing (at least) 'offset'+8 bytes
+	 * @param offset Position of the first (most-significant) byte
+	 * @return Big-endian interpretation of b[offset, offset+8)
+	 */
+	public static long bytes_to_long(byte[] b, int offset){
+		long val = 0;
+		for(int i=offset; i < offset+8; i++)
+			val = (val << 8) | (b[i] & 0xff);
+		return(val);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Hash an already-encoded URL.
+	 * @param bytes Encoded form of the URL
+	 */
+	private void hash_bytes(byte[] bytes){
+		md5.update(bytes);
+		finish();
+	}
+
+	/**
+	 * Complete the digest into the output buffer (which also resets it).
+	 */
+	private void finish(){
+		try{md5.digest(out, 0, 16);
+		} catch(Exception e){ // Output buffer is always large enough
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encode a character sequence as UTF-8.
+	 * @param url Character sequence to encode
+	 * @return UTF-8 bytes of 'url'
+	 */
+	private static byte[] utf8(CharSequence url){
+		try{return(url.toString().getBytes("UTF-8"));
+		} catch(Exception e){ // Every JRE must provide UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
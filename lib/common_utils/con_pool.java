@@ -0,0 +1,342 @@
+package common_utils;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import common_utils.db_con.DBS;
+
+/**
+ * Andrew G. West - con_pool.java - A bounded pool of connections to some
+ * database, so that callers may borrow and return connections rather than
+ * paying a TCP and authentication handshake for every use. Connections
+ * are validated as they are borrowed, and those idle for too long (beyond
+ * the minimum pool size) are evicted by a background timer.
+ */
+public class con_pool{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Seconds permitted for a validation check on a borrowed connection.
+	 */
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	/**
+	 * Database to which pooled connections are made.
+	 */
+	private final DBS db;
+
+	/**
+	 * Number of connections the pool will keep open, even if idle.
+	 */
+	private final int min_size;
+
+	/**
+	 * Maximum number of connections (borrowed or idle) open at once.
+	 */
+	private final int max_size;
+
+	/**
+	 * Milliseconds a connection may sit idle before it is evicted.
+	 */
+	private final long max_idle_ms;
+
+	/**
+	 * Idle connections, most recently returned at the head.
+	 */
+	private final LinkedList<idle_con> idle;
+
+	/**
+	 * Connections currently borrowed from this pool.
+	 */
+	private final Set<Connection> borrowed;
+
+	/**
+	 * Background timer performing idle eviction.
+	 */
+	private final Timer evictor;
+
+	/**
+	 * Number of connections currently open (borrowed or idle).
+	 */
+	private int num_open;
+
+	/**
+	 * TRUE once the pool has been shutdown.
+	 */
+	private boolean is_shutdown;
+
+	/**
+	 * Statistics: connections borrowed, opened, closed as invalid on
+	 * borrow, evicted as idle, and borrows which had to wait.
+	 */
+	private long num_borrows, num_opens, num_invalid, num_evicted, num_waits;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [con_pool], opening its minimum number of connections.
+	 * @param db Database to which pooled connections should be made
+	 * @param min_size Connections to keep open, even if idle
+	 * @param max_size Maximum connections open at once
+	 * @param max_idle_secs Seconds a connection may be idle before eviction
+	 */
+	public con_pool(DBS db, int min_size, int max_size, int max_idle_secs){
+		this.db = db;
+		this.min_size = min_size;
+		this.max_size = Math.max(max_size, 1);
+		this.max_idle_ms = max_idle_secs * 1000L;
+		this.idle = new LinkedList<idle_con>();
+		this.borrowed = Collections.newSetFromMap(
+				new IdentityHashMap<Connection, Boolean>());
+		for(int i=0; i < min_size; i++){
+			Connection con = db_con.open_con(db);
+			if(con != null){
+				num_open++;
+				num_opens++;
+				idle.addFirst(new idle_con(con));
+			} // An unreachable DB will just be retried on borrow
+		} // Pre-fill pool to its minimum size
+
+		this.evictor = new Timer("con_pool-" + db, true);
+		this.evictor.schedule(new TimerTask(){
+			public void run(){evict_idle();}
+		}, this.max_idle_ms, Math.max(this.max_idle_ms / 2, 1000));
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Borrow a connection from the pool, blocking if all are in use. An
+	 * idle connection is validated (a round-trip of up to
+	 * VALIDATION_TIMEOUT seconds) only after the pool lock is released, so
+	 * other borrowers and returners never wait on it.
+	 * @return Valid connection to the database, or NULL if a new connection
+	 * was needed but could not be opened
+	 * @throws IllegalStateException If the pool is (or, while waiting,
+	 * becomes) shutdown
+	 */
+	public Connection borrow() throws InterruptedException{
+		synchronized(this){
+			check_open();
+			num_borrows++;
+		}
+		while(true){
+			Connection con = null;
+			synchronized(this){
+				while(true){
+					check_open(); // Also after every wait
+					if(!idle.isEmpty()){
+						con = idle.removeFirst().con;
+						borrowed.add(con);
+						break;
+					} // Prefer an idle connection (validated below)
+					if(num_open < max_size){
+						num_open++;
+						break;
+					} // Reserve a slot to open a new one, outside the lock
+					num_waits++;
+					wait();
+				} // Otherwise wait for a connection to be returned
+			}
+			if(con == null)
+				return(open_reserved());
+			if(is_valid(con))
+				return(con);
+
+			close_quietly(con);
+			synchronized(this){
+				borrowed.remove(con);
+				num_invalid++;
+				num_open--;
+				notify();
+			} // Invalid connections are closed, and another tried
+		}
+	}
+
+	/**
+	 * Return a connection to the pool. Any open transaction is rolled
+	 * back, and auto-commit restored, so the next borrower sees a clean
+	 * connection. Closed or broken connections are simply discarded, as
+	 * are connections which were not borrowed from this pool.
+	 * @param con Connection previously obtained from borrow()
+	 */
+	public void give_back(Connection con){
+		if(con == null)
+			return;
+		synchronized(this){
+			if(!borrowed.remove(con)){
+				close_quietly(con);
+				return;
+			} // Not ours (e.g., from a since-replaced pool)
+		}
+		boolean reusable = true;
+		try{if(con.isClosed())
+				reusable = false;
+			else if(!con.getAutoCommit()){
+				con.rollback();
+				con.setAutoCommit(true);
+			} // Do not leak transaction state between borrowers
+		} catch(Exception e){reusable = false;}
+
+		synchronized(this){
+			if(reusable && !is_shutdown)
+				idle.addFirst(new idle_con(con));
+			else{
+				num_open--;
+				reusable = false;
+			} // Connections returned after shutdown are closed
+			notify();
+		}
+		if(!reusable)
+			close_quietly(con);
+	}
+
+	/**
+	 * Summarize the current state of the pool.
+	 * @return Human-readable pool statistics
+	 */
+	public synchronized String stats(){
+		return(db + " pool: " + num_open + " open (" + idle.size() +
+				" idle, " + (num_open - idle.size()) + " borrowed; min " +
+				min_size + ", max " + max_size + "), " + num_borrows +
+				" borrows, " + num_waits + " waits, " + num_opens +
+				" opened, " + num_invalid + " invalid, " + num_evicted +
+				" evicted");
+	}
+
+	/**
+	 * Close all idle connections and stop the eviction timer. Connections
+	 * still borrowed are closed as they are returned, and later (or
+	 * waiting) borrows are rejected.
+	 */
+	public void shutdown(){
+		evictor.cancel();
+		LinkedList<idle_con> to_close;
+		synchronized(this){
+			is_shutdown = true;
+			to_close = new LinkedList<idle_con>(idle);
+			num_open -= idle.size();
+			idle.clear();
+			notifyAll();
+		} // Waiting borrowers wake, and are rejected
+		for(idle_con ic : to_close)
+			close_quietly(ic.con);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Throw if the pool has been shutdown. Call with the pool lock held.
+	 * @throws IllegalStateException If the pool has been shutdown
+	 */
+	private void check_open(){
+		if(is_shutdown)
+			throw new IllegalStateException(db + " pool is shutdown");
+	}
+
+	/**
+	 * Open a new connection, into a slot already reserved by borrow().
+	 * @return New connection to the database, now borrowed, or NULL if it
+	 * could not be opened (wherein the slot is released)
+	 * @throws IllegalStateException If the pool was shutdown meanwhile
+	 * (wherein the slot is released, and the new connection closed)
+	 */
+	private Connection open_reserved(){
+		Connection con = db_con.open_con(db);
+		synchronized(this){
+			if(con == null || is_shutdown){
+				num_open--;
+				notify();
+			} else{
+				num_opens++;
+				borrowed.add(con);
+				return(con);
+			}
+		} // Slot is released if the open failed, or the pool is shutdown
+		if(con == null)
+			return(null);
+		close_quietly(con);
+		throw new IllegalStateException(db + " pool is shutdown");
+	}
+
+	/**
+	 * Close connections which have sat idle for too long, so long as the
+	 * pool remains at (or above) its minimum size. Oldest go first.
+	 */
+	private void evict_idle(){
+		LinkedList<Connection> to_close = new LinkedList<Connection>();
+		long now = System.currentTimeMillis();
+		synchronized(this){
+			Iterator<idle_con> iter = idle.descendingIterator();
+			while(iter.hasNext() && num_open > min_size){
+				idle_con ic = iter.next();
+				if(now - ic.since < max_idle_ms)
+					break;
+				iter.remove();
+				num_open--;
+				num_evicted++;
+				to_close.add(ic.con);
+			} // Idle list is ordered, so stop at the first young one
+		}
+		for(Connection con : to_close)
+			close_quietly(con);
+	}
+
+	/**
+	 * Determine if a connection is still usable.
+	 * @param con Connection to be checked
+	 * @return TRUE if 'con' is open and responsive. FALSE, otherwise.
+	 */
+	private static boolean is_valid(Connection con){
+		try{return(con.isValid(VALIDATION_TIMEOUT));
+		} catch(Exception e){return(false);}
+	}
+
+	/**
+	 * Close a connection, ignoring any error in doing so.
+	 * @param con Connection to be closed
+	 */
+	private static void close_quietly(Connection con){
+		try{con.close();
+		} catch(Exception e){} // Nothing more can be done with it
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * An idle connection, and the time at which it became idle.
+	 */
+	private static class idle_con{
+
+		/**
+		 * The idle connection.
+		 */
+		final Connection con;
+
+		/**
+		 * Time (in ms.) at which 'con' was returned to the pool.
+		 */
+		final long since;
+
+		/**
+		 * Construct an [idle_con], idle as of now.
+		 * @param con The idle connection
+		 */
+		idle_con(Connection con){
+			this.con = con;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+}
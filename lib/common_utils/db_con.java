@@ -2,6 +2,7 @@ package common_utils;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.util.EnumMap;
 
 /**
  * Andrew G. West - db_con.java - Streamlining DB-connectivity for the project
@@ -15,22 +16,121 @@ public class db_con{
 	 */
 	public enum DBS{presta_stiki, presta_spam, wiki_link_spam, dmoz, 
 		safe_browsing};
-	
-	
+
+	/**
+	 * Default number of connections a pool keeps open, even if idle.
+	 */
+	public static final int POOL_MIN_SIZE = 1;
+
+	/**
+	 * Default maximum number of connections a pool may have open.
+	 */
+	public static final int POOL_MAX_SIZE = 16;
+
+	/**
+	 * Default seconds a pooled connection may be idle before eviction.
+	 */
+	public static final int POOL_MAX_IDLE_SECS = 300;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Connection pools, created lazily, one per database.
+	 */
+	private static final EnumMap<DBS, con_pool> pools =
+		new EnumMap<DBS, con_pool>(DBS.class);
+
+
 	// **************************** PUBLIC METHODS ***************************
-	
+
 	/**
-	 * Retrieve a connection to some database.
+	 * Retrieve a connection to some database. This connection is not pooled;
+	 * it is the caller's to close. See borrow_con() for pooled connections.
 	 * @param DBS db Specific database to which connected should be made
 	 * @return Connection to DB, or NULL if there was a connection error
 	 */
 	public static Connection get_con(DBS db){
+		return(open_con(db));
+	}
+
+	/**
+	 * Borrow a connection to some database from its connection pool. The
+	 * pool is created (with default sizes) on first use.
+	 * @param DBS db Specific database to which connected should be made
+	 * @return Connection to DB, or NULL if there was a connection error. It
+	 * should be handed back via return_con(), rather than closed.
+	 */
+	public static Connection borrow_con(DBS db){
+		con_pool pool = get_pool(db);
+		while(true){
+			try{return(pool.borrow());
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return(null);
+			} catch(IllegalStateException e){
+				con_pool current = get_pool(db);
+				if(current == pool)
+					return(null);
+				pool = current;
+			} // Pool was replaced (and shutdown) by configure_pool()
+		}
+	}
+
+	/**
+	 * Return a borrowed connection to its connection pool.
+	 * @param DBS db Database to which 'con' is connected
+	 * @param con Connection obtained from borrow_con()
+	 */
+	public static void return_con(DBS db, Connection con){
+		get_pool(db).give_back(con);
+	}
+
+	/**
+	 * Size the connection pool of some database. This replaces any existing
+	 * pool; connections borrowed from an old pool are closed on return.
+	 * @param DBS db Database whose pool is being configured
+	 * @param min_size Connections to keep open, even if idle
+	 * @param max_size Maximum connections open at once
+	 * @param max_idle_secs Seconds a connection may be idle before eviction
+	 */
+	public static void configure_pool(DBS db, int min_size, int max_size,
+			int max_idle_secs){
+		con_pool new_pool = new con_pool(db, min_size, max_size,
+				max_idle_secs); // Opens connections, so outside the lock
+		con_pool old_pool;
+		synchronized(pools){
+			old_pool = pools.put(db, new_pool);
+		}
+		if(old_pool != null)
+			old_pool.shutdown();
+	}
+
+	/**
+	 * Summarize the state of the connection pool of some database.
+	 * @param DBS db Database whose pool statistics are desired
+	 * @return Human-readable pool statistics
+	 */
+	public static String pool_stats(DBS db){
+		return(get_pool(db).stats());
+	}
+
+
+	// ************************** PACKAGE METHODS ****************************
+
+	/**
+	 * Open a new connection to some database.
+	 * @param DBS db Specific database to which connected should be made
+	 * @return Connection to DB, or NULL if there was a connection error
+	 */
+	static Connection open_con(DBS db){
 			
 		String url, user, pass;
 		url = "jdbc:mysql://hincapie.cis.upenn.edu:3306/safe_browsing";
+		url += "?rewriteBatchedStatements=true"; // Multi-row batch inserts
 		user = "seniordesign";
 		pass = "qtm2009";
-		
+
 		Connection con = null; // Then proceed to connect
 		try{ // In the case of an error, just return NULL
 			Class.forName("com.mysql.jdbc.Driver").newInstance();
@@ -41,5 +141,36 @@ public class db_con{
 		} // Also output a message to system.err
 		return con;	
 	}
-	
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Return the pool for some database, creating it if need be. A new pool
+	 * opens connections, so it is created outside the lock; should another
+	 * thread install a pool meanwhile, that one is used and ours shutdown.
+	 * @param DBS db Database whose pool is desired
+	 * @return Connection pool for 'db'
+	 */
+	private static con_pool get_pool(DBS db){
+		synchronized(pools){
+			con_pool pool = pools.get(db);
+			if(pool != null)
+				return(pool);
+		} // Common case: the pool already exists
+
+		con_pool new_pool = new con_pool(db, POOL_MIN_SIZE, POOL_MAX_SIZE,
+				POOL_MAX_IDLE_SECS); // Default-sized pool on first use
+		con_pool pool;
+		synchronized(pools){
+			pool = pools.get(db);
+			if(pool == null){
+				pools.put(db, new_pool);
+				return(new_pool);
+			} // Put-if-absent
+		}
+		new_pool.shutdown();
+		return(pool);
+	}
+
 }
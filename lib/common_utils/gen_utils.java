@@ -10,7 +10,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,6 +49,39 @@ public class gen_utils{
 	 * Table where [pagecount] (hourly) processing is logged.
 	 */
 	public static final String tbl_pagecount_log = "pagecount_log";
+	
+	
+	// **************************** PRIVATE FIELDS ***************************
+	
+	/**
+	 * Seconds in a (UTC) day.
+	 */
+	private static final long SECS_PER_DAY = 60*60*24;
+	
+	/**
+	 * First year from which arg_unix_time() computes arithmetically. The
+	 * Calendar it stands in for is Julian before October 1582, so earlier
+	 * (and nearby) dates still go through the Calendar.
+	 */
+	private static final int FIRST_ARITH_YEAR = 1584;
+	
+	/**
+	 * Maximum number of compiled patterns held by the pattern cache.
+	 */
+	private static final int PATTERN_CACHE_SIZE = 256;
+	
+	/**
+	 * Compiled patterns, by regex, least-recently used first. Heuristics
+	 * apply the same few dozen regexes over and over, so compiling each
+	 * once (rather than per call) removes most of the cost of a match.
+	 */
+	private static final Map<String, Pattern> pattern_cache = 
+			new LinkedHashMap<String, Pattern>(64, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> e){
+			return(size() > PATTERN_CACHE_SIZE);
+		} // Bounded, so ad-hoc regexes cannot grow it without limit
+	};
 
 	
 	// **************************** PUBLIC METHODS ***************************
@@ -153,6 +188,24 @@ public class gen_utils{
 		return(octet1 + "." + octet2 + "." + octet3 + "." + octet4); 
 	}
 	
+	/**
+	 * Return the compiled form of a regex, compiling it only if it is not
+	 * among the PATTERN_CACHE_SIZE most recently used.
+	 * @param regex Regular expression
+	 * @return Compiled 'regex'. Patterns are immutable, so the one instance
+	 * may be shared by all threads.
+	 */
+	public static Pattern compiled_pattern(String regex){
+		synchronized(pattern_cache){
+			Pattern pattern = pattern_cache.get(regex);
+			if(pattern == null){
+				pattern = Pattern.compile(regex);
+				pattern_cache.put(regex, pattern);
+			} // Invalid regexes throw, and are not cached
+			return(pattern);
+		}
+	}
+	
 	/**
 	 * Find the substrings that match some pattern, in a larger string.
 	 * @param regex Pattern by which matches should be determined
@@ -162,7 +215,7 @@ public class gen_utils{
 	public static List<String> all_pattern_matches_within(String regex, 
 			String corpus){
 		List<String> matches = new ArrayList<String>();
-		Matcher match = Pattern.compile(regex).matcher(corpus);
+		Matcher match = compiled_pattern(regex).matcher(corpus);
 		while(match.find())
 			matches.add(match.group());
 		return(matches);
@@ -176,7 +229,7 @@ public class gen_utils{
 	 * no matches are present.
 	 */
 	public static String first_match_within(String regex, String corpus){
-		Matcher match = Pattern.compile(regex).matcher(corpus);
+		Matcher match = compiled_pattern(regex).matcher(corpus);
 		while(match.find())
 			return(match.group());
 		return(null);
@@ -190,7 +243,7 @@ public class gen_utils{
 	 */
 	public static int num_matches_within(String regex, String corpus){
 		int matches = 0;
-		Matcher match = Pattern.compile(regex).matcher(corpus);
+		Matcher match = compiled_pattern(regex).matcher(corpus);
 		while(match.find())
 			matches++;
 		return(matches);
@@ -228,7 +281,8 @@ public class gen_utils{
 	
 	/**
 	 * Provide the number of elapsed seconds from UNIX epoch until the 
-	 * time specified by the arguments (in GMT/UTC time zone). 
+	 * time specified by the arguments (in GMT/UTC time zone). Fields need
+	 * not be in range (e.g., hour 24 is midnight of the next day). 
 	 * @param y Year (in UTC locale) from which to calculate time
 	 * @param mon Month (in UTC locale) from which to calculate time
 	 * @param d Day (in UTC locale) from which to calculate time
@@ -238,6 +292,12 @@ public class gen_utils{
 	 */
 	public static long arg_unix_time(int y, int mon, int d, int h, 
 			int min, int sec){
+		if(y >= FIRST_ARITH_YEAR && mon >= 1 && mon <= 12 && 
+				d >= 0 && d <= 31 && h >= 0 && h <= 24 && 
+				min >= 0 && min <= 60 && sec >= 0 && sec <= 61){
+			return(days_from_civil(y, mon, d) * SECS_PER_DAY + 
+					h * 3600L + min * 60L + sec);
+		} // Wholly Gregorian dates are simple arithmetic
 		Calendar cal = Calendar.getInstance();
 		cal.clear();
 		cal.setTimeZone(TimeZone.getTimeZone("GMT+0000"));
@@ -251,19 +311,49 @@ public class gen_utils{
 	 * @return The same time as 'wiki_ts' expressed in UNIX format
 	 */
 	public static long wiki_ts_to_unix(String wiki_ts){
-		
-		int year=0, month=0, day=0, hour=0, min=0, sec=0;
-		
-			// Being a fixed format, we can parse the parts out easily
-		year = Integer.parseInt(wiki_ts.substring(0, 4));
-		month = Integer.parseInt(wiki_ts.substring(5,7));
-		day = Integer.parseInt(wiki_ts.substring(8, 10));
-		hour = Integer.parseInt(wiki_ts.substring(11, 13));
-		min = Integer.parseInt(wiki_ts.substring(14, 16));
-		sec = Integer.parseInt(wiki_ts.substring(17, 19));
+		return(wiki_ts_to_unix(wiki_ts, 0));
+	}
+	
+	/**
+	 * Convert a Wikipedia timestamp (2001-01-21T02:12:21Z), found at some
+	 * offset in a larger sequence (e.g., a line of a dump), into a UNIX one.
+	 * The digits are read in place; nothing is allocated.
+	 * @param buf Sequence containing a Wikipedia timestamp
+	 * @param offset Index in 'buf' at which the timestamp begins
+	 * @return The same time as the timestamp expressed in UNIX format
+	 */
+	public static long wiki_ts_to_unix(CharSequence buf, int offset){
+		int year = digits(buf, offset, 4);
+		int month = digits(buf, offset + 5, 2);
+		int day = digits(buf, offset + 8, 2);
+		int hour = digits(buf, offset + 11, 2);
+		int min = digits(buf, offset + 14, 2);
+		int sec = digits(buf, offset + 17, 2);
+		if((year | month | day | hour | min | sec) < 0){
+			String wiki_ts = buf.subSequence(offset, offset + 19).toString();
+			year = Integer.parseInt(wiki_ts.substring(0, 4));
+			month = Integer.parseInt(wiki_ts.substring(5,7));
+			day = Integer.parseInt(wiki_ts.substring(8, 10));
+			hour = Integer.parseInt(wiki_ts.substring(11, 13));
+			min = Integer.parseInt(wiki_ts.substring(14, 16));
+			sec = Integer.parseInt(wiki_ts.substring(17, 19));
+		} // Non-digits (e.g., signs) are left to the parser to accept/reject
 		return (gen_utils.arg_unix_time(year, month, day, hour, min, sec));
 	}
 	
+	/**
+	 * Convert many Wikipedia timestamps into UNIX ones.
+	 * @param wiki_ts Wikipedia timestamps (2001-01-21T02:12:21Z)
+	 * @return Array parallel to 'wiki_ts', of the same times expressed in
+	 * UNIX format
+	 */
+	public static long[] wiki_ts_to_unix(CharSequence[] wiki_ts){
+		long[] unix_secs = new long[wiki_ts.length];
+		for(int i=0; i < wiki_ts.length; i++)
+			unix_secs[i] = wiki_ts_to_unix(wiki_ts[i], 0);
+		return(unix_secs);
+	}
+	
 	/**
 	 * Return the number of UTC seconds elapsed since UNIX epoch.
 	 * @return number of seconds elapsed since UNIX epoch
@@ -299,6 +389,32 @@ public class gen_utils{
 		return((int) unix_sec/(60*60));	// will not overrun an integer
 	}
 	
+	/**
+	 * Return the 'UNIX day' at each of many UNIX seconds.
+	 * @param unix_secs Unix timestamps (in the unit of seconds)
+	 * @return Array parallel to 'unix_secs', where element 'i' is 
+	 * unix_day_at_unix_sec(unix_secs[i])
+	 */
+	public static long[] unix_days_at_unix_secs(long[] unix_secs){
+		long[] days = new long[unix_secs.length];
+		for(int i=0; i < unix_secs.length; i++)
+			days[i] = unix_secs[i] / SECS_PER_DAY;
+		return(days);
+	}
+	
+	/**
+	 * Return the 'UNIX hour' at each of many UNIX seconds.
+	 * @param unix_secs Unix timestamps (in the unit of seconds)
+	 * @return Array parallel to 'unix_secs', where element 'i' is 
+	 * unix_hour_at_unix_sec(unix_secs[i])
+	 */
+	public static int[] unix_hours_at_unix_secs(long[] unix_secs){
+		int[] hours = new int[unix_secs.length];
+		for(int i=0; i < unix_secs.length; i++)
+			hours[i] = (int) unix_secs[i] / (60*60); // As the single form
+		return(hours);
+	}
+	
 	/**
 	 * Return the 'UNIX day' at some UNIX hour.
 	 * @param unix_hour UNIX hour
@@ -362,4 +478,84 @@ public class gen_utils{
 		       ( array[offset+3] & 0xff);
 	}
 	
+	/**
+	 * Convert a string of hex characters into the bytes it represents.
+	 * @param hex String of hex characters (of even length), either case
+	 * @return Byte-array of length [hex.length / 2], where each byte is
+	 * parsed from two characters of 'hex', in left-to-right order
+	 */
+	public static byte[] hex_to_byte_array(String hex){
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i=0; i < bytes.length; i++){
+			bytes[i] = (byte) ((Character.digit(hex.charAt(2*i), 16) << 4) |
+					Character.digit(hex.charAt(2*i + 1), 16));
+		} // Each pair of characters forms one byte
+		return(bytes);
+	}
+	
+	/**
+	 * Convert a byte-array into a string of lower-case hex characters.
+	 * @param bytes Byte-array to be converted
+	 * @return String of length [2 * bytes.length] representing 'bytes'
+	 */
+	public static String byte_array_to_hex(byte[] bytes){
+		char[] hex = new char[2 * bytes.length];
+		for(int i=0; i < bytes.length; i++){
+			hex[2*i] = Character.forDigit((bytes[i] >>> 4) & 0xf, 16);
+			hex[2*i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		} // Each byte forms one pair of characters
+		return(new String(hex));
+	}
+	
+	/**
+	 * Parse 16 hex characters into a long.
+	 * @param hex String containing (at least) 'offset'+16 hex characters
+	 * @param offset Position of the first character to be parsed
+	 * @return The 64 bits represented by hex[offset, offset+16)
+	 */
+	public static long hex_to_long(String hex, int offset){
+		long val = 0;
+		for(int i=offset; i < offset+16; i++)
+			val = (val << 4) | Character.digit(hex.charAt(i), 16);
+		return(val);
+	}
+	
+	
+	// *************************** PRIVATE METHODS ***************************
+	
+	/**
+	 * Count the days from UNIX epoch to a (proleptic Gregorian) date.
+	 * @param y Year
+	 * @param m Month, in [1,12]
+	 * @param d Day of the month (values beyond the month simply continue
+	 * into the next)
+	 * @return Days between 1970/1/1 and y/m/d (negative if before)
+	 */
+	private static long days_from_civil(int y, int m, int d){
+		y -= (m <= 2 ? 1 : 0); // Years begin in March, so leap days end them
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return(era * 146097 + doe - 719468);
+	}
+	
+	/**
+	 * Read a run of decimal digits as a number.
+	 * @param buf Sequence containing the digits
+	 * @param offset Index in 'buf' of the first digit
+	 * @param len Number of digits
+	 * @return Value of the digits, or -1 if any character is not a digit
+	 */
+	private static int digits(CharSequence buf, int offset, int len){
+		int value = 0;
+		for(int i=offset; i < offset + len; i++){
+			int digit = buf.charAt(i) - '0';
+			if(digit < 0 || digit > 9)
+				return(-1);
+			value = value * 10 + digit;
+		}
+		return(value);
+	}
+	
 }
@@ -0,0 +1,384 @@
+package common_utils;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Andrew G. West - multi_matcher.java - Matching of many rules (literal
+ * keywords and regexes) over a corpus, reporting the matches of each rule.
+ * Rather than compiling and scanning once per rule, all keywords are found
+ * in a single pass, by an Aho-Corasick automaton built at construction,
+ * and each regex is compiled once (via [gen_utils.compiled_pattern]).
+ *
+ * Matches of a rule are exactly those gen_utils.all_pattern_matches_within()
+ * would find: for a keyword, its non-overlapping occurrences, leftmost
+ * first (as for the regex Pattern.quote(keyword)). A [multi_matcher] is
+ * immutable once constructed, and may be shared by all threads.
+ */
+public class multi_matcher{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Rules matched: keywords first, then regexes. Rule 'i' is rules[i].
+	 */
+	private final String[] rules;
+
+	/**
+	 * Number of keyword rules (the first 'num_keywords' of 'rules').
+	 */
+	private final int num_keywords;
+
+	/**
+	 * TRUE if matching ignores (ASCII and Unicode) case.
+	 */
+	private final boolean ignore_case;
+
+	/**
+	 * Compiled regex rules, by (rule index - num_keywords).
+	 */
+	private final Pattern[] patterns;
+
+	/**
+	 * Automaton transitions: for state 's', the (sorted) characters
+	 * labelling its trie edges, and the state each edge leads to.
+	 */
+	private final char[][] edge_chars;
+	private final int[][] edge_targets;
+
+	/**
+	 * Automaton failure links: for state 's', the state of the longest
+	 * proper suffix of its string which is also a trie state.
+	 */
+	private final int[] fail;
+
+	/**
+	 * Keyword rules ending at each state (its own, and those of all of its
+	 * failure-suffixes), or NULL if none.
+	 */
+	private final int[][] outputs;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [multi_matcher].
+	 * @param keywords Literal strings to be matched (none may be empty)
+	 * @param regexes Regular expressions to be matched
+	 * @param ignore_case TRUE if matching should ignore case, for both
+	 * keywords and regexes; FALSE, otherwise
+	 */
+	public multi_matcher(String[] keywords, String[] regexes,
+			boolean ignore_case){
+		this.num_keywords = keywords.length;
+		this.ignore_case = ignore_case;
+		this.rules = new String[keywords.length + regexes.length];
+		System.arraycopy(keywords, 0, rules, 0, keywords.length);
+		System.arraycopy(regexes, 0, rules, keywords.length, regexes.length);
+		this.patterns = new Pattern[regexes.length];
+		for(int i=0; i < regexes.length; i++)
+			patterns[i] = gen_utils.compiled_pattern(
+					ignore_case ? "(?iu)" + regexes[i] : regexes[i]);
+
+			// BUILD THE TRIE OF KEYWORDS
+		int max_states = 1;
+		for(String keyword : keywords){
+			if(keyword.isEmpty())
+				throw new IllegalArgumentException("Empty keyword");
+			max_states += keyword.length();
+		} // Each character adds at most one state
+		char[][] chars = new char[max_states][];
+		int[][] targets = new int[max_states][];
+		int[][] outs = new int[max_states][];
+		int num_states = 1;
+		for(int k=0; k < keywords.length; k++){
+			int state = 0;
+			for(int i=0; i < keywords[k].length(); i++){
+				char c = fold(keywords[k].charAt(i));
+				int next = step(chars[state], targets[state], c);
+				if(next < 0){
+					next = num_states++;
+					add_edge(chars, targets, state, c, next);
+				} // Extend the trie where no edge exists
+				state = next;
+			}
+			outs[state] = append(outs[state], k);
+		}
+
+			// LINK FAILURES, BREADTH-FIRST
+		int[] fails = new int[num_states];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		if(chars[0] != null){
+			for(int target : targets[0])
+				queue.add(target); // Depth-one states fail to the root
+		}
+		while(!queue.isEmpty()){
+			int state = queue.removeFirst();
+			if(outs[fails[state]] != null){
+				for(int k : outs[fails[state]])
+					outs[state] = append(outs[state], k);
+			} // Matches of a suffix also end here
+			if(chars[state] == null)
+				continue;
+			for(int i=0; i < chars[state].length; i++){
+				int child = targets[state][i];
+				int f = fails[state];
+				int next;
+				while((next = step(chars[f], targets[f], chars[state][i])) < 0
+						&& f != 0)
+					f = fails[f];
+				fails[child] = (next >= 0 ? next : 0);
+				queue.add(child);
+			} // A child fails to where its parent's failure would step
+		}
+
+		this.edge_chars = Arrays.copyOf(chars, num_states);
+		this.edge_targets = Arrays.copyOf(targets, num_states);
+		this.outputs = Arrays.copyOf(outs, num_states);
+		this.fail = fails;
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Scan a corpus with some rules, checking the matches
+	 * of each against gen_utils.all_pattern_matches_within().
+	 * @param args At least two arguments are required: (1) The path to a
+	 * corpus file, and (2+) any number of rules, each either "k:[keyword]"
+	 * or "r:[regex]".
+	 */
+	public static void main(String[] args) throws Exception{
+		StringBuilder corpus = new StringBuilder();
+		BufferedReader in = gen_utils.create_reader(args[0]);
+		String line;
+		while((line = in.readLine()) != null)
+			corpus.append(line).append('\n');
+		in.close();
+
+		List<String> keywords = new ArrayList<String>();
+		List<String> regexes = new ArrayList<String>();
+		for(int i=1; i < args.length; i++){
+			if(args[i].startsWith("k:"))
+				keywords.add(args[i].substring(2));
+			else regexes.add(args[i].substring(2));
+		} // Rule kinds are marked by prefix
+		multi_matcher matcher = new multi_matcher(keywords.toArray(
+				new String[0]), regexes.toArray(new String[0]), false);
+
+		List<List<String>> matches = matcher.all_matches(corpus);
+		for(int i=0; i < matcher.num_rules(); i++){
+			String regex = (i < keywords.size() ?
+					Pattern.quote(matcher.rule(i)) : matcher.rule(i));
+			List<String> expected = gen_utils.all_pattern_matches_within(
+					regex, corpus.toString());
+			System.out.println(matcher.rule(i) + "\t" + matches.get(i).size() +
+					" matches\t" + (expected.equals(matches.get(i)) ?
+					"OK" : "MISMATCH (expected " + expected.size() + ")"));
+		} // One line per rule
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * @return Number of rules (keywords, then regexes) being matched
+	 */
+	public int num_rules(){
+		return(rules.length);
+	}
+
+	/**
+	 * Return one of the rules being matched.
+	 * @param i Index of the rule (keywords first, in the order passed at
+	 * construction, then regexes)
+	 * @return Keyword or regex of rule 'i'
+	 */
+	public String rule(int i){
+		return(rules[i]);
+	}
+
+	/**
+	 * Count the matches of every rule in a corpus.
+	 * @param corpus Text to be scanned
+	 * @return Array parallel to the rules, where element 'i' is the number
+	 * of matches of rule 'i' in 'corpus'
+	 */
+	public int[] count_matches(CharSequence corpus){
+		int[] counts = new int[rules.length];
+		scan(corpus, counts, null);
+		return(counts);
+	}
+
+	/**
+	 * Find the matches of every rule in a corpus.
+	 * @param corpus Text to be scanned
+	 * @return List parallel to the rules, where element 'i' holds the
+	 * substrings of 'corpus' matching rule 'i', in order of occurrence
+	 */
+	public List<List<String>> all_matches(CharSequence corpus){
+		List<List<String>> matches = new ArrayList<List<String>>(rules.length);
+		for(int i=0; i < rules.length; i++)
+			matches.add(new ArrayList<String>(0));
+		scan(corpus, new int[rules.length], matches);
+		return(matches);
+	}
+
+	/**
+	 * Determine whether any rule matches a corpus.
+	 * @param corpus Text to be scanned
+	 * @return TRUE if some rule matches somewhere in 'corpus'; FALSE,
+	 * otherwise. Scanning stops at the first match found.
+	 */
+	public boolean matches_any(CharSequence corpus){
+		int state = 0;
+		for(int i=0; i < corpus.length(); i++){
+			state = next_state(state, fold(corpus.charAt(i)));
+			if(outputs[state] != null)
+				return(true);
+		} // Keywords first, being one pass for them all
+		for(Pattern pattern : patterns){
+			if(pattern.matcher(corpus).find())
+				return(true);
+		}
+		return(false);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Scan a corpus for the matches of every rule.
+	 * @param corpus Text to be scanned
+	 * @param counts Array (parallel to the rules) into which match counts
+	 * are written
+	 * @param matches List (parallel to the rules) to which the matching
+	 * substrings are added, or NULL if only counts are wanted
+	 */
+	private void scan(CharSequence corpus, int[] counts,
+			List<List<String>> matches){
+		if(num_keywords > 0){
+			int[] last_end = new int[num_keywords];
+			int state = 0;
+			for(int i=0; i < corpus.length(); i++){
+				state = next_state(state, fold(corpus.charAt(i)));
+				if(outputs[state] == null)
+					continue;
+				for(int k : outputs[state]){
+					int start = i + 1 - rules[k].length();
+					if(start < last_end[k])
+						continue; // Overlaps the previous match; skip it
+					last_end[k] = i + 1;
+					counts[k]++;
+					if(matches != null)
+						matches.get(k).add(corpus.subSequence(start,
+								i + 1).toString());
+				} // Keywords ending at this character
+			} // One pass finds every keyword
+		}
+
+		for(int p=0; p < patterns.length; p++){
+			int rule = num_keywords + p;
+			Matcher match = patterns[p].matcher(corpus);
+			while(match.find()){
+				counts[rule]++;
+				if(matches != null)
+					matches.get(rule).add(match.group());
+			}
+		} // Regexes, each compiled only once
+	}
+
+	/**
+	 * Advance the automaton by one character.
+	 * @param state Current state
+	 * @param c Next character of the corpus (folded, if ignoring case)
+	 * @return State after consuming 'c'
+	 */
+	private int next_state(int state, char c){
+		while(true){
+			int next = step(edge_chars[state], edge_targets[state], c);
+			if(next >= 0)
+				return(next);
+			if(state == 0)
+				return(0);
+			state = fail[state];
+		} // Fall back along failure links until some edge applies
+	}
+
+	/**
+	 * Fold a character for comparison.
+	 * @param c Character of a keyword or corpus
+	 * @return 'c', lower-cased if ignoring case
+	 */
+	private char fold(char c){
+		return(ignore_case ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+	}
+
+	/**
+	 * Follow a trie edge.
+	 * @param chars Sorted edge labels of a state (NULL if none)
+	 * @param targets States the edges lead to, parallel to 'chars'
+	 * @param c Character whose edge should be followed
+	 * @return State the edge labelled 'c' leads to, or -1 if none
+	 */
+	private static int step(char[] chars, int[] targets, char c){
+		if(chars == null)
+			return(-1);
+		if(chars.length <= 8){
+			for(int i=0; i < chars.length; i++){
+				if(chars[i] == c)
+					return(targets[i]);
+			}
+			return(-1);
+		} // Most states have a few edges; scanning beats searching
+		int i = Arrays.binarySearch(chars, c);
+		return(i >= 0 ? targets[i] : -1);
+	}
+
+	/**
+	 * Add an edge to the trie, keeping the edges of the state sorted.
+	 * @param chars Edge labels, by state
+	 * @param targets Edge targets, by state
+	 * @param state State from which the edge leaves
+	 * @param c Label of the edge
+	 * @param target State to which the edge leads
+	 */
+	private static void add_edge(char[][] chars, int[][] targets, int state,
+			char c, int target){
+		char[] old_chars = chars[state];
+		int n = (old_chars == null ? 0 : old_chars.length);
+		char[] new_chars = new char[n + 1];
+		int[] new_targets = new int[n + 1];
+		int pos = 0;
+		while(pos < n && old_chars[pos] < c)
+			pos++;
+		for(int i=0; i < n; i++){
+			new_chars[i < pos ? i : i + 1] = old_chars[i];
+			new_targets[i < pos ? i : i + 1] = targets[state][i];
+		} // Shift the edges after 'c' up by one
+		new_chars[pos] = c;
+		new_targets[pos] = target;
+		chars[state] = new_chars;
+		targets[state] = new_targets;
+	}
+
+	/**
+	 * Append a value to an array.
+	 * @param array Array (NULL is treated as empty)
+	 * @param value Value to be appended
+	 * @return New array: the elements of 'array', followed by 'value'
+	 */
+	private static int[] append(int[] array, int value){
+		if(array == null)
+			return(new int[]{value});
+		int[] longer = Arrays.copyOf(array, array.length + 1);
+		longer[array.length] = value;
+		return(longer);
+	}
+
+}
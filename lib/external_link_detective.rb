@@ -309,8 +309,61 @@ def find_alexa_info(link)
       [linkinfo::site_title.to_s, linkinfo::site_description.to_s, Time.parse(linkinfo::online_since).to_i, linkinfo::speed_median_load_time.to_f, linkinfo::speed_percentile.to_f, ac, linkinfo::language_locale.to_s, linkinfo::language_encoding.to_s, linkinfo::links_in_count.to_i, Base64.encode64(Marshal.dump(linkinfo::keywords)), linkinfo::related_links.size.to_i, Base64.encode64(Marshal.dump(linkinfo::related_links)), rank.to_i, rank_delta.to_f, reach_rank.to_i, reach_rank_delta.to_f, reach_permill.to_f, reach_permill_delta.to_f, views_permill.to_f, views_permill_delta.to_f, views_rank.to_i, views_rank_delta.to_f, views_peruser.to_f, views_peruser_delta.to_f, Base64.encode64(Marshal.dump(linkinfo::rank_by_city)), Base64.encode64(Marshal.dump(linkinfo::rank_by_country))]
   end
 
+  #one resident lookup server is shared by all detectives, rather than
+  #paying jvm startup and db connection costs on every link
+  SB_SERVER_LOCK = Mutex.new
+
+  #classes are compiled in place, alongside their sources (see README);
+  #the CLASSPATH of the environment supplies the MySQL driver
+  SB_SERVER_CMD = ['java', '-cp',
+    [File.dirname(__FILE__), ENV['CLASSPATH']].compact.join(File::PATH_SEPARATOR),
+    'access_list.sb_server']
+
+  #seconds to wait for a reply before the server is deemed hung (e.g., on
+  #a stalled db query) and replaced; other detectives wait on the lock
+  SB_SERVER_TIMEOUT = 10
+
+  def self.sb_server
+    if @sb_server.nil? or @sb_server.closed?
+      @sb_server = IO.popen(SB_SERVER_CMD, 'r+')
+    end
+    @sb_server
+  end
+
+  def self.close_sb_server
+    unless @sb_server.nil? or @sb_server.closed?
+      begin
+        Process.kill('KILL', @sb_server.pid) #close waits on a hung child
+      rescue SystemCallError
+      end
+      begin
+        @sb_server.close
+      rescue IOError, SystemCallError
+      end
+    end
+    @sb_server = nil
+  end
+
   def find_malware_info(link)
-       sbinfo = `java test #{link}`
+       request = link.to_s.gsub(/[\r\n]/, ' ') #one line, one reply
+       sbinfo = SB_SERVER_LOCK.synchronize do
+         reply = nil
+         2.times do #if the server died or hung, respawn it and retry once
+           begin
+             server = ExternalLinkDetective.sb_server
+             server.puts(request)
+             server.flush
+             if IO.select([server], nil, nil, SB_SERVER_TIMEOUT)
+               reply = server.gets
+             end #no reply in time; treated as a dead server
+           rescue IOError, SystemCallError #e.g., EPIPE once java is gone
+             reply = nil
+           end
+           break unless reply.nil?
+           ExternalLinkDetective.close_sb_server
+         end
+         reply.to_s
+       end
        sbinfo = sbinfo.chomp
        sbarr = sbinfo.partition(",")
        [bool_to_int(sbarr[0]),bool_to_int(sbarr[2])]
@@ -0,0 +1,860 @@
+package list_store;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - embedded_store.java - An in-process store of the Safe
+ * Browsing lists, standing in for the MySQL database, so that the lookup
+ * and update paths may run on a single box, with no network. Each list is
+ * held in memory (lookups are hash-map probes), and made durable by an
+ * append-only journal in a directory of the local filesystem. Handlers
+ * over the store (see access() and update()) have the same semantics as
+ * [access_list.db_sb_access] and [update_list.db_sb_update]: closed
+ * entries remain "active" until migrated to the archive, adding an open
+ * entry (or closing a closed one) changes nothing, a closed entry re-added
+ * is archived rather than overwritten, the version is that of the most
+ * recent log entry, and a batch is applied atomically (no lookup, in this
+ * process or another, sees part of one).
+ *
+ * Journal format ([dir]/[list].journal): a sequence of blocks, each being
+ * [payload length (int), payload, CRC32 of payload (long)]. A payload is a
+ * sequence of records, each an op byte followed by its fields. A block is
+ * one commit: a block which is incomplete, or fails its CRC, is a write
+ * that did not finish, and is ignored (and overwritten by the next commit).
+ * The first block holds the journal's generation; whenever closed entries
+ * are archived, the journal is compacted (rewritten with a new generation,
+ * to a temporary file renamed into place). Archived rows are appended to
+ * [dir]/[list]_old.dat as 32-byte records (hash, TS_IN, TS_OUT), up to a
+ * length the journal records, so a failed migration cannot duplicate rows.
+ * The run history of each list (see [update_list.update_profile]) is a
+ * plain file of tab-separated lines, [dir]/[list]_runs.tsv, beginning with
+ * a header.
+ *
+ * Other processes (e.g., a lookup server, while a 'cron' update writes)
+ * open the same directory and see changes within REFRESH_MS, by replaying
+ * new journal blocks. Only one process should update a given list at once.
+ */
+public class embedded_store{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Milliseconds between checks (by lookups) for journal changes written
+	 * by other processes. Changes made in-process are seen immediately.
+	 */
+	public static final long REFRESH_MS = 1000;
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Journal record types: the generation header, a hash added, a hash
+	 * closed, a log entry, a migration to the archive, a (compacted) entry
+	 * with both of its timestamps, and a (compacted) closed entry displaced
+	 * by a re-add, awaiting the archive.
+	 */
+	private static final byte OP_GENERATION = 0, OP_ADD = 1, OP_CLOSE = 2,
+			OP_LOG = 3, OP_MIGRATE = 4, OP_ENTRY = 5, OP_RETIRED = 6;
+
+	/**
+	 * Bytes of framing around each block payload (length, and CRC).
+	 */
+	private static final int BLOCK_OVERHEAD = 12;
+
+	/**
+	 * Stores already open in this process, by canonical directory path.
+	 */
+	private static final Map<String, embedded_store> open_stores =
+			new HashMap<String, embedded_store>();
+
+	/**
+	 * Directory holding the journal and archive of every list.
+	 */
+	private final File dir;
+
+	/**
+	 * The data of each list.
+	 */
+	private final EnumMap<LIST_TYPE, list_data> lists;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [embedded_store], loading every list from its journal.
+	 * @param dir Directory holding the store (created if it does not exist)
+	 */
+	private embedded_store(File dir) throws Exception{
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new Exception("Could not create store directory: " + dir);
+		this.dir = dir;
+		this.lists = new EnumMap<LIST_TYPE, list_data>(LIST_TYPE.class);
+		for(LIST_TYPE list_type : LIST_TYPE.values())
+			this.lists.put(list_type, new list_data(dir, list_type));
+	}
+
+
+	// ***************************** TEST HARNESS ****************************
+
+	/**
+	 * Driver method. Apply a small diff to a store, look up its hashes,
+	 * and summarize the store.
+	 * @param args One argument is required: (1) The directory of the store
+	 * (created if it does not exist).
+	 */
+	public static void main(String[] args) throws Exception{
+		embedded_store store = embedded_store.open(args[0]);
+		sb_update updater = store.update(LIST_TYPE.malware);
+		int version = updater.get_local_version_id() + 1;
+		String[] hashes = {"00112233445566778899aabbccddeeff",
+				"ffeeddccbbaa99887766554433221100",
+				"0123456789abcdef0123456789abcdef"};
+		updater.begin_batch(hashes.length);
+		for(String hash : hashes)
+			updater.new_active_entry(hash, version);
+		updater.close_active(hashes[1], version);
+		updater.end_batch();
+		sb_access access = store.access(LIST_TYPE.malware);
+		System.out.println("Before migration: " + Arrays.toString(
+				access.hashes_are_active(Arrays.asList(hashes))));
+		int mig_size = updater.archive_migrate();
+		updater.insert_log_entry(version, version, updater.applied_adds(),
+				mig_size);
+		System.out.println("After migration: " + Arrays.toString(
+				access.hashes_are_active(Arrays.asList(hashes))));
+		System.out.println("Version: " + access.get_local_version_id());
+		System.out.println(store.report());
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Open the store in some directory. A store is loaded once per process;
+	 * later calls over the same directory return the same store.
+	 * @param dir Directory of the store (created if it does not exist)
+	 * @return Store over the lists held in 'dir'
+	 */
+	public static embedded_store open(String dir) throws Exception{
+		File file = new File(dir).getCanonicalFile();
+		synchronized(open_stores){
+			embedded_store store = open_stores.get(file.getPath());
+			if(store == null){
+				store = new embedded_store(file);
+				open_stores.put(file.getPath(), store);
+			} // Every handler in the process shares one copy of the data
+			return(store);
+		}
+	}
+
+	/**
+	 * Return a lookup handler over one list of the store.
+	 * @param list_type Blacklist to be looked up
+	 * @return Handler over 'list_type', for use by a single thread
+	 */
+	public sb_access access(LIST_TYPE list_type){
+		return(new access_handler(lists.get(list_type)));
+	}
+
+	/**
+	 * Return an update handler over one list of the store.
+	 * @param list_type Blacklist to be updated
+	 * @return Handler over 'list_type', for use by a single thread
+	 */
+	public sb_update update(LIST_TYPE list_type){
+		return(new update_handler(lists.get(list_type)));
+	}
+
+	/**
+	 * Summarize the contents of the store.
+	 * @return Human-readable summary of each list (one line per list)
+	 */
+	public String report(){
+		StringBuilder report = new StringBuilder();
+		for(list_data data : lists.values()){
+			if(report.length() > 0)
+				report.append("\n");
+			report.append(data.list_type + " store: " + data.entries.size() +
+					" entries, version " + data.version + ", journal of " +
+					data.journal.length() + " bytes in " + dir);
+		} // One line per list
+		return(report.toString());
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Parse a hash into the key under which it is stored.
+	 * @param hash Hash, as 32 characters of hex
+	 * @return Key of 'hash'
+	 */
+	private static hash_key key(String hash) throws Exception{
+		if(hash.length() != 32)
+			throw new Exception("Malformed hash: " + hash);
+		for(int i=0; i < 32; i++){
+			if(Character.digit(hash.charAt(i), 16) < 0)
+				throw new Exception("Malformed hash: " + hash);
+		} // MySQL would store it anyway; we cannot
+		return(new hash_key(gen_utils.hex_to_long(hash, 0),
+				gen_utils.hex_to_long(hash, 16)));
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * The 128-bit key of a hash.
+	 */
+	private static final class hash_key{
+
+		/**
+		 * Most- and least-significant 64 bits of the hash.
+		 */
+		final long hi, lo;
+
+		/**
+		 * Construct a [hash_key].
+		 */
+		hash_key(long hi, long lo){
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		public int hashCode(){
+			return((int) (hi ^ (hi >>> 32))); // MD5 bits are uniform
+		}
+
+		public boolean equals(Object other){
+			if(!(other instanceof hash_key))
+				return(false);
+			hash_key key = (hash_key) other;
+			return(key.hi == hi && key.lo == lo);
+		}
+	}
+
+	/**
+	 * The data of one list: its entries in memory, and its journal.
+	 */
+	private static class list_data{
+
+		/**
+		 * Blacklist this data belongs to.
+		 */
+		final LIST_TYPE list_type;
+
+		/**
+		 * Journal, and archive, files of the list.
+		 */
+		final File journal, archive;
+
+		/**
+		 * Entries of the active list, mapped to {TS_IN, TS_OUT}, where
+		 * TS_OUT is -1 until closed. Replaced wholesale on full reload.
+		 */
+		volatile ConcurrentHashMap<hash_key, long[]> entries;
+
+		/**
+		 * Most recent version in the log (-1 if none).
+		 */
+		volatile int version = -1;
+
+		/**
+		 * Time (in ms.) of the last check for changes to the journal.
+		 */
+		volatile long last_refresh_ms;
+
+		/**
+		 * Count of block applications begun, plus those finished: odd while
+		 * a block is being applied to 'entries', so that readers may detect
+		 * (and retry) a read overlapping one (see contains()).
+		 */
+		volatile int seq;
+
+		/**
+		 * Log entries, as {version, TS_PROC, adds, migrations}. This, and
+		 * all fields below, are guarded by the lock on this object.
+		 */
+		List<long[]> log;
+
+		/**
+		 * Closed entries displaced by a re-add of their hash, awaiting the
+		 * archive, as {hash hi, hash lo, TS_IN, TS_OUT}.
+		 */
+		List<long[]> retired;
+
+		/**
+		 * Generation of the journal loaded, and the length of its archive.
+		 */
+		long generation, archive_length;
+
+		/**
+		 * Offset in the journal just past the last block applied.
+		 */
+		long offset;
+
+		/**
+		 * Construct a [list_data], loading (or creating) its journal.
+		 * @param dir Directory of the store
+		 * @param list_type Blacklist whose data should be loaded
+		 */
+		list_data(File dir, LIST_TYPE list_type) throws Exception{
+			this.list_type = list_type;
+			this.journal = new File(dir, list_type + ".journal");
+			this.archive = new File(dir, list_type + "_old.dat");
+			this.entries = new ConcurrentHashMap<hash_key, long[]>();
+			this.log = new ArrayList<long[]>();
+			this.retired = new ArrayList<long[]>();
+			if(!journal.exists())
+				compact(); // A new, empty, journal
+			refresh();
+		}
+
+		/**
+		 * Check for journal changes, if REFRESH_MS has passed since the last
+		 * check.
+		 */
+		void refresh_if_due() throws Exception{
+			if(System.currentTimeMillis() - last_refresh_ms >= REFRESH_MS)
+				refresh();
+		}
+
+		/**
+		 * Apply any blocks appended to the journal since last applied, or
+		 * reload it whole if it has been compacted (by another process).
+		 */
+		synchronized void refresh() throws Exception{
+			RandomAccessFile raf = new RandomAccessFile(journal, "r");
+			try{long gen = raf.length() < 13 ? generation : read_gen(raf);
+				if(gen != generation || offset == 0){
+					ConcurrentHashMap<hash_key, long[]> loaded =
+							new ConcurrentHashMap<hash_key, long[]>();
+					List<long[]> loaded_log = new ArrayList<long[]>();
+					List<long[]> loaded_retired = new ArrayList<long[]>();
+					long end = replay(raf, 0, loaded, loaded_log, 
+							loaded_retired, new int[2]);
+					this.entries = loaded;
+					this.log = loaded_log;
+					this.retired = loaded_retired;
+					this.offset = end;
+				} else if(raf.length() > offset){
+					offset = replay(raf, offset, entries, log, retired, 
+							new int[2]);
+				} // Otherwise, nothing new
+			} finally{raf.close();} // Lookups see old entries until swapped
+			update_version();
+			last_refresh_ms = System.currentTimeMillis();
+		}
+
+		/**
+		 * Append a block to the journal, durably, then apply it in memory.
+		 * @param payload Records making up the block
+		 * @return Two element array: the number of entries added, and the
+		 * number of entries closed, by the block
+		 */
+		synchronized int[] commit(byte[] payload) throws Exception{
+			refresh(); // Another process may have written since
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			ByteBuffer block = ByteBuffer.allocate(payload.length +
+					BLOCK_OVERHEAD);
+			block.putInt(payload.length).put(payload).putLong(crc.getValue());
+			RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+			try{raf.setLength(offset); // Drop any unfinished block
+				raf.seek(offset);
+				raf.write(block.array());
+				raf.getChannel().force(false);
+			} finally{raf.close();}
+
+			int[] counts = new int[2];
+			apply(ByteBuffer.wrap(payload), entries, log, retired, counts);
+			offset += block.capacity();
+			update_version();
+			return(counts);
+		}
+
+		/**
+		 * Move all closed entries to the archive, then compact the journal.
+		 * @return Number of entries moved
+		 */
+		synchronized int migrate() throws Exception{
+			refresh();
+			ByteArrayOutputStream rows = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(rows);
+			int num_rows = 0;
+			for(Map.Entry<hash_key, long[]> entry : entries.entrySet()){
+				long[] ts = entry.getValue();
+				if(ts[1] == -1)
+					continue;
+				out.writeLong(entry.getKey().hi);
+				out.writeLong(entry.getKey().lo);
+				out.writeLong(ts[0]);
+				out.writeLong(ts[1]);
+				num_rows++;
+			} // Gather every closed entry
+			for(long[] row : retired){
+				for(long field : row)
+					out.writeLong(field);
+				num_rows++;
+			} // And every closed entry displaced by a re-add
+			if(num_rows == 0)
+				return(0);
+
+			RandomAccessFile raf = new RandomAccessFile(archive, "rw");
+			try{raf.setLength(archive_length); // Drop rows of failed runs
+				raf.seek(archive_length);
+				raf.write(rows.toByteArray());
+				raf.getChannel().force(false);
+			} finally{raf.close();}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bytes);
+			record.writeByte(OP_MIGRATE);
+			record.writeLong(archive_length + rows.size());
+			commit(bytes.toByteArray()); // Rows now count as archived
+			compact();
+			return(num_rows);
+		}
+
+		/**
+		 * Rewrite the journal as a single block of the current entries and
+		 * log, under a new generation, replacing the old journal atomically.
+		 */
+		synchronized void compact() throws Exception{
+			long gen = generation;
+			Random rand = new Random();
+			while(gen == generation || gen == 0)
+				gen = rand.nextLong();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 
+					33 * (entries.size() + retired.size()) + 21 * log.size());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(OP_GENERATION);
+			out.writeLong(gen);
+			out.writeLong(archive_length);
+			for(Map.Entry<hash_key, long[]> entry : entries.entrySet()){
+				out.writeByte(OP_ENTRY);
+				out.writeLong(entry.getKey().hi);
+				out.writeLong(entry.getKey().lo);
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			} // Entries, in whatever order
+			for(long[] row : retired){
+				out.writeByte(OP_RETIRED);
+				for(long field : row)
+					out.writeLong(field);
+			} // Displaced entries, not yet archived
+			for(long[] row : log){
+				out.writeByte(OP_LOG);
+				out.writeInt((int) row[0]);
+				out.writeLong(row[1]);
+				out.writeInt((int) row[2]);
+				out.writeInt((int) row[3]);
+			} // Log, in order
+			byte[] payload = bytes.toByteArray();
+
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			File tmp = new File(journal.getPath() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try{raf.setLength(0);
+				raf.writeInt(payload.length);
+				raf.write(payload);
+				raf.writeLong(crc.getValue());
+				raf.getChannel().force(true);
+			} finally{raf.close();}
+			if(!tmp.renameTo(journal))
+				throw new Exception("Could not replace journal " + journal);
+			this.generation = gen;
+			this.offset = payload.length + BLOCK_OVERHEAD;
+		}
+
+		/**
+		 * Read the generation of a journal, from its first block.
+		 * @param raf Open journal file
+		 * @return Generation of the journal
+		 */
+		private long read_gen(RandomAccessFile raf) throws Exception{
+			raf.seek(5); // Past the block length and OP_GENERATION
+			return(raf.readLong());
+		}
+
+		/**
+		 * Apply the complete, intact blocks of a journal from some offset.
+		 * @param raf Open journal file
+		 * @param from Offset of the first block to be applied
+		 * @param map Entries to which the blocks should be applied
+		 * @param log_rows Log to which the blocks should be applied
+		 * @param retired_rows Displaced entries to which the blocks should
+		 * be applied
+		 * @param counts Two element array, incremented by the number of
+		 * entries added, and closed, by the blocks
+		 * @return Offset just past the last block applied
+		 */
+		private long replay(RandomAccessFile raf, long from,
+				ConcurrentHashMap<hash_key, long[]> map, List<long[]> log_rows,
+				List<long[]> retired_rows, int[] counts) throws Exception{
+			byte[] tail = new byte[(int) (raf.length() - from)];
+			raf.seek(from);
+			raf.readFully(tail);
+			CRC32 crc = new CRC32();
+			int pos = 0;
+			while(tail.length - pos >= BLOCK_OVERHEAD){
+				int len = ByteBuffer.wrap(tail, pos, 4).getInt();
+				if(len < 0 || tail.length - pos - BLOCK_OVERHEAD < len)
+					break; // Incomplete; still being written, or never will be
+				crc.reset();
+				crc.update(tail, pos + 4, len);
+				if(crc.getValue() != ByteBuffer.wrap(tail, pos + 4 + len, 8).
+						getLong())
+					break; // A torn write
+				apply(ByteBuffer.wrap(tail, pos + 4, len), map, log_rows, 
+						retired_rows, counts);
+				pos += len + BLOCK_OVERHEAD;
+			} // Apply each whole block, in order
+			return(from + pos);
+		}
+
+		/**
+		 * Determine which of several keys are present in the entries, as of
+		 * some point between whole blocks: a read overlapping the application
+		 * of a block is retried, so no lookup sees part of a batch. The map
+		 * is read (and written) through volatile accesses, so they are not 
+		 * reordered around those of 'seq'.
+		 * @param keys Keys to be checked
+		 * @return Array parallel to 'keys', where element 'i' is TRUE if 
+		 * keys[i] is present
+		 */
+		boolean[] contains(hash_key[] keys){
+			boolean[] present = new boolean[keys.length];
+			while(true){
+				int before = seq;
+				if((before & 1) == 0){
+					ConcurrentHashMap<hash_key, long[]> map = entries;
+					for(int i=0; i < keys.length; i++)
+						present[i] = map.containsKey(keys[i]);
+					if(seq == before)
+						return(present);
+				} else Thread.yield(); // Blocks apply in microseconds
+			} // Retry until no block was applied during the read
+		}
+
+		/**
+		 * Apply the records of one block, atomically as far as contains()
+		 * is concerned.
+		 * @param block Buffer positioned at the records, limited to their end
+		 * @param map Entries to which the records should be applied
+		 * @param log_rows Log to which the records should be applied
+		 * @param retired_rows Displaced entries to which the records should
+		 * be applied
+		 * @param counts Two element array, incremented by the number of
+		 * entries added, and closed, by the records
+		 */
+		private void apply(ByteBuffer block, ConcurrentHashMap<hash_key,
+				long[]> map, List<long[]> log_rows, List<long[]> retired_rows,
+				int[] counts) throws Exception{
+			seq++; // Odd; readers wait
+			try{apply_records(block, map, log_rows, retired_rows, counts);
+			} finally{seq++;} // Even; the block is whole
+		}
+
+		/**
+		 * Apply the records of one block (see apply()).
+		 * @param block Buffer positioned at the records, limited to their end
+		 * @param map Entries to which the records should be applied
+		 * @param log_rows Log to which the records should be applied
+		 * @param retired_rows Displaced entries to which the records should
+		 * be applied
+		 * @param counts Two element array, incremented by the number of
+		 * entries added, and closed, by the records
+		 */
+		private void apply_records(ByteBuffer block, 
+				ConcurrentHashMap<hash_key, long[]> map, List<long[]> log_rows,
+				List<long[]> retired_rows, int[] counts) throws Exception{
+			while(block.hasRemaining()){
+				byte op = block.get();
+				if(op == OP_GENERATION){
+					this.generation = block.getLong();
+					this.archive_length = block.getLong();
+				} else if(op == OP_ADD){
+					hash_key key = new hash_key(block.getLong(), block.getLong());
+					long ts_in = block.getLong();
+					long[] ts = map.get(key);
+					if(ts != null && ts[1] == -1)
+						continue; // Already open; as the guarded INSERT
+					if(ts != null){
+						retired_rows.add(new long[]{key.hi, key.lo, ts[0],
+								ts[1]});
+					} // A closed entry is kept for the archive
+					map.put(key, new long[]{ts_in, -1});
+					counts[0]++;
+				} else if(op == OP_CLOSE){
+					hash_key key = new hash_key(block.getLong(), block.getLong());
+					long ts_out = block.getLong();
+					long[] ts = map.get(key);
+					if(ts != null && ts[1] == -1){
+						map.put(key, new long[]{ts[0], ts_out});
+						counts[1]++;
+					} // As an UPDATE, closing nothing not open
+				} else if(op == OP_ENTRY){
+					hash_key key = new hash_key(block.getLong(), block.getLong());
+					map.put(key, new long[]{block.getLong(), block.getLong()});
+				} else if(op == OP_RETIRED){
+					retired_rows.add(new long[]{block.getLong(), block.getLong(),
+							block.getLong(), block.getLong()});
+				} else if(op == OP_LOG){
+					log_rows.add(new long[]{block.getInt(), block.getLong(),
+							block.getInt(), block.getInt()});
+				} else if(op == OP_MIGRATE){
+					this.archive_length = block.getLong();
+					Iterator<long[]> iter = map.values().iterator();
+					while(iter.hasNext()){
+						if(iter.next()[1] != -1)
+							iter.remove();
+					} // Closed entries have been archived
+					retired_rows.clear();
+				} else throw new Exception("Corrupt journal: " + journal);
+			} // Records are applied in order
+		}
+
+		/**
+		 * Set the version per the most recent log entry.
+		 */
+		private void update_version(){
+			int max = -1;
+			for(long[] row : log)
+				max = Math.max(max, (int) row[0]);
+			this.version = max; // Published after the entries it covers
+		}
+	}
+
+	/**
+	 * Lookup handler over one list of the store.
+	 */
+	private static class access_handler implements sb_access{
+
+		/**
+		 * Data of the list being looked up.
+		 */
+		private final list_data data;
+
+		/**
+		 * Construct an [access_handler].
+		 * @param data Data of the list to be looked up
+		 */
+		access_handler(list_data data){
+			this.data = data;
+		}
+
+		public boolean hash_is_active(String hash) throws Exception{
+			data.refresh_if_due();
+			return(data.contains(new hash_key[]{key(hash)})[0]);
+		}
+
+		public boolean[] hashes_are_active(List<String> hashes)
+				throws Exception{
+			data.refresh_if_due();
+			hash_key[] keys = new hash_key[hashes.size()];
+			for(int i=0; i < keys.length; i++)
+				keys[i] = key(hashes.get(i));
+			return(data.contains(keys));
+		} // One consistent view of the entries answers all hashes
+
+		public int get_local_version_id() throws Exception{
+			data.refresh_if_due();
+			return(data.version);
+		}
+
+		public void shutdown(){}
+	}
+
+	/**
+	 * Update handler over one list of the store.
+	 */
+	private static class update_handler implements sb_update{
+
+		/**
+		 * Data of the list being updated.
+		 */
+		private final list_data data;
+
+		/**
+		 * Records queued for the next commit.
+		 */
+		private final ByteArrayOutputStream queued;
+
+		/**
+		 * Writer of records into 'queued'.
+		 */
+		private final DataOutputStream out;
+
+		/**
+		 * Entries per batch if in batch mode; else zero.
+		 */
+		private int batch_size;
+
+		/**
+		 * Entries queued, not yet committed.
+		 */
+		private int pending;
+
+		/**
+		 * Entries added to, and closed on, the list by this handler.
+		 */
+		private int applied_adds, applied_closes;
+
+		/**
+		 * Construct an [update_handler].
+		 * @param data Data of the list to be updated
+		 */
+		update_handler(list_data data){
+			this.data = data;
+			this.queued = new ByteArrayOutputStream();
+			this.out = new DataOutputStream(queued);
+		}
+
+		public void new_active_entry(String hash, long ts_in) throws Exception{
+			hash_key key = key(hash);
+			out.writeByte(OP_ADD);
+			out.writeLong(key.hi);
+			out.writeLong(key.lo);
+			out.writeLong(ts_in);
+			queue();
+		}
+
+		public void close_active(String hash, long ts_out) throws Exception{
+			hash_key key = key(hash);
+			out.writeByte(OP_CLOSE);
+			out.writeLong(key.hi);
+			out.writeLong(key.lo);
+			out.writeLong(ts_out);
+			queue();
+		}
+
+		public void begin_batch(int batch_size){
+			this.batch_size = Math.max(batch_size, 1);
+		}
+
+		public int[] flush_batch() throws Exception{
+			if(batch_size == 0)
+				return(new int[2]); // Not in batch mode; nothing is queued
+			return(commit());
+		}
+
+		public int[] end_batch() throws Exception{
+			int[] counts = flush_batch();
+			this.batch_size = 0;
+			return(counts);
+		}
+
+		public void begin_delta(int version_id){}
+
+		public void end_delta(){} // No resident indexes read a feed
+
+		public int applied_adds(){
+			return(applied_adds);
+		}
+
+		public int applied_closes(){
+			return(applied_closes);
+		}
+
+		public int archive_migrate() throws Exception{
+			commit();
+			return(data.migrate());
+		}
+
+		public void insert_log_entry(int version_id, long ts_proc,
+				int db_adds, int migration_size) throws Exception{
+			commit();
+			out.writeByte(OP_LOG);
+			out.writeInt(version_id);
+			out.writeLong(ts_proc);
+			out.writeInt(db_adds);
+			out.writeInt(migration_size);
+			commit();
+		}
+
+		public void insert_run_entry(String[] fields, Object[] values)
+				throws Exception{
+			File runs = new File(data.journal.getParentFile(),
+					data.list_type + "_runs.tsv");
+			boolean is_new = !runs.exists();
+			BufferedWriter writer = gen_utils.create_writer(runs.getPath(),
+					true);
+			if(writer == null)
+				throw new Exception("Could not open run history: " + runs);
+			try{if(is_new)
+					write_tsv(writer, fields);
+				write_tsv(writer, values);
+			} finally{writer.close();}
+		} // History is not replayed, so it need not be journaled
+
+		public int get_local_version_id() throws Exception{
+			data.refresh();
+			return(data.version);
+		}
+
+		public void shutdown(){
+			queued.reset();
+			pending = 0;
+		}
+
+		/**
+		 * Write a line of tab-separated values.
+		 * @param writer Writer to which the line should be written
+		 * @param values Values making up the line
+		 */
+		private void write_tsv(BufferedWriter writer, Object[] values)
+				throws Exception{
+			for(int i=0; i < values.length; i++)
+				writer.write((i == 0 ? "" : "\t") + values[i]);
+			writer.newLine();
+		}
+
+		/**
+		 * Note a record was queued, committing if not batching or if full.
+		 */
+		private void queue() throws Exception{
+			if(batch_size == 0 || ++pending >= batch_size)
+				commit();
+		}
+
+		/**
+		 * Commit all queued records as one block.
+		 * @return Two element array: entries added, and closed, by the block
+		 */
+		private int[] commit() throws Exception{
+			if(queued.size() == 0)
+				return(new int[2]);
+			int[] counts;
+			try{counts = data.commit(queued.toByteArray());
+			} finally{
+				queued.reset();
+				pending = 0;
+			} // A failed block is discarded, as a rolled-back batch
+			applied_adds += counts[0];
+			applied_closes += counts[1];
+			return(counts);
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package list_store;
+
+import java.util.List;
+
+/**
+ * Andrew G. West - sb_access.java - Read access to the stored copy of one
+ * Safe Browsing blacklist, as needed by lookups. Implementations differ in
+ * where the list is stored: [access_list.db_sb_access] queries the MySQL
+ * database, while [embedded_store] holds the list in-process. Hashes are
+ * always passed as (32 character) hex strings.
+ */
+public interface sb_access{
+
+	/**
+	 * Determine if some hash is actively listed on the blacklist.
+	 * @param hash Hash-code corresponding to potential blacklist item
+	 * @return TRUE if 'hash' is active on the list. FALSE, otherwise.
+	 */
+	boolean hash_is_active(String hash) throws Exception;
+
+	/**
+	 * Determine which of several hashes are actively listed on the list.
+	 * @param hashes Hash-codes corresponding to potential blacklist items
+	 * @return Array parallel to 'hashes', where element 'i' is TRUE if
+	 * hashes[i] is active on the list.
+	 */
+	boolean[] hashes_are_active(List<String> hashes) throws Exception;
+
+	/**
+	 * Return the blacklist version the store contains.
+	 * @return The blacklist version stored. Negative one (-1) is returned
+	 * if no log history exists.
+	 */
+	int get_local_version_id() throws Exception;
+
+	/**
+	 * Release all resources held by this handler.
+	 */
+	void shutdown() throws Exception;
+
+}
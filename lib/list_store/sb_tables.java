@@ -0,0 +1,123 @@
+package list_store;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Types;
+
+import common_utils.gen_utils;
+
+/**
+ * Andrew G. West - sb_tables.java - Layout of the Safe Browsing tables of
+ * the [safe_browsing] database, as shared by the code writing them (see
+ * [update_list.db_sb_update]) and the code reading them (see 
+ * [access_list.db_sb_access]): how the HASH column is stored, the
+ * operations recorded in the change-feed, and where a list's version is
+ * read from.
+ *
+ * The HASH column of the list tables may be stored either as 32-character
+ * hex strings (the original layout) or as 16-byte binary keys (see the
+ * [update_list.hash_migrate] tool). Hashes are always passed in and out
+ * of these methods as hex; the layout of a table is detected, and hashes
+ * bound, accordingly.
+ */
+public class sb_tables{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Operations recorded in the change-feed table [list_delta]: a hash
+	 * added, a hash closed, and the marker that a version's feed is whole.
+	 */
+	public static final int DELTA_ADD = 1, DELTA_CLOSE = -1, DELTA_DONE = 0;
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Return the version of a list the database holds, per its update log.
+	 * This is a single query, for callers (e.g., resident indexes checking
+	 * for staleness) needing nothing else of a list handler.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param base_tbl Name of the active table of the list (e.g., "malware")
+	 * @return The most recent version in [base_tbl_log]. Negative one (-1)
+	 * is returned if no log history exists.
+	 */
+	public static int version_id(Connection con, String base_tbl) 
+			throws Exception{
+		int version_id = -1;
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT MAX(VERSION_ID) FROM " + 
+				base_tbl + "_log");
+		if(rs.next()){
+			version_id = rs.getInt(1);
+			if(rs.wasNull())
+				version_id = -1;
+		} // Check ResultSet. Note that NULL will parse to int as "0"
+		rs.close();
+		stmt.close();
+		return(version_id);
+	}
+
+	/**
+	 * Determine the storage layout of the HASH column of some table.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param table Name of a list table (active, archival, or change-feed)
+	 * @return TRUE if HASH is stored as binary keys; FALSE if as hex strings
+	 */
+	public static boolean hash_is_binary(Connection con, String table) 
+			throws Exception{
+		Statement stmt = con.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT HASH FROM " + table + 
+				" WHERE 1=0"); // Metadata only, no rows
+		boolean binary = hash_is_binary(rs.getMetaData(), 1);
+		rs.close();
+		stmt.close();
+		return(binary);
+	}
+	
+	/**
+	 * Determine the storage layout of a HASH column from the metadata of
+	 * a result set, which comes with every result (even an empty one).
+	 * @param meta Metadata of a result set selecting a HASH column
+	 * @param column Index of the HASH column in the result set
+	 * @return TRUE if HASH is stored as binary keys; FALSE if as hex strings
+	 */
+	public static boolean hash_is_binary(ResultSetMetaData meta, int column)
+			throws Exception{
+		int type = meta.getColumnType(column);
+		return(type == Types.BINARY || type == Types.VARBINARY || 
+				type == Types.LONGVARBINARY);
+	}
+	
+	/**
+	 * Bind a hash to a statement parameter, per the layout of its column.
+	 * @param pstmt Statement to which a hash should be bound
+	 * @param index Index of the parameter to be bound
+	 * @param hash Hash, as a string of hex
+	 * @param binary TRUE if the target column is binary; FALSE if hex
+	 */
+	public static void set_hash(PreparedStatement pstmt, int index, 
+			String hash, boolean binary) throws Exception{
+		if(binary)
+			pstmt.setBytes(index, gen_utils.hex_to_byte_array(hash));
+		else pstmt.setString(index, hash);
+	}
+	
+	/**
+	 * Read a hash from a result column, per the layout of its column.
+	 * @param rs Result set, positioned on a row
+	 * @param index Index of the column holding the hash
+	 * @param binary TRUE if the column is binary; FALSE if hex
+	 * @return Hash, as a string of (lower-case) hex
+	 */
+	public static String get_hash(ResultSet rs, int index, boolean binary) 
+			throws Exception{
+		if(binary)
+			return(gen_utils.byte_array_to_hex(rs.getBytes(index)));
+		return(rs.getString(index).toLowerCase());
+	}
+
+}
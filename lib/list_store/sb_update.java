@@ -0,0 +1,120 @@
+package list_store;
+
+/**
+ * Andrew G. West - sb_update.java - Write access to the stored copy of one
+ * Safe Browsing blacklist, as needed to apply diffs. Implementations differ
+ * in where the list is stored: [update_list.db_sb_update] writes the MySQL
+ * database, while [embedded_store] holds the list in-process (journaled to
+ * disk).
+ * Hashes are always passed as (32 character) hex strings.
+ */
+public interface sb_update{
+
+	/**
+	 * Record the entry of a new "item" onto the active blacklist, unless it
+	 * is already open there. In batch mode, the entry is queued, and 
+	 * applied when its batch is flushed.
+	 * @param hash Hash-code which is the new blacklist item
+	 * @param ts_in Time at which 'hash' was first observed as active
+	 */
+	void new_active_entry(String hash, long ts_in) throws Exception;
+
+	/**
+	 * Record the removal of an "item" from the active blacklist, closing it
+	 * if open (an already closed row keeps its TS_OUT). In batch mode, the
+	 * removal is queued, and applied when its batch is flushed.
+	 * @param hash Hash-code which uniquely identifies BL items
+	 * @param ts_out Time at which the removal was first observed
+	 */
+	void close_active(String hash, long ts_out) throws Exception;
+
+	/**
+	 * Enter batch mode: entries and removals are applied in groups, each
+	 * group atomically, rather than one at a time.
+	 * @param batch_size Maximum number of entries per batch
+	 */
+	void begin_batch(int batch_size) throws Exception;
+
+	/**
+	 * Apply all queued entries and removals, atomically.
+	 * @return Two element array: the number of rows inserted, and the
+	 * number of rows closed, by this batch (zeros if not in batch mode)
+	 */
+	int[] flush_batch() throws Exception;
+
+	/**
+	 * Leave batch mode, flushing any queued work.
+	 * @return Two element array, as returned by flush_batch()
+	 */
+	int[] end_batch() throws Exception;
+
+	/**
+	 * Begin recording applied changes for resident lookup indexes, as the
+	 * changes of version 'version_id'. Stores without such indexes may
+	 * treat this as a no-op.
+	 * @param version_id Version of the list the entries bring us to
+	 */
+	void begin_delta(int version_id) throws Exception;
+
+	/**
+	 * Mark the changes being recorded (see begin_delta()) as complete.
+	 * This is a no-op if not recording.
+	 */
+	void end_delta() throws Exception;
+
+	/**
+	 * Return the number of rows this handler has inserted into the active
+	 * list (in batch mode, only those of batches already flushed).
+	 * @return Number of new active entries applied
+	 */
+	int applied_adds();
+
+	/**
+	 * Return the number of rows this handler has closed on the active list
+	 * (in batch mode, only those of batches already flushed).
+	 * @return Number of removals applied
+	 */
+	int applied_closes();
+
+	/**
+	 * Move all closed entries from the active list to the archive.
+	 * @return Quantity of rows migrated
+	 */
+	int archive_migrate() throws Exception;
+
+	/**
+	 * Insert a log entry summarizing a diff-processing run. This makes
+	 * 'version_id' the version of the list.
+	 * @param version_id Version of a blacklist processed
+	 * @param ts_proc Timestamp at which processing completed
+	 * @param db_adds Number of entry additions made in run
+	 * @param migration_size Number of archivals made in run
+	 */
+	void insert_log_entry(int version_id, long ts_proc, int db_adds,
+			int migration_size) throws Exception;
+
+	/**
+	 * Record an update run in the run history of the list. Unlike the log,
+	 * the history has an entry for every run, including those which found
+	 * the list current, and those which failed.
+	 * @param fields Names of the fields of the entry (see 
+	 * [update_list.update_profile.run_fields])
+	 * @param values Values of the entry, parallel to 'fields': strings,
+	 * and Longs
+	 */
+	void insert_run_entry(String[] fields, Object[] values) throws Exception;
+
+	/**
+	 * Return the blacklist version the store contains.
+	 * @return The blacklist version stored. Negative one (-1) is returned
+	 * if no log history exists.
+	 */
+	int get_local_version_id() throws Exception;
+
+	/**
+	 * Release all resources held by this handler. Queued (unflushed)
+	 * batch entries are discarded.
+	 */
+	void shutdown() throws Exception;
+
+}
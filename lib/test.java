@@ -1,3 +1,5 @@
+import java.util.EnumSet;
+
 import access_list.sb_interface;
 
 import common_utils.gen_utils.LIST_TYPE;
@@ -14,14 +16,13 @@ public class test{
 	 */
 	public static void main(String[] args) throws Exception{
 		
-		sb_interface face_phishing = new sb_interface(LIST_TYPE.phishing);
-		sb_interface face_malware = new sb_interface(LIST_TYPE.malware);
+		sb_interface face = new sb_interface();
 		
 		String url = args[0];
-		System.out.println(face_phishing.url_is_active(url) + "," + face_malware.url_is_active(url));
+		EnumSet<LIST_TYPE> active = face.active_lists(url);
+		System.out.println(active.contains(LIST_TYPE.phishing) + "," + active.contains(LIST_TYPE.malware));
 		
-		face_phishing.shutdown();
-		face_malware.shutdown();
+		face.shutdown();
 
 	}
 
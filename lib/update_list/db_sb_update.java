@@ -4,6 +4,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.sql.Types;
+
+import list_store.sb_tables;
+import list_store.sb_update;
 
 import common_utils.gen_utils.LIST_TYPE;
 
@@ -11,8 +15,39 @@ import common_utils.gen_utils.LIST_TYPE;
  * Andrew G. West - db_sb_update - Class handling all DB-access
  * as it pertains to local storage of Google Safe Browsing data. Note
  * that general access uses a different handler.
+ *
+ * The HASH column of the list tables may be stored either as 32-character
+ * hex strings (the original layout) or as 16-byte binary keys (see the
+ * [hash_migrate] tool). Hashes are always passed in and out of this class
+ * as hex; the layout of each table is detected, and bound, accordingly
+ * (see [list_store.sb_tables]).
+ *
+ * HASH is indexed, but not unique, in the active table of either layout:
+ * a hash closed and then re-added keeps its closed row (until archived)
+ * beside the new one. An addition is skipped if the hash is already open,
+ * and a removal only closes open rows, so re-applying the entries of a
+ * partially committed run changes nothing already applied, and never
+ * rewrites the timestamps of a listing.
  */
-public class db_sb_update{
+public class db_sb_update implements sb_update{
+	
+	// **************************** PUBLIC FIELDS ****************************
+	
+	/**
+	 * Default number of entries applied per batch (and per transaction).
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	/**
+	 * Default number of rows moved per archive migration transaction.
+	 */
+	public static final int DEFAULT_MIGRATE_CHUNK = 10000;
+	
+	/**
+	 * Number of most recent list versions whose deltas are retained.
+	 */
+	public static final int DELTA_RETENTION = 48;
+	
 	
 	// **************************** PRIVATE FIELDS ***************************
 	
@@ -27,9 +62,9 @@ public class db_sb_update{
 	private PreparedStatement pstmt_close_entry;
 	
 	/**
-	 * SQL adding an entry to the archival table.
+	 * SQL recording an entry in the change-feed (NULL if not recording).
 	 */
-	private PreparedStatement pstmt_archive_entry;
+	private PreparedStatement pstmt_delta;
 	
 	/**
 	 * "Base table" over which this instance should operate. Since the format
@@ -38,11 +73,46 @@ public class db_sb_update{
 	 */
 	private final String BASE_TBL;
 	
+	/**
+	 * TRUE if the HASH column of the active table [BASE_TBL] is binary.
+	 */
+	private final boolean ACTIVE_BINARY;
+	
+	/**
+	 * TRUE if the HASH column of the archive table [BASE_TBL_old] is binary.
+	 */
+	private final boolean ARCHIVE_BINARY;
+	
 	/**
 	 * Connection to the local [safe_browsing] database.
 	 */
 	private Connection con;
 	
+	/**
+	 * Entries per batch if in batch mode (see begin_batch()); else zero.
+	 */
+	private int batch_size;
+	
+	/**
+	 * Entries queued in the (new entry, close entry) batches, not yet sent.
+	 */
+	private int pending_adds, pending_closes;
+	
+	/**
+	 * Rows inserted into, and closed on, the active list by this instance.
+	 */
+	private int applied_adds, applied_closes;
+	
+	/**
+	 * Version whose deltas are being recorded (see begin_delta()).
+	 */
+	private int delta_version;
+	
+	/**
+	 * TRUE if the HASH column of the change-feed [BASE_TBL_delta] is binary.
+	 */
+	private boolean delta_binary;
+	
 	
 	// ***************************** CONSTRUCTORS ****************************
 	
@@ -58,6 +128,8 @@ public class db_sb_update{
 		if(list_type.equals(LIST_TYPE.phishing))
 			BASE_TBL = "phishing";
 		else BASE_TBL = "malware";
+		ACTIVE_BINARY = sb_tables.hash_is_binary(con, BASE_TBL);
+		ARCHIVE_BINARY = sb_tables.hash_is_binary(con, BASE_TBL + "_old");
 		prep_statements();
 	}
 	
@@ -65,25 +137,175 @@ public class db_sb_update{
 	// **************************** PUBLIC METHODS ***************************
 	
 	/**
-	 * Record the entry of a new "item" onto the active blacklist. 
+	 * Record the entry of a new "item" onto the active blacklist, unless it
+	 * is already open there. In batch mode, the entry is queued, and 
+	 * applied when its batch is flushed.
 	 * @param hash Hash-code which is the new blacklist item
 	 * @param ts_in Time at which 'hash' was first observed as active
 	 */
 	public void new_active_entry(String hash, long ts_in) throws Exception{
-		pstmt_new_entry.setString(1, hash);
+		if(pending_closes > 0)
+			flush_batch(); // Preserve the order of the diff
+		sb_tables.set_hash(pstmt_new_entry, 1, hash, ACTIVE_BINARY);
 		pstmt_new_entry.setLong(2, ts_in);
-		pstmt_new_entry.executeUpdate();
+		sb_tables.set_hash(pstmt_new_entry, 3, hash, ACTIVE_BINARY);
+		record_delta(hash, sb_tables.DELTA_ADD);
+		if(batch_size == 0){
+			applied_adds += pstmt_new_entry.executeUpdate();
+			return;
+		} // Otherwise, queue the entry
+		pstmt_new_entry.addBatch();
+		if(++pending_adds >= batch_size)
+			flush_batch();
 	}
 
 	/**
-	 * Record the removal of an "item" from the active blacklist
+	 * Record the removal of an "item" from the active blacklist, closing it
+	 * if open (an already closed row keeps its TS_OUT). In batch mode, the
+	 * removal is queued, and applied when its batch is flushed.
 	 * @param hash Hash-code which uniquely identifies BL items
 	 * @param ts_out Time at which the removal was first observed
 	 */
 	public void close_active(String hash, long ts_out) throws Exception{
+		if(pending_adds > 0)
+			flush_batch(); // Preserve the order of the diff
 		pstmt_close_entry.setLong(1, ts_out);
-		pstmt_close_entry.setString(2, hash);
-		pstmt_close_entry.executeUpdate();
+		sb_tables.set_hash(pstmt_close_entry, 2, hash, ACTIVE_BINARY);
+		record_delta(hash, sb_tables.DELTA_CLOSE);
+		if(batch_size == 0){
+			applied_closes += pstmt_close_entry.executeUpdate();
+			return;
+		} // Otherwise, queue the removal
+		pstmt_close_entry.addBatch();
+		if(++pending_closes >= batch_size)
+			flush_batch();
+	}
+	
+	/**
+	 * Enter batch mode: entries and removals are grouped into JDBC batches,
+	 * each applied in its own transaction, rather than being committed one
+	 * at a time. A batch is flushed when full, and when the diff switches
+	 * between additions and removals (so that order is preserved).
+	 * @param batch_size Maximum number of entries per batch
+	 */
+	public void begin_batch(int batch_size) throws Exception{
+		con.setAutoCommit(false);
+		this.batch_size = Math.max(batch_size, 1);
+	}
+	
+	/**
+	 * Apply, and commit, all queued entries and removals.
+	 * @return Two element array: the number of rows inserted, and the
+	 * number of rows closed, by this batch (zeros if not in batch mode). On
+	 * failure, the batch is rolled back (and an exception thrown).
+	 */
+	public int[] flush_batch() throws Exception{
+		int[] counts = new int[2];
+		if(batch_size == 0)
+			return(counts); // Not in batch mode; nothing is queued
+		try{if(pending_adds > 0)
+				counts[0] = sum_counts(pstmt_new_entry.executeBatch());
+			if(pending_closes > 0)
+				counts[1] = sum_counts(pstmt_close_entry.executeBatch());
+			if(pstmt_delta != null && (pending_adds + pending_closes) > 0)
+				pstmt_delta.executeBatch(); // Feed commits with its entries
+			con.commit();
+		} catch(Exception e){
+			con.rollback();
+			throw e;
+		} finally{
+			pstmt_new_entry.clearBatch();
+			pstmt_close_entry.clearBatch();
+			if(pstmt_delta != null)
+				pstmt_delta.clearBatch();
+			pending_adds = 0;
+			pending_closes = 0;
+		} // A batch is applied entirely, or not at all
+		applied_adds += counts[0];
+		applied_closes += counts[1];
+		return(counts);
+	}
+	
+	/**
+	 * Leave batch mode, flushing any queued work and restoring auto-commit.
+	 * @return Two element array, as returned by flush_batch()
+	 */
+	public int[] end_batch() throws Exception{
+		int[] counts = flush_batch();
+		con.setAutoCommit(true);
+		this.batch_size = 0;
+		return(counts);
+	}
+	
+	/**
+	 * Begin recording, into the change-feed table [BASE_TBL_delta], every
+	 * entry and removal applied by this instance, so that resident lookup
+	 * indexes may apply the change rather than reloading the list. Any
+	 * feed left by an earlier, failed attempt at this version is discarded.
+	 * @param version_id Version of the list the entries bring us to
+	 */
+	public void begin_delta(int version_id) throws Exception{
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + BASE_TBL + 
+				"_delta (SEQ BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+				"VERSION_ID INT NOT NULL, HASH " + (ACTIVE_BINARY ? 
+				"BINARY(16)" : "VARCHAR(32)") + " NULL, OP TINYINT NOT NULL, " +
+				"INDEX (VERSION_ID))"); // Layout follows the active table
+		stmt.executeUpdate("DELETE FROM " + BASE_TBL + "_delta " + 
+				"WHERE VERSION_ID>=" + version_id);
+		stmt.close();
+		if(!con.getAutoCommit())
+			con.commit();
+		
+		this.delta_binary = sb_tables.hash_is_binary(con, BASE_TBL + "_delta");
+		this.delta_version = version_id;
+		this.pstmt_delta = con.prepareStatement("INSERT INTO " + BASE_TBL + 
+				"_delta (VERSION_ID,HASH,OP) VALUES (?,?,?)");
+	}
+	
+	/**
+	 * Complete the change-feed of the version being recorded, marking it
+	 * as whole, and prune feeds of versions beyond DELTA_RETENTION. This
+	 * should be called after all entries are applied (and any batch ended),
+	 * but before the log entry is made. It is a no-op if not recording.
+	 */
+	public void end_delta() throws Exception{
+		if(pstmt_delta == null)
+			return;
+		flush_batch(); // All entries precede the marker
+		pstmt_delta.setInt(1, delta_version);
+		pstmt_delta.setNull(2, (delta_binary ? Types.BINARY : Types.VARCHAR));
+		pstmt_delta.setInt(3, sb_tables.DELTA_DONE);
+		pstmt_delta.executeUpdate();
+		pstmt_delta.close();
+		pstmt_delta = null;
+		
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("DELETE FROM " + BASE_TBL + "_delta WHERE " + 
+				"VERSION_ID<(SELECT MIN(VERSION_ID) FROM (SELECT DISTINCT " +
+				"VERSION_ID FROM " + BASE_TBL + "_delta ORDER BY VERSION_ID " +
+				"DESC LIMIT " + DELTA_RETENTION + ") AS v)");
+		stmt.close();
+		if(!con.getAutoCommit())
+			con.commit();
+	}
+	
+	/**
+	 * Return the number of rows this instance has inserted into the active
+	 * list (in batch mode, only those of batches already flushed).
+	 * @return Number of new active entries applied
+	 */
+	public int applied_adds(){
+		return(applied_adds);
+	}
+	
+	/**
+	 * Return the number of rows this instance has closed on the active list
+	 * (in batch mode, only those of batches already flushed).
+	 * @return Number of removals applied
+	 */
+	public int applied_closes(){
+		return(applied_closes);
 	}
 	
 	/**
@@ -91,26 +313,74 @@ public class db_sb_update{
 	 * @return Quantity of rows migrated
 	 */
 	public int archive_migrate() throws Exception{
-
-			// First move all the rows
-		Statement stmt = con.createStatement();
-		ResultSet rs = stmt.executeQuery("SELECT HASH,TS_IN,TS_OUT FROM " + 
-				BASE_TBL + " WHERE TS_OUT!=-1");
-		int num_rows_moved = 0;
-		while(rs.next()){
-			num_rows_moved++;
-			pstmt_archive_entry.setString(1, rs.getString(1));
-			pstmt_archive_entry.setLong(2, rs.getLong(2));
-			pstmt_archive_entry.setLong(3, rs.getLong(3));
-			pstmt_archive_entry.executeUpdate();
-		} // Migrate all "expired" rows
-		rs.close();
-		stmt.close();
+		return(archive_migrate(DEFAULT_MIGRATE_CHUNK));
+	}
+	
+	/**
+	 * Complete the DB-migration from "active" to "archival" tables. Rows
+	 * are moved server-side (INSERT..SELECT, then DELETE), in HASH-ranged
+	 * chunks, each chunk in its own transaction: locks are held only
+	 * briefly, and a failure cannot leave a row both copied and undeleted
+	 * (nor deleted and uncopied).
+	 * @param chunk_size Maximum number of rows moved per transaction
+	 * @return Quantity of rows migrated
+	 */
+	public int archive_migrate(int chunk_size) throws Exception{
+		
+		String hash_expr = "HASH"; // Tables may differ mid-migration
+		if(ACTIVE_BINARY && !ARCHIVE_BINARY)
+			hash_expr = "LOWER(HEX(HASH))";
+		else if(!ACTIVE_BINARY && ARCHIVE_BINARY)
+			hash_expr = "UNHEX(HASH)";
 		
-			// Then delete them from the source table
-		Statement stmt2 = con.createStatement();
-		stmt2.executeUpdate("DELETE FROM " + BASE_TBL + " WHERE TS_OUT!=-1");
-		stmt2.close();
+		PreparedStatement pstmt_bound = con.prepareStatement(
+				"SELECT MAX(HASH) FROM (SELECT HASH FROM " + BASE_TBL + 
+				" WHERE TS_OUT!=-1 AND HASH>? ORDER BY HASH LIMIT " + 
+				Math.max(chunk_size, 1) + ") AS c");
+		PreparedStatement pstmt_copy = con.prepareStatement(
+				"INSERT INTO " + BASE_TBL + "_old SELECT " + hash_expr + 
+				",TS_IN,TS_OUT FROM " + BASE_TBL + 
+				" WHERE TS_OUT!=-1 AND HASH>? AND HASH<=?");
+		PreparedStatement pstmt_delete = con.prepareStatement(
+				"DELETE FROM " + BASE_TBL + 
+				" WHERE TS_OUT!=-1 AND HASH>? AND HASH<=?");
+		
+		boolean auto_commit = con.getAutoCommit();
+		con.setAutoCommit(false);
+		int num_rows_moved = 0;
+		try{Object low = (ACTIVE_BINARY ? new byte[0] : "");
+			while(true){
+				pstmt_bound.setObject(1, low);
+				ResultSet rs = pstmt_bound.executeQuery();
+				Object high = (rs.next() ? rs.getObject(1) : null);
+				rs.close();
+				if(high == null)
+					break;
+				
+				pstmt_copy.setObject(1, low);
+				pstmt_copy.setObject(2, high);
+				pstmt_delete.setObject(1, low);
+				pstmt_delete.setObject(2, high);
+				int num_copied = pstmt_copy.executeUpdate();
+				int num_deleted = pstmt_delete.executeUpdate();
+				if(num_copied != num_deleted){
+					throw new Exception("Archive migration of " + BASE_TBL + 
+							" copied " + num_copied + " rows but deleted " + 
+							num_deleted);
+				} // Rows must move, neither duplicated nor lost
+				con.commit();
+				num_rows_moved += num_copied;
+				low = high;
+			} // Move one HASH-range at a time, committing each
+		} catch(Exception e){
+			con.rollback();
+			throw e;
+		} finally{
+			con.setAutoCommit(auto_commit);
+			pstmt_bound.close();
+			pstmt_copy.close();
+			pstmt_delete.close();
+		} // A failed chunk is rolled back; earlier chunks are complete
 		return(num_rows_moved);
 	}
 	
@@ -130,26 +400,51 @@ public class db_sb_update{
 		stmt.close();
 	}
 	
+	/**
+	 * Record an update run in the run-history table [BASE_TBL_runs], which
+	 * is created (with a column per field) if it does not exist.
+	 * @param fields Names of the fields of the entry (see 
+	 * update_profile.run_fields())
+	 * @param values Values of the entry, parallel to 'fields': strings,
+	 * and Longs
+	 */
+	public void insert_run_entry(String[] fields, Object[] values) 
+			throws Exception{
+		StringBuilder create = new StringBuilder("CREATE TABLE IF NOT " +
+				"EXISTS " + BASE_TBL + "_runs (");
+		StringBuilder insert = new StringBuilder("INSERT INTO " + BASE_TBL + 
+				"_runs (");
+		for(int i=0; i < fields.length; i++){
+			String sep = (i == 0 ? "" : ",");
+			create.append(sep + fields[i] + (values[i] instanceof String ? 
+					" VARCHAR(16)" : " BIGINT") + " NOT NULL");
+			insert.append(sep + fields[i]);
+		} // Column types follow the types of the values
+		create.append(", INDEX (TS_START))");
+		insert.append(") VALUES (?");
+		for(int i=1; i < fields.length; i++)
+			insert.append(",?");
+		insert.append(")");
+		
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate(create.toString());
+		stmt.close();
+		PreparedStatement pstmt = con.prepareStatement(insert.toString());
+		for(int i=0; i < values.length; i++)
+			pstmt.setObject(i+1, values[i]);
+		pstmt.executeUpdate();
+		pstmt.close();
+		if(!con.getAutoCommit())
+			con.commit();
+	}
+	
 	/**
 	 * Return the blacklist version our local DB contains.
 	 * @return the blacklist version our local DB contains. Negative one
 	 * (-1) is returned if no log history exists.
 	 */
 	public int get_local_version_id() throws Exception{
-		int local_vid = -1;
-		Statement stmt = con.createStatement();
-		ResultSet rs = stmt.executeQuery("SELECT MAX(VERSION_ID) FROM " + 
-				BASE_TBL + "_log");
-		
-		if(rs.next()){
-			local_vid = rs.getInt(1);
-			if(rs.wasNull())
-				local_vid = -1;
-		} // Check ResultSet. Note that NULL will parse to int as "0"
-
-		rs.close();
-		stmt.close();
-		return(local_vid);
+		return(sb_tables.version_id(con, BASE_TBL));
 	}
 		
 	/**
@@ -158,27 +453,61 @@ public class db_sb_update{
 	public void shutdown() throws Exception{
 		pstmt_new_entry.close();
 		pstmt_close_entry.close();
-		pstmt_archive_entry.close();
+		if(pstmt_delta != null)
+			pstmt_delta.close();
 	}
 	
 	
 	// *************************** PRIVATE METHODS ***************************
 	
+	/**
+	 * Record an entry or removal in the change-feed, if recording. In batch
+	 * mode it is queued, and committed alongside the change it records.
+	 * @param hash Hash-code being added or closed
+	 * @param op Either DELTA_ADD or DELTA_CLOSE (see [list_store.sb_tables])
+	 */
+	private void record_delta(String hash, int op) throws Exception{
+		if(pstmt_delta == null)
+			return;
+		pstmt_delta.setInt(1, delta_version);
+		sb_tables.set_hash(pstmt_delta, 2, hash, delta_binary);
+		pstmt_delta.setInt(3, op);
+		if(batch_size == 0)
+			pstmt_delta.executeUpdate();
+		else pstmt_delta.addBatch();
+	}
+	
+	/**
+	 * Total the update counts returned by a batch execution.
+	 * @param counts Per-statement update counts of a batch
+	 * @return Number of rows affected by the batch. Statements whose count
+	 * the driver does not report (e.g., rewritten multi-row inserts) were
+	 * successful, and are counted as affecting one row.
+	 */
+	private static int sum_counts(int[] counts){
+		int total = 0;
+		for(int i=0; i < counts.length; i++){
+			if(counts[i] == Statement.SUCCESS_NO_INFO)
+				total++;
+			else if(counts[i] > 0)
+				total += counts[i];
+		} // Failed statements would have thrown an exception
+		return(total);
+	}
+	
 	/**
 	 * Prepare all SQL statements required by this class instance. 
 	 */
 	private void prep_statements() throws Exception{	
 		
-		String new_entry = "INSERT INTO " + BASE_TBL + " VALUES (?,?,-1)";
+		String new_entry = "INSERT INTO " + BASE_TBL + " SELECT ?,?,-1 FROM ";
+		new_entry += "(SELECT COUNT(*) AS N FROM " + BASE_TBL + " WHERE ";
+		new_entry += "HASH=? AND TS_OUT=-1) AS o WHERE o.N=0"; // If not open
 		pstmt_new_entry = con.prepareStatement(new_entry);
 		
 		String close_entry = "UPDATE " + BASE_TBL + " ";
-		close_entry += "SET TS_OUT=? WHERE HASH=?";
+		close_entry += "SET TS_OUT=? WHERE HASH=? AND TS_OUT=-1";
 		pstmt_close_entry = con.prepareStatement(close_entry);
-		
-		String archive_entry = "INSERT INTO " + BASE_TBL + "_old ";
-		archive_entry += "VALUES (?,?,?)";
-		pstmt_archive_entry = con.prepareStatement(archive_entry);
 	}
 
 }
@@ -0,0 +1,157 @@
+package update_list;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Andrew G. West - diff_parser.java - Streaming parser of Safe Browsing
+ * diffs. Rather than reading a (potentially full-list) response into memory
+ * and splitting it, lines are read straight off the stream into a reusable
+ * buffer, and each is handed to a [diff_listener] as soon as it is complete.
+ * Memory use is thus constant in the size of the diff, and the listener
+ * (i.e., the DB writer) may begin work before the download is finished.
+ *
+ * Example diff:
+ *   [goog-black-hash 1.372 update]
+ *   +00386acdf6010e6472b3e34b2f8f0872
+ *   -0a2b4f6e8c0d1e2f3a4b5c6d7e8f9012
+ */
+public class diff_parser{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Receiver of the contents of a diff, as they are parsed.
+	 */
+	public interface diff_listener{
+
+		/**
+		 * Handle the header line of a diff.
+		 * @param version_id Version of the list the diff brings us to
+		 */
+		void header(int version_id) throws Exception;
+
+		/**
+		 * Handle the addition of a hash to the list.
+		 * @param hash Hash being added, as hex
+		 */
+		void add(String hash) throws Exception;
+
+		/**
+		 * Handle the removal of a hash from the list.
+		 * @param hash Hash being removed, as hex
+		 */
+		void remove(String hash) throws Exception;
+	}
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Number of characters read from the stream at a time.
+	 */
+	private static final int READ_SIZE = 0x10000; // 64k buffer
+
+	/**
+	 * Listener to which parsed lines are handed.
+	 */
+	private final diff_listener listener;
+
+	/**
+	 * Line currently being assembled, reused across lines.
+	 */
+	private final StringBuilder line;
+
+	/**
+	 * Index of the line currently being assembled (zero is the header).
+	 */
+	private int line_num;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct a [diff_parser].
+	 * @param listener Listener to which parsed lines should be handed
+	 */
+	public diff_parser(diff_listener listener){
+		this.listener = listener;
+		this.line = new StringBuilder(64);
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Parse a diff from a stream, handing every line to the listener. The
+	 * stream is read to its end, but not closed.
+	 * @param is Stream over a diff, encoded as UTF-8
+	 * @return TRUE if the stream had any content. FALSE if it was empty,
+	 * which is the case when our local list is the most recent version.
+	 */
+	public boolean parse(InputStream is) throws Exception{
+		Reader in = new InputStreamReader(is, "UTF-8");
+		char[] buffer = new char[READ_SIZE];
+		boolean has_content = false;
+		line.setLength(0);
+		line_num = 0;
+
+		int read;
+		while((read = in.read(buffer, 0, buffer.length)) >= 0){
+			has_content |= (read > 0);
+			int line_start = 0;
+			for(int i=0; i < read; i++){
+				if(buffer[i] != '\n')
+					continue;
+				line.append(buffer, line_start, i - line_start);
+				end_line();
+				line_start = i + 1;
+			} // Lines are delimited by newlines alone
+			line.append(buffer, line_start, read - line_start);
+		} // Read the stream one buffer at a time
+		if(line.length() > 0)
+			end_line(); // Final line need not end with a newline
+		return(has_content);
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Process the line which has been assembled, then reset for the next.
+	 */
+	private void end_line() throws Exception{
+		int start = 0, end = line.length();
+		while(start < end && line.charAt(start) <= ' ')
+			start++;
+		while(end > start && line.charAt(end - 1) <= ' ')
+			end--; // The whitespace in this doc is quite odd
+
+		if(start < end){
+			if(line_num == 0) // Example: "[goog-black-hash 1.372 update]"
+				parse_header(line.substring(start, end));
+			else if(line.charAt(start) == '+')
+				listener.add(line.substring(start + 1, end));
+			else if(line.charAt(start) == '-')
+				listener.remove(line.substring(start + 1, end));
+		} // First line of file handled differently than all others
+		line.setLength(0);
+		line_num++;
+	}
+
+	/**
+	 * Parse the header line of a diff, handing its version to the listener.
+	 * @param header First line of the diff, trimmed
+	 */
+	private void parse_header(String header) throws Exception{
+		if(!header.contains("update")){
+			throw new Exception("PANIC: Google requesting list to " +
+					"be flushed rather than updated. If not first " +
+					"run, this behavior is not supported");
+		} // Nature of update being pulled should be predictable
+		listener.header(Integer.parseInt(
+				header.split(" ")[1].split("\\.|\\]")[1]));
+	}
+
+}
@@ -0,0 +1,181 @@
+package update_list;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import list_store.sb_tables;
+
+import common_utils.db_con;
+import common_utils.db_con.DBS;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - hash_migrate.java - Driver class. Convert the HASH
+ * column of all Safe Browsing tables (active and archival) from 32-char
+ * hex strings to 16-byte binary keys, halving key size so that far more
+ * of each index fits in the buffer pool.
+ *
+ * Each table [X] is converted by building [X_bin] alongside it, copying
+ * rows over in HASH-ranged chunks (so no lock is held for long), and then
+ * atomically swapping the two via RENAME. Chunking walks the HASH index of
+ * [X]; without one, each chunk would scan (and lock) the whole table, so
+ * an unindexed [X] is first given one, in a single ALTER. The original table is kept as
+ * [X_hex] until an operator drops it. Tables already binary are skipped,
+ * so the tool may simply be re-run after an interruption. The updater
+ * ('cron' job) should be paused while the tool runs; running lookup
+ * processes re-detect the layout (see [access_list.db_sb_access]), and
+ * need not be restarted.
+ *
+ * A hash may appear in an active table more than once (e.g., closed, then
+ * re-added before the closed row is archived), so HASH only ever receives
+ * a plain index, as in the hex layout, and rows are copied verbatim: no
+ * listing is merged away. A unique key on HASH (as an earlier version of
+ * this tool created) is replaced by a plain index.
+ */
+public class hash_migrate{
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * Default number of rows copied per chunk.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 50000;
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Migrate all list tables to the binary HASH layout.
+	 * @param args One optional argument is permitted: (1) The number of
+	 * rows to copy per chunk (default: 50000).
+	 */
+	public static void main(String[] args) throws Exception{
+		int chunk_size = (args.length > 0 ? Integer.parseInt(args[0]) :
+				DEFAULT_CHUNK_SIZE);
+		Connection con = db_con.get_con(DBS.safe_browsing);
+		for(LIST_TYPE list_type : LIST_TYPE.values()){
+			migrate_table(con, list_type.toString(), chunk_size);
+			migrate_table(con, list_type + "_old", chunk_size);
+		} // Both the active and archival table of each list
+		con.close();
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Convert a single table to the binary HASH layout.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param table Name of the table to be converted
+	 * @param chunk_size Maximum number of rows copied per statement
+	 */
+	private static void migrate_table(Connection con, String table,
+			int chunk_size) throws Exception{
+
+		if(sb_tables.hash_is_binary(con, table)){
+			System.out.println(table + ": already binary, skipping");
+			make_hash_index_plain(con, table);
+			return;
+		} // Nothing to do (e.g., on a re-run), but for the key
+
+		Statement stmt = con.createStatement();
+		if(!has_hash_index(con, table)){
+			System.out.println(table + ": indexing HASH before copying");
+			stmt.executeUpdate("ALTER TABLE " + table + " ADD INDEX (HASH)");
+		} // Each chunk must be an index range, not a scan and sort
+
+		String bin_tbl = table + "_bin";
+		stmt.executeUpdate("DROP TABLE IF EXISTS " + bin_tbl);
+		stmt.executeUpdate("CREATE TABLE " + bin_tbl + " LIKE " + table);
+		stmt.executeUpdate("ALTER TABLE " + bin_tbl +
+				" MODIFY HASH BINARY(16) NOT NULL");
+		make_hash_index_plain(con, bin_tbl);
+		if(!has_hash_index(con, bin_tbl)){
+			stmt.executeUpdate("ALTER TABLE " + bin_tbl + " ADD INDEX (HASH)");
+		} // Lookups (and chunking) need HASH to be indexed
+
+		PreparedStatement pstmt_bound = con.prepareStatement(
+				"SELECT MAX(HASH) FROM (SELECT HASH FROM " + table +
+				" WHERE HASH>? ORDER BY HASH LIMIT " + chunk_size + ") AS c");
+		PreparedStatement pstmt_copy = con.prepareStatement(
+				"INSERT INTO " + bin_tbl + " SELECT UNHEX(HASH),TS_IN,TS_OUT " +
+				"FROM " + table + " WHERE HASH>? AND HASH<=?");
+
+		long num_copied = 0;
+		String low = "";
+		while(true){
+			pstmt_bound.setString(1, low);
+			ResultSet rs = pstmt_bound.executeQuery();
+			String high = (rs.next() ? rs.getString(1) : null);
+			rs.close();
+			if(high == null)
+				break;
+
+			pstmt_copy.setString(1, low);
+			pstmt_copy.setString(2, high);
+			num_copied += pstmt_copy.executeUpdate();
+			System.out.println(table + ": " + num_copied + " rows copied");
+			low = high;
+		} // Copy one HASH-range at a time; duplicates share a range
+		pstmt_bound.close();
+		pstmt_copy.close();
+
+		stmt.executeUpdate("DROP TABLE IF EXISTS " + table + "_hex");
+		stmt.executeUpdate("RENAME TABLE " + table + " TO " + table + "_hex, " +
+				bin_tbl + " TO " + table);
+		stmt.close();
+		System.out.println(table + ": now binary (hex copy kept as " +
+				table + "_hex)");
+	}
+
+	/**
+	 * Replace any unique index led by the HASH column of some table with a
+	 * plain one, so that a hash may have more than one row.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param table Name of the table to be checked
+	 */
+	private static void make_hash_index_plain(Connection con, String table)
+			throws Exception{
+		DatabaseMetaData meta = con.getMetaData();
+		ResultSet rs = meta.getIndexInfo(null, null, table, true, false);
+		String unique = null;
+		while(rs.next()){
+			if(rs.getShort("ORDINAL_POSITION") == 1 &&
+					"HASH".equalsIgnoreCase(rs.getString("COLUMN_NAME")))
+				unique = rs.getString("INDEX_NAME");
+		} // Look for a unique index whose first column is HASH
+		rs.close();
+		if(unique == null)
+			return;
+
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("ALTER TABLE " + table + " DROP INDEX `" + unique +
+				"`, ADD INDEX (HASH)"); // One statement; never unindexed
+		stmt.close();
+		System.out.println(table + ": unique key on HASH made plain");
+	}
+
+	/**
+	 * Determine if the HASH column of some table leads any index.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param table Name of the table to be checked
+	 * @return TRUE if an index (primary or otherwise) begins with HASH
+	 */
+	private static boolean has_hash_index(Connection con, String table)
+			throws Exception{
+		DatabaseMetaData meta = con.getMetaData();
+		ResultSet rs = meta.getIndexInfo(null, null, table, false, false);
+		boolean indexed = false;
+		while(rs.next()){
+			if(rs.getShort("ORDINAL_POSITION") == 1 &&
+					"HASH".equalsIgnoreCase(rs.getString("COLUMN_NAME")))
+				indexed = true;
+		} // Look for any index whose first column is HASH
+		rs.close();
+		return(indexed);
+	}
+
+}
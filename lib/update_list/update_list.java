@@ -1,11 +1,24 @@
 package update_list;
 
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import access_list.sb_snapshot;
+
+import list_store.embedded_store;
+import list_store.sb_tables;
+import list_store.sb_update;
+
+import update_list.update_profile.PHASE;
 
 import common_utils.db_con;
 import common_utils.gen_utils;
@@ -16,7 +29,8 @@ import common_utils.gen_utils.LIST_TYPE;
  * Andrew G. West - update_list.java - Driver class. Update all lists
  * provided as part of the Google Safe Browsing project. Esentially this
  * is diff-processing, inserting new entries, and migrating expired ones
- * to archival tables.
+ * to archival tables. Every run is profiled (see [update_profile]) and
+ * recorded in the run history of its list.
  */
 public class update_list{
 		
@@ -25,11 +39,44 @@ public class update_list{
 	/**
 	 * Update local copies of Safe Browsing blacklists. Google suggest
 	 * this be done once every 30 minutes, presumable via a 'cron' task. 
-	 * @param args No arguments are required by this method.
+	 * All lists are updated concurrently, each over its own connection,
+	 * and the outcome of each is reported separately.
+	 * @param args Three optional arguments are permitted: (1) The number of
+	 * diff entries to apply per DB batch/transaction (default: 1000),
+	 * (2) a directory into which a snapshot file of each list should be
+	 * exported whenever it changes (see [access_list.sb_snapshot]; "-" for
+	 * none), and (3) the directory of a [list_store.embedded_store] to
+	 * update, in place of the MySQL database.
 	 */
 	public static void main(String[] args) throws Exception{
-		process_list(LIST_TYPE.phishing);
-		process_list(LIST_TYPE.malware);
+		int batch_size = (args.length > 0 ? Integer.parseInt(args[0]) :
+				db_sb_update.DEFAULT_BATCH_SIZE);
+		String snapshot_dir = (args.length > 1 && !args[1].equals("-") ? 
+				args[1] : null);
+		embedded_store store = (args.length > 2 ? 
+				embedded_store.open(args[2]) : null);
+		if(store != null && snapshot_dir != null)
+			throw new Exception("Snapshots are exported from MySQL only");
+		
+		LIST_TYPE[] lists = LIST_TYPE.values();
+		ExecutorService pool = Executors.newFixedThreadPool(lists.length);
+		List<Future<String>> outcomes = new ArrayList<Future<String>>();
+		for(LIST_TYPE list_type : lists)
+			outcomes.add(pool.submit(new update_task(list_type, batch_size, 
+					snapshot_dir, store)));
+		pool.shutdown(); // No further tasks; threads exit once done
+		
+		int num_failed = 0;
+		for(int i=0; i < lists.length; i++){
+			try{System.out.println(outcomes.get(i).get());
+			} catch(ExecutionException e){
+				num_failed++;
+				System.err.println(lists[i] + ": update FAILED");
+				e.getCause().printStackTrace();
+			} // One list failing does not affect the others
+		} // Report each list's outcome, in enumeration order
+		if(num_failed > 0)
+			throw new Exception(num_failed + " list update(s) failed");
 	}
 
 	
@@ -38,61 +85,117 @@ public class update_list{
 	/**
 	 * Extremely high-level processing call. 
 	 * @param list_type Provide the Google list to be processed/updated.
+	 * @param batch_size Number of diff entries applied per DB transaction
+	 * @param snapshot_dir Directory into which a snapshot of the list is
+	 * exported if it has changed, or NULL if snapshots are not kept
+	 * @param store Store to be updated, or NULL to update the MySQL database
+	 * @return Human-readable summary of the update performed
 	 */
-	private static void process_list(LIST_TYPE list_type) throws Exception{
+	private static String process_list(LIST_TYPE list_type, int batch_size,
+			String snapshot_dir, embedded_store store) throws Exception{
 		
 		long timestamp = gen_utils.cur_unix_time();
-		Connection con = db_con.get_con(DBS.safe_browsing);
-		db_sb_update db_handler = new db_sb_update(con, list_type);
-		
-		int local_version = db_handler.get_local_version_id();
-		String content = fetch_url(api_url(list_type, local_version));
-		if(content.equals("")){
-			db_handler.shutdown();
-			con.close();
-			System.exit(0);
-		} // If at most recent version, diff will be completely empty
-		
-		String hash; int new_ver_id = -1; int db_adds = 0;
-		String[] content_lines = content.split("\n"); // Split on lines
-		for(int i=0; i < content_lines.length; i++){
-		
-			content_lines[i] = content_lines[i].trim();
-			if(content_lines[i].equals(""))
-				continue; // The whitespace in this doc is quite odd
-			
-			if(i == 0){ // Example first line: "[goog-black-hash 1.372 update]"
-				
-				if(!content_lines[i].contains("update")){
-					throw new Exception("PANIC: Google requesting list to " +
-							"be flushed rather than updated. If not first " +
-							"run, this behavior is not supported");
-				} // Nature of update being pulled should be predictable
-				
-				new_ver_id = Integer.parseInt(
-						content_lines[i].split(" ")[1].split("\\.|\\]")[1]);
-				
-			} else{ // Example normal line: "+00386acdf6010e6472b3e34b2f8f0872"
-
-				hash = content_lines[i].substring(1);				
-				if(content_lines[i].charAt(0) == '+'){
-					db_adds++;
-					db_handler.new_active_entry(hash, timestamp);
-				} else if(content_lines[i].charAt(0) == '-')
-					db_handler.close_active(hash, timestamp);
-
-			} // First line of file handled differently than all others
-		} // Iterate over all entries in the diff file
-		
-			// MIGRATE ALL ROWS THAT WERE CLOSED
-		int mig_size = db_handler.archive_migrate();
+		update_profile profile = new update_profile(list_type);
+		long start = System.nanoTime();
+		Connection con = null;
+		if(store == null){
+			con = db_con.borrow_con(DBS.safe_browsing);
+			if(con == null)
+				throw new Exception("No DB connection available");
+		} // The embedded store needs no connection
+		sb_update db_handler = null;
+		int local_version = -1;
+		try{db_handler = (store == null ? new db_sb_update(con, list_type) : 
+					store.update(list_type));
 		
-			// LEAVE LOG ENTRY
-		db_handler.insert_log_entry(new_ver_id, timestamp, db_adds, mig_size);
-		
-			// CLOSE UP AND SHUTDOWN
-		db_handler.shutdown();
-		con.close();
+			local_version = db_handler.get_local_version_id();
+			start = profile.time(PHASE.setup, start);
+			diff_writer writer = new diff_writer(db_handler, timestamp, 
+					local_version);
+			InputStream is = profile.meter(open_url(
+					api_url(list_type, local_version)));
+			start = profile.time(PHASE.connect, start);
+			boolean has_content;
+			db_handler.begin_batch(batch_size);
+			try{has_content = new diff_parser(profile.meter(writer)).parse(is);
+			} finally{is.close();} // Entries are written as they stream in
+			start = profile.time_stream(start);
+			db_handler.end_batch();
+			start = profile.time(PHASE.flush, start);
+			if(!has_content){
+				String export = export_if_stale(con, list_type, snapshot_dir);
+				profile.time(PHASE.export, start);
+				profile.finish(update_profile.CURRENT, local_version, 
+						local_version, 0, 0, 0);
+				db_handler.insert_run_entry(update_profile.run_fields(),
+						profile.run_entry());
+				return(list_type + ": current at version " + local_version + 
+						", nothing to do" + export + "\n" + profile.report());
+			} // If at most recent version, diff will be completely empty
+			
+				// MIGRATE ALL ROWS THAT WERE CLOSED
+			int mig_size = db_handler.archive_migrate();
+			start = profile.time(PHASE.migrate, start);
+			
+				// MARK CHANGE-FEED COMPLETE (BEFORE LOG MAKES IT VISIBLE)
+			db_handler.end_delta();
+			start = profile.time(PHASE.flush, start);
+			
+				// LEAVE LOG ENTRY
+			db_handler.insert_log_entry(writer.new_ver_id, timestamp, 
+					db_handler.applied_adds(), mig_size);
+			start = profile.time(PHASE.log, start);
+			String export = export_if_stale(con, list_type, snapshot_dir);
+			profile.time(PHASE.export, start);
+			
+				// RECORD THE RUN IN THE RUN HISTORY
+			profile.finish(update_profile.UPDATED, local_version, 
+					writer.new_ver_id, db_handler.applied_adds(), 
+					db_handler.applied_closes(), mig_size);
+			db_handler.insert_run_entry(update_profile.run_fields(),
+					profile.run_entry());
+			return(list_type + ": updated " + local_version + " -> " + 
+					writer.new_ver_id + " (" + db_handler.applied_adds() + 
+					" added, " + db_handler.applied_closes() + " closed, " + 
+					mig_size + " archived)" + export + "\n" + profile.report());
+			
+		} catch(Exception e){
+			if(db_handler != null){
+				profile.finish(update_profile.FAILED, local_version, -1, 
+						db_handler.applied_adds(), db_handler.applied_closes(), 0);
+				try{db_handler.insert_run_entry(update_profile.run_fields(),
+						profile.run_entry());
+				} catch(Exception history_failure){}
+				System.err.println(profile.report());
+			} // Failed runs are recorded too, if the store permits
+			throw e;
+			
+		} finally{ // CLOSE UP AND SHUTDOWN
+			if(db_handler != null)
+				db_handler.shutdown();
+			if(con != null)
+				db_con.return_con(DBS.safe_browsing, con);
+		}
+	}
+	
+	/**
+	 * Export a snapshot file of a list, if the existing one (if any) does
+	 * not reflect the list version now held in the DB.
+	 * @param con Connection to the [safe_browsing] database
+	 * @param list_type List whose snapshot should be checked
+	 * @param snapshot_dir Directory in which snapshot files are kept, or
+	 * NULL if snapshots are not kept (wherein this is a no-op)
+	 * @return Human-readable note of the export performed, if any
+	 */
+	private static String export_if_stale(Connection con, LIST_TYPE list_type,
+			String snapshot_dir) throws Exception{
+		if(snapshot_dir == null)
+			return("");
+		int db_version = sb_tables.version_id(con, list_type.toString());
+		if(sb_snapshot.file_version(snapshot_dir, list_type) == db_version)
+			return("");
+		int count = sb_snapshot.export(con, list_type, snapshot_dir);
+		return("; snapshot of " + count + " hashes exported");
 	}
 	
 	/**
@@ -115,25 +218,114 @@ public class update_list{
 	}
 
 	/**
-	 * Read the contents of some URL into a string.
+	 * Open a stream over the contents of some URL.
 	 * @param str_url String version of the URL to be fetched
-	 * @return String created over InputStream over 'str_url'
+	 * @return InputStream over the contents of 'str_url'
 	 */
-	private static String fetch_url(String str_url) throws Exception{
+	private static InputStream open_url(String str_url) throws Exception{
 		URL url = new URL(str_url);
 		URLConnection conn = url.openConnection();
-		InputStream is = conn.getInputStream();
-		
-		int read; 
-		final char[] buffer = new char[0x10000]; // 64k buffer
-		StringBuilder out = new StringBuilder();
-		Reader in = new InputStreamReader(is, "UTF-8");
-		do{ // Read InputStream into a String for ease-of-ise
-		  read = in.read(buffer, 0, buffer.length);
-		  if(read > 0)
-			  out.append(buffer, 0, read);
-		} while (read>=0);
-		return(out.toString());
+		return(conn.getInputStream());
+	}
+	
+	
+	// **************************** PRIVATE CLASSES **************************
+	
+	/**
+	 * Task updating a single list, so that lists may update concurrently.
+	 */
+	private static class update_task implements Callable<String>{
+		
+		/**
+		 * List to be updated.
+		 */
+		private final LIST_TYPE list_type;
+		
+		/**
+		 * Number of diff entries applied per DB transaction.
+		 */
+		private final int batch_size;
+		
+		/**
+		 * Directory into which snapshots are exported (NULL if none).
+		 */
+		private final String snapshot_dir;
+		
+		/**
+		 * Store to be updated (NULL if the MySQL database).
+		 */
+		private final embedded_store store;
+		
+		/**
+		 * Construct an [update_task].
+		 * @param list_type List to be updated
+		 * @param batch_size Number of diff entries applied per transaction
+		 * @param snapshot_dir Directory for snapshot export (NULL if none)
+		 * @param store Store to be updated (NULL if the MySQL database)
+		 */
+		update_task(LIST_TYPE list_type, int batch_size, String snapshot_dir,
+				embedded_store store){
+			this.list_type = list_type;
+			this.batch_size = batch_size;
+			this.snapshot_dir = snapshot_dir;
+			this.store = store;
+		}
+		
+		public String call() throws Exception{
+			return(process_list(list_type, batch_size, snapshot_dir, store));
+		}
+	}
+	
+	/**
+	 * Listener writing each entry of a diff to the DB as it is parsed.
+	 */
+	private static class diff_writer implements diff_parser.diff_listener{
+		
+		/**
+		 * DB handler to which entries are written.
+		 */
+		private final sb_update db_handler;
+		
+		/**
+		 * Timestamp recorded against every entry written.
+		 */
+		private final long timestamp;
+		
+		/**
+		 * Version of the list prior to the diff (-1 if never loaded).
+		 */
+		private final int old_ver_id;
+		
+		/**
+		 * Version of the list the diff brings us to (-1 if no header).
+		 */
+		int new_ver_id = -1;
+		
+		/**
+		 * Construct a [diff_writer].
+		 * @param db_handler DB handler to which entries should be written
+		 * @param timestamp Timestamp to record against every entry
+		 * @param old_ver_id Version of the list prior to the diff
+		 */
+		diff_writer(sb_update db_handler, long timestamp, int old_ver_id){
+			this.db_handler = db_handler;
+			this.timestamp = timestamp;
+			this.old_ver_id = old_ver_id;
+		}
+		
+		public void header(int version_id) throws Exception{
+			this.new_ver_id = version_id;
+			if(old_ver_id >= 0)
+				db_handler.begin_delta(version_id);
+		} // Initial (full) downloads need no feed; no index predates them
+		
+		public void add(String hash) throws Exception{
+			db_handler.new_active_entry(hash, timestamp);
+		}
+		
+		public void remove(String hash) throws Exception{
+			db_handler.close_active(hash, timestamp);
+		}
 	}
 	
 }
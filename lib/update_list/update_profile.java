@@ -0,0 +1,371 @@
+package update_list;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import common_utils.gen_utils;
+import common_utils.gen_utils.LIST_TYPE;
+
+/**
+ * Andrew G. West - update_profile.java - Profile of one update run of one
+ * list: the time spent in each phase of the run, and the volume of work
+ * done (bytes fetched, lines parsed, rows applied and archived). Each run
+ * is reported, and recorded in the run history of the list (see
+ * [sb_update.insert_run_entry]), so that slow phases may be identified,
+ * and compared across runs. The run history stands in for JFR events,
+ * which need JDK 11; the library targets Java 7 (see pom.xml).
+ *
+ * Downloading, parsing, and applying entries are interleaved (the diff is
+ * streamed), so they are separated by metering: the stream times its
+ * reads (download), the listener times its writes (apply), and what is
+ * left of the streaming pass is parsing.
+ */
+public class update_profile{
+
+	// **************************** PUBLIC FIELDS ****************************
+
+	/**
+	 * Phases of an update run: borrowing a connection and reading the local
+	 * version (setup), requesting the diff (connect), reading it (download),
+	 * parsing it (parse), writing its entries (apply), ending the batch and
+	 * change-feed (flush), archiving closed entries (migrate), writing the
+	 * log entry (log), and exporting a snapshot (export).
+	 */
+	public enum PHASE{setup, connect, download, parse, apply, flush, migrate,
+			log, export};
+
+	/**
+	 * Interval (in ms.) between update runs; Google suggests 30 minutes.
+	 */
+	public static final long UPDATE_WINDOW_MS = 30 * 60 * 1000;
+
+	/**
+	 * Fraction of UPDATE_WINDOW_MS beyond which a run's report warns that
+	 * the run is at risk of overlapping the next.
+	 */
+	public static final double WINDOW_WARNING = 0.5;
+
+	/**
+	 * Outcomes of a run: new entries applied, list already current, and
+	 * run aborted by an exception.
+	 */
+	public static final String UPDATED = "updated", CURRENT = "current",
+			FAILED = "failed";
+
+
+	// **************************** PRIVATE FIELDS ***************************
+
+	/**
+	 * List being updated.
+	 */
+	private final LIST_TYPE list_type;
+
+	/**
+	 * Time (UNIX seconds) at which the run began.
+	 */
+	private final long ts_start;
+
+	/**
+	 * System.nanoTime() at which the run began.
+	 */
+	private final long start_nanos;
+
+	/**
+	 * Nanoseconds spent in each phase, by PHASE ordinal.
+	 */
+	private final long[] phase_nanos;
+
+	/**
+	 * Nanoseconds from the start of the run to finish().
+	 */
+	private long total_nanos;
+
+	/**
+	 * Bytes read from the diff stream.
+	 */
+	private long bytes;
+
+	/**
+	 * Lines (header, additions, and removals) of the diff parsed.
+	 */
+	private int lines;
+
+	/**
+	 * Outcome of the run (one of UPDATED, CURRENT, FAILED; NULL if the
+	 * run is not finished).
+	 */
+	private String outcome;
+
+	/**
+	 * Versions before and after the run (-1 if unknown).
+	 */
+	private int from_version = -1, to_version = -1;
+
+	/**
+	 * Rows added, closed, and archived by the run.
+	 */
+	private int adds, closes, migrated;
+
+
+	// ***************************** CONSTRUCTORS ****************************
+
+	/**
+	 * Construct an [update_profile], starting the clock on a run.
+	 * @param list_type List being updated
+	 */
+	public update_profile(LIST_TYPE list_type){
+		this.list_type = list_type;
+		this.ts_start = gen_utils.cur_unix_time();
+		this.start_nanos = System.nanoTime();
+		this.phase_nanos = new long[PHASE.values().length];
+	}
+
+
+	// **************************** PUBLIC METHODS ***************************
+
+	/**
+	 * Charge time to a phase.
+	 * @param phase Phase in which the time was spent
+	 * @param start System.nanoTime() at which the phase began
+	 * @return System.nanoTime() at which the phase was charged, so that
+	 * consecutive phases may be timed with one clock read apiece
+	 */
+	public long time(PHASE phase, long start){
+		long now = System.nanoTime();
+		phase_nanos[phase.ordinal()] += (now - start);
+		return(now);
+	}
+
+	/**
+	 * Charge a streaming pass (download, parse, and apply) to the parse
+	 * phase, less the time the metered stream and listener (see meter())
+	 * have already charged to the download and apply phases.
+	 * @param start System.nanoTime() at which the streaming pass began
+	 * @return System.nanoTime() at which the pass was charged
+	 */
+	public long time_stream(long start){
+		long now = System.nanoTime();
+		long parse = (now - start) - phase_nanos[PHASE.download.ordinal()] -
+				phase_nanos[PHASE.apply.ordinal()];
+		phase_nanos[PHASE.parse.ordinal()] += Math.max(parse, 0);
+		return(now);
+	}
+
+	/**
+	 * Wrap a diff stream, so that its reads are charged to the download
+	 * phase, and the bytes read are counted.
+	 * @param is Stream over a diff
+	 * @return Metered stream over the same content
+	 */
+	public InputStream meter(InputStream is){
+		return(new metered_stream(is));
+	}
+
+	/**
+	 * Wrap a diff listener, so that the time it spends is charged to the
+	 * apply phase, and the lines it handles are counted.
+	 * @param listener Listener writing the entries of a diff
+	 * @return Metered listener, handing each line to 'listener'
+	 */
+	public diff_parser.diff_listener meter(diff_parser.diff_listener listener){
+		return(new metered_listener(listener));
+	}
+
+	/**
+	 * Mark the run as finished, stopping the clock.
+	 * @param outcome Outcome of the run (UPDATED, CURRENT, or FAILED)
+	 * @param from_version Version before the run (-1 if unknown)
+	 * @param to_version Version after the run (-1 if unknown)
+	 * @param adds Rows added to the active list
+	 * @param closes Rows closed on the active list
+	 * @param migrated Rows archived
+	 */
+	public void finish(String outcome, int from_version, int to_version,
+			int adds, int closes, int migrated){
+		this.total_nanos = System.nanoTime() - start_nanos;
+		this.outcome = outcome;
+		this.from_version = from_version;
+		this.to_version = to_version;
+		this.adds = adds;
+		this.closes = closes;
+		this.migrated = migrated;
+	}
+
+	/**
+	 * Return the names of the fields of a run-history entry, parallel to
+	 * the values returned by run_entry().
+	 * @return Field names; those of phase times are "[PHASE]_MS"
+	 */
+	public static String[] run_fields(){
+		PHASE[] phases = PHASE.values();
+		String[] fields = new String[11 + phases.length];
+		String[] fixed = {"LIST", "TS_START", "OUTCOME", "FROM_VERSION",
+				"TO_VERSION", "BYTES", "LINES", "ADDS", "CLOSES", "MIGRATED",
+				"TOTAL_MS"};
+		System.arraycopy(fixed, 0, fields, 0, fixed.length);
+		for(PHASE phase : phases)
+			fields[fixed.length + phase.ordinal()] =
+					phase.toString().toUpperCase() + "_MS";
+		return(fields);
+	}
+
+	/**
+	 * Return the values of this run's history entry.
+	 * @return Values, parallel to run_fields(): strings, for the list and
+	 * outcome, and Longs, for all else
+	 */
+	public Object[] run_entry(){
+		PHASE[] phases = PHASE.values();
+		Object[] values = new Object[11 + phases.length];
+		values[0] = list_type.toString();
+		values[1] = ts_start;
+		values[2] = outcome;
+		values[3] = (long) from_version;
+		values[4] = (long) to_version;
+		values[5] = bytes;
+		values[6] = (long) lines;
+		values[7] = (long) adds;
+		values[8] = (long) closes;
+		values[9] = (long) migrated;
+		values[10] = total_nanos / 1000000;
+		for(PHASE phase : phases)
+			values[11 + phase.ordinal()] = phase_ms(phase);
+		return(values);
+	}
+
+	/**
+	 * Return the time spent in a phase.
+	 * @param phase Phase of interest
+	 * @return Milliseconds spent in 'phase'
+	 */
+	public long phase_ms(PHASE phase){
+		return(phase_nanos[phase.ordinal()] / 1000000);
+	}
+
+	/**
+	 * Return a summary of the run, for operators.
+	 * @return Human-readable report: the time of each phase (with rates,
+	 * where meaningful), and a warning if the run took more than
+	 * WINDOW_WARNING of the update window
+	 */
+	public String report(){
+		StringBuilder report = new StringBuilder("  " + list_type +
+				" phases (ms):");
+		for(PHASE phase : PHASE.values())
+			report.append(" " + phase + "=" + phase_ms(phase));
+		long total_ms = total_nanos / 1000000;
+		report.append("; total=" + total_ms);
+
+		report.append("\n  " + list_type + " volume: " + bytes +
+				" bytes fetched (" + per_sec(bytes / 1024, PHASE.download) +
+				" kB/s), " + lines + " lines parsed (" + per_sec(lines,
+				PHASE.parse) + " lines/s), " + (adds + closes) +
+				" rows applied (" + per_sec(adds + closes, PHASE.apply,
+				PHASE.flush) + " rows/s), " + migrated + " rows archived (" +
+				per_sec(migrated, PHASE.migrate) + " rows/s)");
+
+		double fraction = (double) total_ms / UPDATE_WINDOW_MS;
+		if(fraction > WINDOW_WARNING){
+			report.append("\n  " + list_type + " WARNING: run took " +
+					Math.round(fraction * 100) + "% of the " +
+					(UPDATE_WINDOW_MS / 60000) + " minute update window");
+		} // Runs nearing the window risk overlapping the next
+		return(report.toString());
+	}
+
+
+	// *************************** PRIVATE METHODS ***************************
+
+	/**
+	 * Compute the rate at which some work was done.
+	 * @param amount Amount of work done
+	 * @param phases Phases during which the work was done
+	 * @return 'amount' per second spent in 'phases' (zero if no time)
+	 */
+	private long per_sec(long amount, PHASE... phases){
+		long nanos = 0;
+		for(PHASE phase : phases)
+			nanos += phase_nanos[phase.ordinal()];
+		if(nanos <= 0)
+			return(0);
+		return(Math.round(amount * 1.0e9 / nanos));
+	}
+
+
+	// **************************** PRIVATE CLASSES **************************
+
+	/**
+	 * Stream charging its reads to the download phase.
+	 */
+	private class metered_stream extends FilterInputStream{
+
+		/**
+		 * Construct a [metered_stream].
+		 * @param is Stream being metered
+		 */
+		metered_stream(InputStream is){
+			super(is);
+		}
+
+		public int read() throws IOException{
+			long start = System.nanoTime();
+			int b = super.read();
+			time(PHASE.download, start);
+			if(b >= 0)
+				bytes++;
+			return(b);
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException{
+			long start = System.nanoTime();
+			int read = super.read(buf, off, len);
+			time(PHASE.download, start);
+			if(read > 0)
+				bytes += read;
+			return(read);
+		}
+	}
+
+	/**
+	 * Listener charging the work of the listener it wraps to the apply
+	 * phase.
+	 */
+	private class metered_listener implements diff_parser.diff_listener{
+
+		/**
+		 * Listener being metered.
+		 */
+		private final diff_parser.diff_listener listener;
+
+		/**
+		 * Construct a [metered_listener].
+		 * @param listener Listener being metered
+		 */
+		metered_listener(diff_parser.diff_listener listener){
+			this.listener = listener;
+		}
+
+		public void header(int version_id) throws Exception{
+			lines++;
+			long start = System.nanoTime();
+			listener.header(version_id);
+			time(PHASE.apply, start);
+		}
+
+		public void add(String hash) throws Exception{
+			lines++;
+			long start = System.nanoTime();
+			listener.add(hash);
+			time(PHASE.apply, start);
+		}
+
+		public void remove(String hash) throws Exception{
+			lines++;
+			long start = System.nanoTime();
+			listener.remove(hash);
+			time(PHASE.apply, start);
+		}
+	}
+
+}